@@ -21,11 +21,14 @@ public class MainActivity extends AppCompatActivity {
         this.findViewById(R.id.btn_patch).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                String pathFromAssets = Anole.getPathFromAssets(MainActivity.this, "patch.jar");
-
-                Anole.applyPatch(MainActivity.this, pathFromAssets);
-
-                mDooooo.setText(hello.sayHello());
+                Anole.applyPatchFromAssetsAsync(MainActivity.this, "patch.jar",
+                        new Anole.Callback() {
+                            @Override
+                            public void onPatchApplied(boolean applied, Anole.Timings timings,
+                                                       Throwable error) {
+                                mDooooo.setText(hello.sayHello());
+                            }
+                        });
             }
         });
     }
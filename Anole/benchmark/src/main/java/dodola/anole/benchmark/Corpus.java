@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.benchmark;
+
+import com.google.common.io.Files;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generates the classes the instrumentation benchmarks run on, shaped like the classes of an
+ * application: hierarchies of classes calling the methods of their parents, constructors
+ * delegating to each other and to the parent constructors with computed arguments, and methods
+ * of branches, calls, field accesses and string concatenations.
+ */
+public final class Corpus {
+
+    /**
+     * The number of classes of every corpus, whatever its shape.
+     */
+    public static final int CLASSES = 64;
+
+    private static final String PACKAGE = "dodola/anole/benchmark/corpus/";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String STRING = "java/lang/String";
+    private static final String STRING_BUILDER = "java/lang/StringBuilder";
+    private static final String METHOD_DESC = "(ILjava/lang/String;)I";
+    private static final String HELPER_DESC = "(I)I";
+
+    /**
+     * The shapes of corpus, each stressing one dimension of the classes.
+     */
+    public enum Shape {
+        /** Short hierarchies of classes with a dozen methods. */
+        TYPICAL(2, 2, 12, 12),
+        /** Hierarchies 16 classes deep, whose parents are looked up for every class. */
+        DEEP_HIERARCHY(16, 2, 12, 12),
+        /** Few methods of a few thousand instructions. */
+        LARGE_METHODS(2, 2, 4, 400),
+        /** Classes of 16 constructors, each split by the instrumentation. */
+        MANY_CONSTRUCTORS(2, 16, 4, 12);
+
+        final int depth;
+        final int constructors;
+        final int methods;
+        final int statements;
+
+        Shape(int depth, int constructors, int methods, int statements) {
+            this.depth = depth;
+            this.constructors = constructors;
+            this.methods = methods;
+            this.statements = statements;
+        }
+    }
+
+    private final Map<String, byte[]> classes;
+
+    private Corpus(Map<String, byte[]> classes) {
+        this.classes = classes;
+    }
+
+    /**
+     * Generates the {@link #CLASSES} classes of a corpus, as {@link Shape#depth} deep hierarchies.
+     */
+    public static Corpus generate(Shape shape) {
+        Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+        for (int hierarchy = 0; hierarchy < CLASSES / shape.depth; hierarchy++) {
+            String superName = OBJECT;
+            for (int level = 0; level < shape.depth; level++) {
+                String name = PACKAGE + "Class" + hierarchy + "_" + level;
+                classes.put(name, generateClass(name, superName, level, shape));
+                superName = name;
+            }
+        }
+        return new Corpus(classes);
+    }
+
+    /**
+     * Returns the class bytes by internal name, parents first.
+     */
+    public Map<String, byte[]> getClasses() {
+        return Collections.unmodifiableMap(classes);
+    }
+
+    /**
+     * Writes the class files to a folder, for a {@link dodola.anole.lib.ClassHierarchy} to index.
+     */
+    public void writeTo(File folder) throws IOException {
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            File classFile = new File(folder, entry.getKey() + ".class");
+            Files.createParentDirs(classFile);
+            Files.write(entry.getValue(), classFile);
+        }
+    }
+
+    private static byte[] generateClass(String name, String superName, int level, Shape shape) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                // the generated code only merges values of the same type, or with null.
+                return OBJECT;
+            }
+        };
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName,
+                null);
+        cw.visitSource(name.substring(name.lastIndexOf('/') + 1) + ".java", null);
+        cw.visitField(Opcodes.ACC_PRIVATE, "value", "I", null, null).visitEnd();
+        cw.visitField(Opcodes.ACC_PROTECTED, "label", "L" + STRING + ";", null, null)
+                .visitEnd();
+        cw.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "instances", "I", null, null)
+                .visitEnd();
+
+        for (int i = 0; i < shape.constructors; i++) {
+            generateConstructor(cw, name, superName, i, level == 0);
+        }
+        for (int i = 0; i < shape.methods; i++) {
+            generateMethod(cw, name, superName, i, shape.statements, level == 0);
+        }
+        generateHelper(cw, name);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * The first constructor is {@code (int, String)} and calls the parent one with
+     * {@code (a + 1, s)}, the others take {@code i} more ints and call the first one with
+     * {@code (a + b1 + ... + bi, s == null ? "" : s)}.
+     */
+    private static void generateConstructor(ClassWriter cw, String name, String superName,
+            int index, boolean root) {
+        StringBuilder desc = new StringBuilder("(IL" + STRING + ";");
+        for (int i = 0; i < index; i++) {
+            desc.append('I');
+        }
+        desc.append(")V");
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", desc.toString(), null,
+                null);
+        mv.visitCode();
+        int line = 10 + index * 10;
+        visitLine(mv, line++);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        if (index == 0) {
+            if (root) {
+                mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+            } else {
+                mv.visitVarInsn(Opcodes.ILOAD, 1);
+                mv.visitInsn(Opcodes.ICONST_1);
+                mv.visitInsn(Opcodes.IADD);
+                mv.visitVarInsn(Opcodes.ALOAD, 2);
+                mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>",
+                        "(IL" + STRING + ";)V", false);
+            }
+        } else {
+            mv.visitVarInsn(Opcodes.ILOAD, 1);
+            for (int i = 0; i < index; i++) {
+                mv.visitVarInsn(Opcodes.ILOAD, 3 + i);
+                mv.visitInsn(Opcodes.IADD);
+            }
+            Label notNull = new Label();
+            Label done = new Label();
+            mv.visitVarInsn(Opcodes.ALOAD, 2);
+            mv.visitJumpInsn(Opcodes.IFNONNULL, notNull);
+            mv.visitLdcInsn("");
+            mv.visitJumpInsn(Opcodes.GOTO, done);
+            mv.visitLabel(notNull);
+            mv.visitVarInsn(Opcodes.ALOAD, 2);
+            mv.visitLabel(done);
+            mv.visitMethodInsn(Opcodes.INVOKESPECIAL, name, "<init>", "(IL" + STRING + ";)V",
+                    false);
+        }
+        visitLine(mv, line++);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, name, "value", "I");
+        visitLine(mv, line++);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 2);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, name, "label", "L" + STRING + ";");
+        visitLine(mv, line);
+        mv.visitFieldInsn(Opcodes.GETSTATIC, name, "instances", "I");
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitFieldInsn(Opcodes.PUTSTATIC, name, "instances", "I");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * {@code int m<index>(int x, String s)}, a sequence of statements cycling through field
+     * accesses, branches, string concatenations, calls of a private helper and of the parent
+     * implementation of the method.
+     */
+    private static void generateMethod(ClassWriter cw, String name, String superName, int index,
+            int statements, boolean root) {
+        String methodName = "m" + index;
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, methodName, METHOD_DESC, null,
+                null);
+        mv.visitCode();
+        int line = 1000 * (index + 1);
+        for (int i = 0; i < statements; i++) {
+            visitLine(mv, line++);
+            switch (i % 5) {
+                case 0:
+                    // x = x * 31 + this.value;
+                    mv.visitVarInsn(Opcodes.ILOAD, 1);
+                    mv.visitIntInsn(Opcodes.BIPUSH, 31);
+                    mv.visitInsn(Opcodes.IMUL);
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, name, "value", "I");
+                    mv.visitInsn(Opcodes.IADD);
+                    mv.visitVarInsn(Opcodes.ISTORE, 1);
+                    break;
+                case 1:
+                    // if (x > i) x -= i; else x += index;
+                    Label otherwise = new Label();
+                    Label next = new Label();
+                    mv.visitVarInsn(Opcodes.ILOAD, 1);
+                    mv.visitIntInsn(Opcodes.SIPUSH, i);
+                    mv.visitJumpInsn(Opcodes.IF_ICMPLE, otherwise);
+                    mv.visitIincInsn(1, -i);
+                    mv.visitJumpInsn(Opcodes.GOTO, next);
+                    mv.visitLabel(otherwise);
+                    mv.visitIincInsn(1, index);
+                    mv.visitLabel(next);
+                    break;
+                case 2:
+                    // s = s + this.label + x;
+                    mv.visitTypeInsn(Opcodes.NEW, STRING_BUILDER);
+                    mv.visitInsn(Opcodes.DUP);
+                    mv.visitMethodInsn(Opcodes.INVOKESPECIAL, STRING_BUILDER, "<init>", "()V",
+                            false);
+                    mv.visitVarInsn(Opcodes.ALOAD, 2);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append",
+                            "(L" + STRING + ";)L" + STRING_BUILDER + ";", false);
+                    mv.visitVarInsn(Opcodes.ALOAD, 0);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, name, "label", "L" + STRING + ";");
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append",
+                            "(L" + STRING + ";)L" + STRING_BUILDER + ";", false);
+                    mv.visitVarInsn(Opcodes.ILOAD, 1);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "append",
+                            "(I)L" + STRING_BUILDER + ";", false);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING_BUILDER, "toString",
+                            "()L" + STRING + ";", false);
+                    mv.visitVarInsn(Opcodes.ASTORE, 2);
+                    break;
+                case 3:
+                    // x += helper(x);
+                    mv.visitVarInsn(Opcodes.ILOAD, 1);
+                    mv.visitVarInsn(Opcodes.ILOAD, 1);
+                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, name, "helper", HELPER_DESC, false);
+                    mv.visitInsn(Opcodes.IADD);
+                    mv.visitVarInsn(Opcodes.ISTORE, 1);
+                    break;
+                default:
+                    // x += super.m<index>(x, s), or s.length() in the root classes.
+                    mv.visitVarInsn(Opcodes.ILOAD, 1);
+                    if (root) {
+                        mv.visitVarInsn(Opcodes.ALOAD, 2);
+                        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, STRING, "length", "()I",
+                                false);
+                    } else {
+                        mv.visitVarInsn(Opcodes.ALOAD, 0);
+                        mv.visitVarInsn(Opcodes.ILOAD, 1);
+                        mv.visitVarInsn(Opcodes.ALOAD, 2);
+                        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, methodName,
+                                METHOD_DESC, false);
+                    }
+                    mv.visitInsn(Opcodes.IADD);
+                    mv.visitVarInsn(Opcodes.ISTORE, 1);
+                    break;
+            }
+        }
+        visitLine(mv, line);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * {@code private static int helper(int x)}, reached through the runtime by the $override.
+     */
+    private static void generateHelper(ClassWriter cw, String name) {
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "helper",
+                HELPER_DESC, null, null);
+        mv.visitCode();
+        visitLine(mv, 1);
+        mv.visitVarInsn(Opcodes.ILOAD, 0);
+        mv.visitFieldInsn(Opcodes.GETSTATIC, name, "instances", "I");
+        mv.visitInsn(Opcodes.IXOR);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void visitLine(MethodVisitor mv, int line) {
+        Label label = new Label();
+        mv.visitLabel(label);
+        mv.visitLineNumber(line, label);
+    }
+}
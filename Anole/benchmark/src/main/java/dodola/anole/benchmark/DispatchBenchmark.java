@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a call to an instrumented method: compiled as is ({@code ORIGINAL}), instrumented
+ * without patch, which only adds the $change check ({@code UNPATCHED}), and dispatched to the
+ * $override of a patch ({@code PATCHED}), by method name through {@code access$dispatch} and its
+ * string switch or by integer id.
+ * <p>
+ * Run with {@code -prof gc} to see the arguments and results boxed per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    @Param({"ORIGINAL", "UNPATCHED", "PATCHED"})
+    public Fixtures.Mode mode;
+
+    @Param({"true", "false"})
+    public boolean intDispatch;
+
+    private Workload workload;
+    private int i = 3;
+    private long l = 7L;
+    private double d = 1.5;
+    private String s = "anole";
+
+    @Setup
+    public void setUp() throws Exception {
+        workload = Fixtures.newWorkload(mode, intDispatch);
+    }
+
+    @Benchmark
+    public int primitiveArguments() {
+        return workload.add(i, i);
+    }
+
+    @Benchmark
+    public long manyArguments() {
+        return workload.scale(l, i, d);
+    }
+
+    @Benchmark
+    public String referenceArguments() {
+        return workload.concat(s, s);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.benchmark;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import dodola.anole.benchmark.fixture.Calculator;
+import dodola.anole.lib.ClassHierarchy;
+import dodola.anole.lib.FileUtils;
+import dodola.anole.lib.IncrementalChangeVisitor;
+import dodola.anole.lib.IncrementalSupportVisitor;
+import dodola.anole.lib.IncrementalVisitor;
+import dodola.anole.lib.InstrumentationOptions;
+import dodola.anole.lib.MethodIds;
+
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the fixture class in its own class loader, as compiled, as instrumented by the plugin,
+ * or instrumented and patched with the $override the plugin builds from it.
+ */
+public final class Fixtures {
+
+    /**
+     * How the fixture class is loaded.
+     */
+    public enum Mode {
+        /** As compiled, without instrumentation. */
+        ORIGINAL,
+        /** Instrumented, without patch: each call checks the $change field. */
+        UNPATCHED,
+        /** Instrumented and patched: each call is dispatched to the $override. */
+        PATCHED
+    }
+
+    private static final String FIXTURE = Type.getInternalName(Calculator.class);
+    private static final String FIXTURE_CLASS = Calculator.class.getName();
+
+    private Fixtures() {
+    }
+
+    /**
+     * Returns a new instance of the fixture class.
+     *
+     * @param intDispatch whether the class is instrumented with integer method ids instead of
+     *                    method names.
+     */
+    static Workload newWorkload(Mode mode, boolean intDispatch) throws Exception {
+        byte[] original = readClass(FIXTURE);
+        FixtureClassLoader loader = new FixtureClassLoader();
+        if (mode == Mode.ORIGINAL) {
+            loader.add(FIXTURE, original);
+            return (Workload) loader.loadClass(FIXTURE_CLASS).newInstance();
+        }
+
+        File outputDir = Files.createTempDir();
+        ClassHierarchy classHierarchy = ClassHierarchy.fromClassPath(getClassPath());
+        InstrumentationOptions options =
+                InstrumentationOptions.builder().setIntDispatch(intDispatch).build();
+        try {
+            loader.add(FIXTURE, instrument(original, outputDir,
+                    IncrementalSupportVisitor.newVisitorBuilder(options), classHierarchy));
+            if (mode == Mode.PATCHED) {
+                // ids without method hashes: every method of the fixture counts as changed.
+                MethodIds ids = new MethodIds();
+                ids.record(original);
+                loader.add(FIXTURE + "$override", instrument(original, outputDir,
+                        IncrementalChangeVisitor.newVisitorBuilder(ids, options), classHierarchy));
+            }
+        } finally {
+            classHierarchy.close();
+            FileUtils.deleteFolder(outputDir);
+        }
+
+        Class<?> fixtureClass = loader.loadClass(FIXTURE_CLASS);
+        if (mode == Mode.PATCHED) {
+            Object override = loader.loadClass(FIXTURE_CLASS + "$override").newInstance();
+            Field change = fixtureClass.getDeclaredField("$change");
+            change.setAccessible(true);
+            change.set(null, override);
+        }
+        return (Workload) fixtureClass.newInstance();
+    }
+
+    /**
+     * Instruments a class with the plugin code and returns the written class bytes.
+     */
+    static byte[] instrument(byte[] classBytes, File outputDir,
+            IncrementalVisitor.VisitorBuilder visitorBuilder, ClassHierarchy classHierarchy)
+            throws IOException {
+        File output = IncrementalVisitor.instrumentClass(FIXTURE + ".class", classBytes,
+                outputDir, visitorBuilder, classHierarchy);
+        return Files.toByteArray(output);
+    }
+
+    /**
+     * Returns the class path the fixture is instrumented against: the JVM boot classes, which
+     * stand for the android.jar of a build and have the constructors of java.lang.Object, and the
+     * benchmark class path.
+     */
+    public static String getClassPath() {
+        List<String> classPath = new ArrayList<String>();
+        Splitter splitter = Splitter.on(File.pathSeparatorChar).omitEmptyStrings();
+        for (String path : Iterables.concat(
+                splitter.split(System.getProperty("sun.boot.class.path", "")),
+                splitter.split(System.getProperty("java.class.path")))) {
+            // the boot class path lists jars some JVMs do not ship.
+            if (new File(path).exists()) {
+                classPath.add(path);
+            }
+        }
+        return Joiner.on(File.pathSeparatorChar).join(classPath);
+    }
+
+    static byte[] readClass(String internalName) throws IOException {
+        InputStream inputStream =
+                Fixtures.class.getClassLoader().getResourceAsStream(internalName + ".class");
+        try {
+            return ByteStreams.toByteArray(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Defines the fixture classes itself instead of delegating them to the benchmark class loader,
+     * which has the uninstrumented ones.
+     */
+    private static final class FixtureClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+        FixtureClassLoader() {
+            super(Fixtures.class.getClassLoader());
+        }
+
+        void add(String internalName, byte[] classBytes) {
+            classes.put(internalName.replace('/', '.'), classBytes);
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            byte[] classBytes = classes.get(name);
+            if (classBytes == null) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                loaded = defineClass(name, classBytes, 0, classBytes.length);
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.benchmark;
+
+import dodola.anole.runtime.AndroidInstantRuntime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the {@link AndroidInstantRuntime} calls an $override makes to reach the members its
+ * class cannot access directly, next to the direct access the original class makes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RuntimeReflectionBenchmark {
+
+    private static final Class[] NO_TYPES = new Class[0];
+    private static final Class[] INT_TYPE = new Class[]{int.class};
+
+    private final Target target = new Target();
+    private final Object[] noParams = new Object[0];
+    private final Object[] intParam = new Object[]{3};
+    private Integer value = 5;
+
+    @Benchmark
+    public int directGetField() {
+        return target.field;
+    }
+
+    @Benchmark
+    public Object getPrivateField() {
+        return AndroidInstantRuntime.getPrivateField(target, Target.class, "field");
+    }
+
+    @Benchmark
+    public void directSetField() {
+        target.field = value;
+    }
+
+    @Benchmark
+    public void setPrivateField() {
+        AndroidInstantRuntime.setPrivateField(target, value, Target.class, "field");
+    }
+
+    @Benchmark
+    public Object getStaticPrivateField() {
+        return AndroidInstantRuntime.getStaticPrivateField(Target.class, "staticField");
+    }
+
+    @Benchmark
+    public int directInvoke() {
+        return target.twice(value);
+    }
+
+    @Benchmark
+    public Object invokeProtectedMethod() throws Throwable {
+        return AndroidInstantRuntime.invokeProtectedMethod(target, intParam, INT_TYPE, "twice");
+    }
+
+    @Benchmark
+    public Target directNew() {
+        return new Target();
+    }
+
+    @Benchmark
+    public Target newForClass() throws Throwable {
+        return AndroidInstantRuntime.newForClass(noParams, NO_TYPES, Target.class);
+    }
+
+    /**
+     * Stands for a class whose members an $override reaches through the runtime.
+     */
+    public static class Target {
+
+        private static Object staticField = "static";
+
+        private int field = 1;
+
+        protected Target() {
+        }
+
+        protected int twice(int i) {
+            return 2 * i + field;
+        }
+    }
+}
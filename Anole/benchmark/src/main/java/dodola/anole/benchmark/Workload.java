@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.benchmark;
+
+/**
+ * The calls measured by {@link DispatchBenchmark}, implemented by a fixture class loaded with and
+ * without instrumentation. The interface itself is never instrumented.
+ */
+public interface Workload {
+
+    /**
+     * Two primitive arguments and a primitive result: dispatched without allocation with integer
+     * ids.
+     */
+    int add(int a, int b);
+
+    /**
+     * Four arguments with the receiver: dispatched through the boxing {@code Object[]} version of
+     * {@code access$dispatch} in both dispatch modes.
+     */
+    long scale(long value, int factor, double ratio);
+
+    /**
+     * Reference arguments and result, not boxed in either mode.
+     */
+    String concat(String a, String b);
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.benchmark.fixture;
+
+import dodola.anole.benchmark.Workload;
+
+/**
+ * The class instrumented by the benchmarks, see {@link dodola.anole.benchmark.Fixtures}.
+ */
+public class Calculator implements Workload {
+
+    private int offset = 1;
+
+    @Override
+    public int add(int a, int b) {
+        return a + b + offset;
+    }
+
+    @Override
+    public long scale(long value, int factor, double ratio) {
+        return (long) (value * factor * ratio) + offset;
+    }
+
+    @Override
+    public String concat(String a, String b) {
+        return offset > 0 ? a : b;
+    }
+}
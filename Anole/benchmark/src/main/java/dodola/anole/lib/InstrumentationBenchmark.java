@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.io.Files;
+
+import dodola.anole.benchmark.Corpus;
+import dodola.anole.benchmark.Fixtures;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the instrumentation over a generated {@link Corpus}, in classes per second. Run
+ * with {@code -prof gc} for the bytes allocated per class.
+ * <p>
+ * The classes are instrumented in memory, without the reads and writes of the class files, and
+ * against a {@link ClassHierarchy} kept for the whole run like a build keeps it for all its
+ * classes. The benchmark is in the package of the instrumentation to reach its in-memory entry
+ * point.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstrumentationBenchmark {
+
+    @Param({"TYPICAL", "DEEP_HIERARCHY", "LARGE_METHODS", "MANY_CONSTRUCTORS"})
+    public Corpus.Shape shape;
+
+    private File corpusDir;
+    private ClassHierarchy classHierarchy;
+    private List<byte[]> classes;
+    private List<ClassNode> classNodes;
+    private MethodIds ids;
+
+    @Setup
+    public void setUp() throws Exception {
+        Corpus corpus = Corpus.generate(shape);
+        corpusDir = Files.createTempDir();
+        corpus.writeTo(corpusDir);
+        classHierarchy = ClassHierarchy.fromClassPath(
+                Fixtures.getClassPath() + File.pathSeparator + corpusDir.getPath());
+
+        classes = new ArrayList<byte[]>(corpus.getClasses().values());
+        classNodes = new ArrayList<ClassNode>();
+        ids = new MethodIds();
+        for (byte[] classBytes : classes) {
+            ClassNode classNode = new ClassNode();
+            new ClassReader(classBytes).accept(classNode, 0);
+            classNodes.add(classNode);
+            ids.record(classBytes);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        classHierarchy.close();
+        FileUtils.deleteFolder(corpusDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpus.CLASSES)
+    public void instrument(Visitors visitors, Blackhole blackhole) throws Exception {
+        for (byte[] classBytes : classes) {
+            blackhole.consume(IncrementalVisitor.instrumentClassBytes(classBytes,
+                    classBytes.length, visitors.supportBuilder, classHierarchy,
+                    null /* cache */));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpus.CLASSES)
+    public void override(Visitors visitors, Blackhole blackhole) throws Exception {
+        for (byte[] classBytes : classes) {
+            blackhole.consume(IncrementalVisitor.instrumentClassBytes(classBytes,
+                    classBytes.length, visitors.changeBuilder, classHierarchy,
+                    null /* cache */));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpus.CLASSES)
+    public void deconstructConstructors(Blackhole blackhole) {
+        for (ClassNode classNode : classNodes) {
+            //noinspection unchecked ASM api.
+            for (MethodNode method : (List<MethodNode>) classNode.methods) {
+                if (method.name.equals(AsmUtils.CONSTRUCTOR)) {
+                    blackhole.consume(
+                            ConstructorDelegationDetector.deconstruct(classNode.name, method));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Corpus.CLASSES)
+    public void verifyMethods(Blackhole blackhole) {
+        for (ClassNode classNode : classNodes) {
+            //noinspection unchecked ASM api.
+            for (MethodNode method : (List<MethodNode>) classNode.methods) {
+                blackhole.consume(InstantRunMethodVerifier.verifyMethod(method));
+            }
+        }
+    }
+
+    /**
+     * The visitors of the instrumentation and of the patches, which dispatch on method names or
+     * on ids. The other benchmarks do not depend on the dispatch.
+     */
+    @State(Scope.Benchmark)
+    public static class Visitors {
+
+        @Param({"true", "false"})
+        public boolean intDispatch;
+
+        private IncrementalVisitor.VisitorBuilder supportBuilder;
+        private IncrementalVisitor.VisitorBuilder changeBuilder;
+
+        @Setup
+        public void setUp(InstrumentationBenchmark benchmark) {
+            InstrumentationOptions options =
+                    InstrumentationOptions.builder().setIntDispatch(intDispatch).build();
+            supportBuilder = IncrementalSupportVisitor.newVisitorBuilder(options);
+            // ids without method hashes: every method counts as changed and is overridden.
+            changeBuilder = IncrementalChangeVisitor.newVisitorBuilder(
+                    intDispatch ? benchmark.ids : null, options);
+        }
+    }
+}
@@ -7,7 +7,6 @@ import com.android.build.gradle.AppPlugin
 import com.android.build.gradle.api.ApplicationVariant
 import com.android.build.gradle.api.BaseVariant
 import com.android.build.gradle.internal.transforms.ProGuardTransform
-import org.apache.commons.codec.digest.DigestUtils
 import org.apache.commons.lang3.builder.RecursiveToStringStyle
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder
 import org.gradle.api.DomainObjectCollection
@@ -19,16 +18,14 @@ import org.gradle.api.internal.project.DefaultProject
 import org.gradle.api.logging.Logger
 import proguard.gradle.ProGuardTask
 
-import java.util.jar.JarEntry
-import java.util.jar.JarFile
 
 class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
     public DefaultProject project;
     public static Logger logger;
+    private AnoleTransform anoleTransform;
     public static final String EXTENSION_NAME = "rocoo_fix";
 
     private static final String MAPPING_TXT = "mapping.txt"
-    private static final String HASH_TXT = "hash.txt"
 
     @Override
     public void apply(Project target) {
@@ -41,7 +38,9 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
 
             println(ReflectionToStringBuilder.toString(project.android, RecursiveToStringStyle.MULTI_LINE_STYLE));
 
-//            project.android.registerTransform(this);
+            //transform必须在插件apply时注册,此时rocoo_fix还未配置,未开启时只拷贝输入
+            anoleTransform = new AnoleTransform(project)
+            project.android.registerTransform(anoleTransform)
 
         }
         logger = project.logger;
@@ -149,7 +148,6 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
                 def rocooFixRootDir = new File("${project.projectDir}${File.separator}rocoofix${File.separator}version" + variant.getVersionCode())//project/rocoofix/version11
                 def outputDir = new File("${rocooFixRootDir}${File.separator}${dirName}")//project/rocoofix/version11/debug
                 def patchDir = new File("${outputDir}${File.separator}patch")//project/rocoofix/version11/debug/patch
-                def hashFile = new File(outputDir, "${HASH_TXT}")//project/rocoofix/version11/debug/hash.txt
                 def patchPreDir = new File("${outputDir}${File.separator}patchpre")
 
                 if (!rocooFixRootDir.exists()) {
@@ -161,6 +159,15 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
                 if (!patchDir.exists()) {
                     patchDir.mkdirs();
                 }
+
+                RocooFixExtension variantConfig = RocooFixExtension.getConfig(project)
+                if (variantConfig.transform) {
+                    def preVersionDir = null
+                    if (variantConfig.preVersionPath != null) {
+                        preVersionDir = new File("${project.projectDir}${File.separator}rocoofix${File.separator}version${variantConfig.preVersionPath}${File.separator}${dirName}")
+                    }
+                    anoleTransform.setVariantOutput(variant.name, new AnoleTransform.VariantOutput(outputDir, patchDir, preVersionDir))
+                }
                 def rocooPatchTaskName = "applyRocoo${variant.name.capitalize()}Patch"
                 project.task(rocooPatchTaskName) << {
                     if (patchDir) {
@@ -170,12 +177,13 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
                 def rocooPatchTask = project.tasks[rocooPatchTaskName]
 
                 Closure prepareClosure = {
-                    if (!hashFile.exists()) {
-                        hashFile.createNewFile()
-                    } else {
-                        hashFile.delete()
-                        hashFile.createNewFile()
+                    if (RocooFixExtension.getConfig(project).transform) {
+                        //hash.idx由AnoleTransform增量维护
+                        return
                     }
+                    //插桩结束时重新写入hash.idx,任务中途失败时不留下上次的索引
+                    FileUtils.deleteIfExists(new File(outputDir, HashIndex.HASH_IDX))
+                    FileUtils.deleteIfExists(new File(outputDir, HashIndex.HASH_TXT))
                 }
 
                 Closure copyMappingClosure = {
@@ -193,7 +201,10 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
 
                 def rocooJarBeforeDex = "rocooJarBeforeDex${variant.name.capitalize()}"
                 project.task(rocooJarBeforeDex) << {
-
+                    if (RocooFixExtension.getConfig(project).transform) {
+                        //已经在AnoleTransform中插桩并生成补丁
+                        return
+                    }
 
                     Set<File> inputFiles = RocooUtils.getDexTaskInputFiles(project, variant, dexTask)
 
@@ -213,23 +224,41 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
                     println("__________" + bootclassPath)
 
 
-                    Map hashMap
+                    //上个版本的hash索引,没有上个版本时为null
+                    HashIndex preIndex
+                    File preVersionDir
+                    HashIndex.Builder hashIndex = new HashIndex.Builder()
                     RocooFixExtension rocooConfig = RocooFixExtension.getConfig(project);
+                    //统计插桩增加的代码大小和没有插桩的热点/小方法
+                    InstrumentationReport report = new InstrumentationReport()
+                    //插桩和生成补丁共用的配置
+                    InstrumentationOptions options = rocooConfig.createOptions(project, report)
+                    //includePackage/excludePackage/excludeClass/excludeAnnotation之外的类才插桩
+                    InstrumentationFilter filter = options.getFilter()
+                    MethodIds previousIds = new MethodIds()
+                    //按方法id分发时记录每个方法的hash,补丁只替换改动过的方法
+                    MethodIds methodIds = new MethodIds(options)
                     if (rocooConfig.preVersionPath != null) {
                         def preVersionPath = new File("${project.projectDir}${File.separator}rocoofix${File.separator}version" + rocooConfig.preVersionPath)
                         if (preVersionPath.exists()) {
-                            def preHashFile = new File("${preVersionPath}${File.separator}${variant.dirName}${File.separator}${HASH_TXT}")
-                            hashMap = RocooUtils.parseMap(preHashFile)
+                            preVersionDir = new File(preVersionPath, variant.dirName)
+                            preIndex = HashIndex.read(preVersionDir)
+                            //补丁按上个版本插桩时的方法id分发
+                            previousIds = MethodIds.read(new File(preVersionDir, MethodIds.METHOD_IDS_TXT))
                         }
                     }
+                    //补丁缓存,key由上个版本、改动类的hash和下面的配置决定
+                    PatchCache patchCache = rocooConfig.patchCache ? RocooUtils.getPatchCache(project) : null
+                    String patchOptions = [filter.getCacheKey(), rocooConfig.intDispatch, bootclassPath, project.android.buildToolsVersion].join(File.pathSeparator)
                     inputFiles.each { inputFile ->
 //                        println("***********" + inputFile)
                         def inputPath = inputFile.absolutePath
 
-                        if (inputPath.endsWith(com.android.SdkConstants.DOT_JAR)) {
+                        if (inputPath.endsWith(com.android.SdkConstants.DOT_JAR) && rocooConfig.streaming) {
+//混淆后会生成一个main.jar,直接从jar流式插桩到新jar,不解压
+                            instrumentJarStreaming(inputFile, outputDir, patchDir, hashIndex, preIndex, preVersionDir, patchCache, patchOptions, methodIds, previousIds, bootclassPath, rocooConfig, options)
+                        } else if (inputPath.endsWith(com.android.SdkConstants.DOT_JAR)) {
 //混淆后会生成一个main.jar,解压之
-                            def file = new JarFile(inputFile);
-                            Enumeration enumeration = file.entries();
                             def unzipDir = new File("${outputDir}${File.separator}unzipjar")
 
                             def finalJarOutput = new File("${outputDir}${File.separator}finaljar")
@@ -252,46 +281,61 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
                             }
 
                             def changedFiles = new ArrayList<String>()
-                            while (enumeration.hasMoreElements()) {
-                                JarEntry jarEntry = (JarEntry) enumeration.nextElement();
-                                String entryName = jarEntry.getName();
-                                InputStream inputStream = file.getInputStream(jarEntry);
-                                def hash = DigestUtils.shaHex(inputStream)
-                                hashFile.append(RocooUtils.format(entryName, hash))
-
-                                if (jarEntry.isDirectory()) {
-                                    continue;
+                            SortedMap<String, HashIndex.Digest> changedEntries = new TreeMap<String, HashIndex.Digest>()
+                            //每个entry只解压一次,同一份内容用于计算hash、解压和生成补丁
+                            IncrementalVisitor.readJar(inputFile, { String entryName, byte[] bytes ->
+                                def digest = HashIndex.Digest.of(entryName, bytes, preIndex)
+                                hashIndex.put(entryName, digest)
+
+                                if (entryName.endsWith("/")) {
+                                    return
                                 }
-                                File outFileName = new File("${unzipDir.absolutePath}/${jarEntry.getName()}");
+                                File outFileName = new File("${unzipDir.absolutePath}/${entryName}");
 
                                 if (!outFileName.parentFile.exists()) {
                                     outFileName.parentFile.mkdirs()
                                 }
 
-                                writeFile(file.getInputStream(jarEntry), (outFileName));
+                                writeFile(bytes, outFileName);
+                                if (entryName.endsWith(".class")) {
+                                    methodIds.record(bytes)
+                                }
 
-                                if (hashMap != null) {
-                                    if (RocooUtils.notSame(hashMap, entryName, hash)) {
-                                        File diffFile = new File("${patchPreDir.absolutePath}/${jarEntry.getName()}");
+                                if (preIndex != null) {
+                                    if (entryName.endsWith(".class") && preIndex.isChanged(entryName, digest)) {
+                                        warnUnpatchableChanges(previousIds, bytes, filter)
+                                    }
+                                    if (preIndex.isChanged(entryName, digest)
+                                            && (!entryName.endsWith(".class") || filter.isIncluded(entryName.substring(0, entryName.length() - ".class".length())))) {
+                                        File diffFile = new File("${patchPreDir.absolutePath}/${entryName}");
                                         if (!diffFile.parentFile.exists()) {
                                             diffFile.parentFile.mkdirs()
                                         }
                                         changedFiles.add(entryName.substring(0, entryName.length() - ".class".length()).replace(File.separatorChar as String, '.'))
+                                        changedEntries.put(entryName, digest)
 //保存列表生成patchloader
-                                        writeFile(file.getInputStream(jarEntry), (diffFile));
+                                        writeFile(bytes, diffFile);
                                     }
                                 }
+                            } as IncrementalVisitor.JarEntryListener)
+
+                            //两次插桩共用同一份类继承关系索引,每个父类只解析一次
+                            def classHierarchy = ClassHierarchy.fromClassPath("${unzipDir.absolutePath}${File.pathSeparator}${bootclassPath}")
+                            try {
+                                if (preIndex != null) {
+                                    buildPatch(outputDir, preVersionDir, changedEntries, patchCache, patchOptions) {
+                                        IncrementalChangeVisitor.main([patchPreDir.absolutePath, patchDir.absolutePath, bootclassPath] as String[], classHierarchy, previousIds, options)
+                                        InstantRunTransform.writePatchFileContents(changedFiles, patchDir as File)
+                                    }
+                                }
+                                IncrementalSupportVisitor.mainMe(unzipDir.absolutePath, finalJarOutput.absolutePath, bootclassPath, rocooConfig.parallelism, classHierarchy, options)
+                            } finally {
+                                classHierarchy.close()
                             }
-
-                            if (hashMap != null) {
-                                IncrementalChangeVisitor.main([patchPreDir.absolutePath, patchDir.absolutePath, bootclassPath] as String[])
-                                InstantRunTransform.writePatchFileContents(changedFiles, patchDir as File)
-                            }
-                            IncrementalSupportVisitor.mainMe(unzipDir.absolutePath, finalJarOutput.absolutePath, bootclassPath)
                             //重新打包成jar,删除旧的
 
                             inputFile.delete();
-                            JARCompress.doIt(finalJarOutput.absolutePath, inputFile.absolutePath)
+                            JARCompress.doIt(finalJarOutput.absolutePath, inputFile.absolutePath, rocooConfig.jarCompressionLevel, rocooConfig.parallelism)
 
 
                         } else if (inputFile.isDirectory()) {//不开混淆的处理 暂不开放TODO:
@@ -327,6 +371,16 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
 
                         }
                     }
+                    //和方法id放在一起,下个版本生成补丁时使用
+                    hashIndex.write(outputDir)
+                    methodIds.write(new File(outputDir, MethodIds.METHOD_IDS_TXT))
+                    report.write(new File(outputDir, InstrumentationReport.INSTRUMENTATION_TXT))
+                    //showLog时每次构建都输出统计
+                    if (rocooConfig.showLog) {
+                        logger.lifecycle("Anole instrumentation: " + report)
+                    } else {
+                        logger.info("Anole instrumentation: " + report)
+                    }
                 }
                 def rocooJarBeforeDexTask = project.tasks[rocooJarBeforeDex]
 
@@ -339,29 +393,97 @@ class AnolePlugin /*extends Transform*/ implements Plugin<Project> {
         }
     }
 
-    private static void writeFile(InputStream ips, File outputFile) throws IOException {
-        OutputStream ops = new BufferedOutputStream(new FileOutputStream(outputFile));
+    /**
+     * 单次读取jar中的每个entry:计算hash,和上个版本比较生成补丁,插桩后直接写入新的jar,
+     * 不再产生unzipjar/patchpre/finaljar中间目录
+     */
+    private static void instrumentJarStreaming(File inputFile, File outputDir, File patchDir, HashIndex.Builder hashIndex, HashIndex preIndex,
+                                               File preVersionDir, PatchCache patchCache, String patchOptions,
+                                               MethodIds methodIds, MethodIds previousIds,
+                                               String bootclassPath, RocooFixExtension rocooConfig, InstrumentationOptions options) {
+        InstrumentationFilter filter = options.getFilter()
+        if (patchDir.exists()) {
+            FileUtils.deleteFolder(patchDir)
+            patchDir.mkdirs()
+        }
+
+        def changedFiles = new ArrayList<String>()
+        //先收集改动的类,补丁缓存没有命中时再生成补丁
+        SortedMap<String, HashIndex.Digest> changedEntries = new TreeMap<String, HashIndex.Digest>()
+        Map<String, byte[]> changedBytes = new HashMap<String, byte[]>()
+        def instrumentedJar = new File(outputDir, "instrumented.jar")
+        def changeVisitorBuilder = IncrementalChangeVisitor.newVisitorBuilder(previousIds, options)
+        //索引包含输入jar本身,才能找到jar中的父类和package-info上的禁用注解
+        def classHierarchy = ClassHierarchy.fromClassPath("${inputFile.absolutePath}${File.pathSeparator}${bootclassPath}")
         try {
-            byte[] buffer = new byte[1024];
-            int nBytes = 0;
-            while ((nBytes = ips.read(buffer)) > 0) {
-                ops.write(buffer, 0, nBytes);
-            }
-        } catch (IOException ioe) {
-            throw ioe;
-        } finally {
-            try {
-                if (null != ops) {
-                    ops.flush();
-                    ops.close();
+            IncrementalVisitor.instrumentJar(inputFile, instrumentedJar, IncrementalSupportVisitor.newVisitorBuilder(options),
+                    classHierarchy, rocooConfig.parallelism, rocooConfig.jarCompressionLevel, { String entryName, byte[] bytes ->
+                def digest = HashIndex.Digest.of(entryName, bytes, preIndex)
+                hashIndex.put(entryName, digest)
+                if (entryName.endsWith(".class")) {
+                    methodIds.record(bytes)
                 }
-            } catch (IOException ioe) {
-                throw ioe;
-            } finally {
-                if (null != ips) {
-                    ips.close();
+
+                if (preIndex != null && entryName.endsWith(".class") && preIndex.isChanged(entryName, digest)) {
+                    warnUnpatchableChanges(previousIds, bytes, filter)
+                    if (filter.isIncluded(entryName.substring(0, entryName.length() - ".class".length()))) {
+                        changedFiles.add(entryName.substring(0, entryName.length() - ".class".length()).replace('/', '.'))
+                        changedEntries.put(entryName, digest)
+                        changedBytes.put(entryName, bytes)
+                    }
+                }
+            } as IncrementalVisitor.JarEntryListener, null)
+            if (preIndex != null) {
+                buildPatch(outputDir, preVersionDir, changedEntries, patchCache, patchOptions) {
+                    for (String entryName : changedEntries.keySet()) {
+                        IncrementalVisitor.instrumentClass(entryName, changedBytes.get(entryName), patchDir, changeVisitorBuilder, classHierarchy)
+                    }
+                    InstantRunTransform.writePatchFileContents(changedFiles, patchDir)
                 }
             }
+        } finally {
+            classHierarchy.close()
+        }
+        //替换原来的jar
+        FileUtils.delete(inputFile)
+        FileUtils.renameTo(instrumentedJar, inputFile)
+    }
+
+    /**
+     * 改动的类在上个版本没有插桩或被过滤掉,或改动了上个版本没有插桩的热点/小方法时,补丁无法生效,给出警告
+     */
+    private static void warnUnpatchableChanges(MethodIds previousIds, byte[] bytes, InstrumentationFilter filter) {
+        for (String change : previousIds.getUnpatchableChanges(bytes, filter)) {
+            logger.warn("Anole cannot patch the changes to " + change + ", it is left out of the instrumentation")
+        }
+    }
+
+    /**
+     * 补丁缓存中有相同输入的patch.jar时直接复制过来,跳过生成$override类、patch loader和dex;
+     * 否则生成补丁,并记录key供dex之后存入缓存
+     */
+    private static void buildPatch(File outputDir, File preVersionDir, SortedMap<String, HashIndex.Digest> changedEntries,
+                                   PatchCache patchCache, String patchOptions, Closure generatePatch) {
+        FileUtils.deleteIfExists(new File(outputDir, PatchCache.PATCH_KEY))
+        if (patchCache == null) {
+            generatePatch()
+            return
+        }
+        def patchKey = PatchCache.getKey(preVersionDir, changedEntries, patchOptions)
+        if (patchCache.restore(patchKey, new File(outputDir, RocooUtils.PATCH_NAME))) {
+            logger.info("Anole patch restored from cache: " + patchKey)
+            return
+        }
+        generatePatch()
+        PatchCache.writeKey(outputDir, patchKey)
+    }
+
+    private static void writeFile(byte[] bytes, File outputFile) throws IOException {
+        OutputStream ops = new FileOutputStream(outputFile);
+        try {
+            ops.write(bytes)
+        } finally {
+            ops.close()
         }
     }
 
@@ -6,6 +6,7 @@ package dodola.anole.lib
 import groovy.transform.CompileStatic
 import org.gradle.api.Project
 import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Optional
 
 @CompileStatic
 class RocooFixExtension {
@@ -18,18 +19,142 @@ class RocooFixExtension {
     @Input
     boolean showLog = false
 
+    /**
+     * Packages to instrument, all of them if empty. Packages match their sub packages and can be
+     * globs or regular expressions prefixed with {@code regex:}, see {@link InstrumentationFilter}.
+     */
     @Input
     HashSet<String> includePackage = [];
 
+    /**
+     * Packages not to instrument, their classes can not be patched: the patch build warns about
+     * their changes.
+     */
     @Input
     HashSet<String> excludePackage = [];
 
+    /**
+     * Classes not to instrument, with their inner classes.
+     */
     @Input
     HashSet<String> excludeClass = [];
 
+    /**
+     * Annotations, as class names, of the classes and methods not to instrument. They must be
+     * kept in the class files, with a CLASS or RUNTIME retention.
+     */
+    @Input
+    HashSet<String> excludeAnnotation = [];
+
+    /**
+     * Method profile whose hot methods are not redirected, either an ART baseline profile or a
+     * call count dump, see {@link MethodProfile}. Changes to these methods can not be patched, the
+     * patch build warns about them.
+     */
+    @Input
+    @Optional
+    String hotMethodProfile
+
+    /**
+     * Call count from which a method of a call count dump is hot.
+     */
+    @Input
+    long hotMethodThreshold = 10000
+
+    /**
+     * Methods whose code is smaller than this many bytes are not redirected, changes to them can
+     * not be patched.
+     */
+    @Input
+    int minRedirectedMethodSize = 0
+
     @Input
     String preVersionPath
 
+    /**
+     * Number of threads used to instrument classes, 0 uses all available cores and 1 keeps
+     * instrumenting on the build thread.
+     */
+    @Input
+    int parallelism = 0
+
+    /**
+     * Instruments the ProGuard output jar entry by entry into a new jar instead of extracting it
+     * to intermediate directories.
+     */
+    @Input
+    boolean streaming = true
+
+    /**
+     * Compression level of the instrumented jars, streamed or rebuilt from the extracted ProGuard
+     * output, from 0, which stores the entries as dx reads the jar right away, to 9, or -1 for
+     * the default level. The entries are compressed on {@link #parallelism} threads.
+     */
+    @Input
+    int jarCompressionLevel = -1
+
+    /**
+     * Instruments the classes incrementally in a Transform before they are dexed, which also
+     * writes the hash index and the patch, instead of instrumenting the ProGuard output jar.
+     * Meant for builds without ProGuard.
+     */
+    @Input
+    boolean transform = false
+
+    /**
+     * Dispatches the redirected methods on integer ids with a tableswitch instead of comparing
+     * their names. The ids of each version are saved next to its hash.idx in methodids.txt.
+     */
+    @Input
+    boolean intDispatch = true
+
+    /**
+     * Adds static accessors to the instrumented classes for their overrides to reach private
+     * fields and inherited methods without reflection, see {@link Accessors}. They add to the dex
+     * method count, without them the patches go through reflection. The classes disabled by
+     * annotation never get any.
+     */
+    @Input
+    boolean accessors = true
+
+    /**
+     * Dexes the patch with the dx of the build tools loaded in the Gradle process, kept loaded
+     * across builds by the daemon, instead of running the dx script. The script is still run when
+     * the dx.jar can not be loaded.
+     */
+    @Input
+    boolean inProcessDex = true
+
+    /**
+     * Reuses the patch.jar of an earlier build, kept in the Gradle user home, when the classes
+     * changed since the previous version and the options are the same, see {@link PatchCache}.
+     */
+    @Input
+    boolean patchCache = true
+
+    /**
+     * Returns the filter selecting the classes and methods to instrument.
+     */
+    InstrumentationFilter createFilter(Project project) {
+        MethodProfile hotMethods = hotMethodProfile != null
+                ? MethodProfile.read(project.file(hotMethodProfile), hotMethodThreshold)
+                : null
+        return new InstrumentationFilter(includePackage, excludePackage, excludeClass,
+                excludeAnnotation, hotMethods, minRedirectedMethodSize)
+    }
+
+    /**
+     * Returns the options of the instrumentation and of the patches of the build.
+     */
+    InstrumentationOptions createOptions(Project project, InstrumentationReport report) {
+        return InstrumentationOptions.builder()
+                .setIntDispatch(intDispatch)
+                .setFilter(createFilter(project))
+                .setReport(report)
+                .setAccessors(accessors)
+                .build()
+    }
+
     public static RocooFixExtension getConfig(Project project) {
         RocooFixExtension config =
                 project.getExtensions().findByType(RocooFixExtension.class);
@@ -7,16 +7,14 @@ import com.android.SdkConstants
 import com.android.build.gradle.api.BaseVariant
 import com.google.common.collect.Sets
 import groovy.xml.Namespace
-import org.apache.commons.codec.digest.DigestUtils
 import org.apache.commons.io.FileUtils
-import org.apache.commons.io.IOUtils
 import org.apache.tools.ant.taskdefs.condition.Os
 import org.gradle.api.Project
 import org.gradle.api.Task
 
 public class RocooUtils {
     private static final String MAP_SEPARATOR = ":"
-    private static final String PATCH_NAME = "patch.jar"
+    public static final String PATCH_NAME = "patch.jar"
 
     public static boolean notSame(Map map, String name, String hash) {
         def notSame = false
@@ -59,42 +57,8 @@ public class RocooUtils {
         return manifest.application[0].attribute(androidTag.name)
     }
 
-    private static List<String> getFilesHash(String baseDirectoryPath, File directoryFile) {
-        List<String> javaFiles = new ArrayList<String>();
-
-        File[] children = directoryFile.listFiles();
-        if (children == null) {
-            return javaFiles;
-        }
-
-        for (final File file : children) {
-            if (file.isDirectory()) {
-                List<String> tempList = getFilesHash(baseDirectoryPath, file);
-                if (!tempList.isEmpty()) {
-                    javaFiles.addAll(tempList);
-                }
-            } else {
-                InputStream is = new FileInputStream(file);
-                def hash = DigestUtils.shaHex(IOUtils.toByteArray(is))
-                javaFiles.add(hash)
-
-                is.close()
-            }
-        }
-
-        return javaFiles;
-    }
-
     public static makeDex(Project project, File classDir) {
         if (classDir.listFiles() != null && classDir.listFiles().size()) {
-            StringBuilder builder = new StringBuilder();
-
-            def baseDirectoryPath = classDir.getAbsolutePath() + File.separator;
-            getFilesHash(baseDirectoryPath, classDir).each {
-                builder.append(it)
-            }
-            def hash = DigestUtils.shaHex(builder.toString().bytes)
-
             def sdkDir
 
             Properties properties = new Properties()
@@ -107,24 +71,43 @@ public class RocooUtils {
             }
 
             if (sdkDir) {
-                def cmdExt = Os.isFamily(Os.FAMILY_WINDOWS) ? '.bat' : ''
+                def buildToolsDir = new File("${sdkDir}${File.separator}build-tools${File.separator}${project.android.buildToolsVersion}")
+                def patchFile = new File(classDir.getParent(), PATCH_NAME)
+                //两种方式的dx输出都收集到stdout中
                 def stdout = new ByteArrayOutputStream()
-                project.exec {
-                    commandLine "${sdkDir}${File.separator}build-tools${File.separator}${project.android.buildToolsVersion}${File.separator}dx${cmdExt}",
-                            '--dex',
-                            "--output=${new File(classDir.getParent(), PATCH_NAME).absolutePath}",
-                            "${classDir.absolutePath}"
-                    standardOutput = stdout
+                //在gradle进程中运行dx,dx.jar加载一次后在daemon中复用,加载失败时再调用dx脚本
+                if (!RocooFixExtension.getConfig(project).inProcessDex
+                        || !InProcessDexer.dex(new File(buildToolsDir, "lib${File.separator}dx.jar"), classDir, patchFile, stdout)) {
+                    def cmdExt = Os.isFamily(Os.FAMILY_WINDOWS) ? '.bat' : ''
+                    project.exec {
+                        commandLine "${buildToolsDir}${File.separator}dx${cmdExt}",
+                                '--dex',
+                                "--output=${patchFile.absolutePath}",
+                                "${classDir.absolutePath}"
+                        standardOutput = stdout
+                    }
                 }
                 def error = stdout.toString().trim()
                 if (error) {
                     println "dex error:" + error
                 }
+                //补丁生成时记录了key的,存入补丁缓存
+                def patchKey = PatchCache.takeKey(classDir.getParentFile())
+                if (patchKey != null && patchFile.isFile()) {
+                    getPatchCache(project).put(patchKey, patchFile)
+                }
             } else {
             }
         }
     }
 
+    /**
+     * 补丁缓存放在gradle用户目录下,clean之后和不同项目之间都可以复用
+     */
+    static PatchCache getPatchCache(Project project) {
+        return new PatchCache(new File(project.gradle.gradleUserHomeDir, "caches${File.separator}anole${File.separator}patches"))
+    }
+
     static String getProcessManifestTaskName(Project project, BaseVariant variant) {
         return "process${variant.name.capitalize()}Manifest"
     }
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Static accessors added to each instrumented class so that its override class reaches the
+ * members it cannot access with ordinary instructions without going through reflection:
+ * <ul>
+ * <li>{@code access$get$field} and {@code access$set$field} for the private fields of the class,
+ * final fields only have a getter.</li>
+ * <li>{@code access$invoke$method} for the methods the class invokes on itself without declaring
+ * them, which it inherits and may be protected.</li>
+ * </ul>
+ * Instance accessors take the instance as their first argument. The accessors of each class are
+ * recorded with its method ids, see {@link MethodIds}, as a patch can only use those of the
+ * version it is applied to.
+ * <p>
+ * The classes whose instrumentation is disabled by an annotation get no accessors, no patch
+ * overrides them. The accessors can also be turned off altogether to save their share of the
+ * dex method count, the overrides then go through reflection.
+ */
+public class Accessors {
+
+    public static final String GET_PREFIX = "access$get$";
+
+    public static final String SET_PREFIX = "access$set$";
+
+    public static final String INVOKE_PREFIX = "access$invoke$";
+
+    private static final int ACCESS =
+            Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+
+    /**
+     * Returns the {@code name.desc} of the accessors of a class, in the order they are added.
+     */
+    public static List<String> getAccessors(ClassNode classNode) {
+        List<String> accessors = new ArrayList<String>();
+        for (Map.Entry<String, Accessor> entry : collect(classNode).entrySet()) {
+            accessors.add(entry.getKey());
+        }
+        return accessors;
+    }
+
+    /**
+     * Returns whether a class gets accessors, which it does not if an annotation disables its
+     * instrumentation.
+     */
+    public static boolean hasAccessors(ClassNode classNode, InstrumentationFilter filter) {
+        return !isDisabled(classNode.visibleAnnotations, filter)
+                && !isDisabled(classNode.invisibleAnnotations, filter);
+    }
+
+    /**
+     * Adds the accessors of a class to its instrumented version.
+     */
+    public static void addAccessors(ClassVisitor cv, ClassNode classNode) {
+        for (Map.Entry<String, Accessor> entry : collect(classNode).entrySet()) {
+            String accessor = entry.getKey();
+            int separator = accessor.indexOf('.');
+            entry.getValue().generate(cv, classNode.name, new Method(
+                    accessor.substring(0, separator), accessor.substring(separator + 1)));
+        }
+    }
+
+    public static String getGetterDesc(String owner, String desc, boolean isStatic) {
+        return "(" + (isStatic ? "" : "L" + owner + ";") + ")" + desc;
+    }
+
+    public static String getSetterDesc(String owner, String desc, boolean isStatic) {
+        return "(" + (isStatic ? "" : "L" + owner + ";") + desc + ")V";
+    }
+
+    public static String getInvokerDesc(String owner, String desc, boolean isStatic) {
+        return isStatic ? desc : "(L" + owner + ";" + desc.substring(1);
+    }
+
+    private static boolean isDisabled(List<AnnotationNode> annotations,
+                                      InstrumentationFilter filter) {
+        if (annotations != null) {
+            for (AnnotationNode annotation : annotations) {
+                if (filter.isDisabledBy(annotation.desc)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, Accessor> collect(ClassNode classNode) {
+        Map<String, Accessor> accessors = new TreeMap<String, Accessor>();
+        if ((classNode.access & Opcodes.ACC_INTERFACE) != 0) {
+            return accessors;
+        }
+        String owner = classNode.name;
+        //noinspection unchecked ASM api.
+        for (FieldNode field : (List<FieldNode>) classNode.fields) {
+            if ((field.access & Opcodes.ACC_PRIVATE) == 0) {
+                continue;
+            }
+            boolean isStatic = (field.access & Opcodes.ACC_STATIC) != 0;
+            accessors.put(GET_PREFIX + field.name + "."
+                            + getGetterDesc(owner, field.desc, isStatic),
+                    new Accessor(isStatic ? Opcodes.GETSTATIC : Opcodes.GETFIELD,
+                            field.name, field.desc));
+            if ((field.access & Opcodes.ACC_FINAL) == 0) {
+                accessors.put(SET_PREFIX + field.name + "."
+                                + getSetterDesc(owner, field.desc, isStatic),
+                        new Accessor(isStatic ? Opcodes.PUTSTATIC : Opcodes.PUTFIELD,
+                                field.name, field.desc));
+            }
+        }
+
+        Set<String> declared = new HashSet<String>();
+        //noinspection unchecked ASM api.
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            declared.add(method.name + "." + method.desc);
+        }
+        Set<String> ambiguous = new HashSet<String>();
+        //noinspection unchecked ASM api.
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            if (method.instructions == null) {
+                continue;
+            }
+            for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null;
+                    insn = insn.getNext()) {
+                if (!(insn instanceof MethodInsnNode)) {
+                    continue;
+                }
+                MethodInsnNode call = (MethodInsnNode) insn;
+                if (!call.owner.equals(owner) || call.itf
+                        || (call.getOpcode() != Opcodes.INVOKEVIRTUAL
+                        && call.getOpcode() != Opcodes.INVOKESTATIC)
+                        || declared.contains(call.name + "." + call.desc)) {
+                    continue;
+                }
+                boolean isStatic = call.getOpcode() == Opcodes.INVOKESTATIC;
+                String accessor = INVOKE_PREFIX + call.name + "."
+                        + getInvokerDesc(owner, call.desc, isStatic);
+                Accessor previous = accessors.get(accessor);
+                if (previous != null && previous.opcode != call.getOpcode()) {
+                    // a static and a virtual method would have the same accessor.
+                    ambiguous.add(accessor);
+                }
+                accessors.put(accessor, new Accessor(call.getOpcode(), call.name, call.desc));
+            }
+        }
+        accessors.keySet().removeAll(ambiguous);
+        return accessors;
+    }
+
+    private static final class Accessor {
+        private final int opcode;
+        private final String name;
+        private final String desc;
+
+        Accessor(int opcode, String name, String desc) {
+            this.opcode = opcode;
+            this.name = name;
+            this.desc = desc;
+        }
+
+        void generate(ClassVisitor cv, String owner, Method m) {
+            MethodVisitor visitor = cv.visitMethod(ACCESS, m.getName(), m.getDescriptor(),
+                    null, null);
+            GeneratorAdapter mv = new GeneratorAdapter(ACCESS, m, visitor);
+            mv.visitCode();
+            mv.loadArgs();
+            switch (opcode) {
+                case Opcodes.GETFIELD:
+                case Opcodes.PUTFIELD:
+                case Opcodes.GETSTATIC:
+                case Opcodes.PUTSTATIC:
+                    mv.visitFieldInsn(opcode, owner, name, desc);
+                    break;
+                default:
+                    mv.visitMethodInsn(opcode, owner, name, desc, false);
+                    break;
+            }
+            mv.returnValue();
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+}
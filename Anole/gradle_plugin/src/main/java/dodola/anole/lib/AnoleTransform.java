@@ -1,60 +1,543 @@
 /*
  * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
  */
-package dodola.anole.lib;///*
-// * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
-// */
-//package dodola.anole.lib;
-//
-//import com.android.build.api.transform.Context;
-//import com.android.build.api.transform.DirectoryInput;
-//import com.android.build.api.transform.QualifiedContent;
-//import com.android.build.api.transform.Transform;
-//import com.android.build.api.transform.TransformException;
-//import com.android.build.api.transform.TransformInput;
-//import com.android.build.api.transform.TransformOutputProvider;
-//import com.android.build.gradle.internal.pipeline.TransformManager;
-//
-//import java.io.IOException;
-//import java.util.Collection;
-//import java.util.Set;
-//
-///**
-// * Created by sunpengfei on 16/9/15.
-// */
-//
-//public class AnoleTransform extends Transform {
-//    @Override
-//    public String getName() {
-//        return "dodola";
-//    }
-//
-//    @Override
-//    public Set<QualifiedContent.ContentType> getInputTypes() {
-//        return TransformManager.CONTENT_CLASS;
-//    }
-//
-//    @Override
-//    public Set<QualifiedContent.Scope> getScopes() {
-//        return TransformManager.SCOPE_FULL_PROJECT;
-//    }
-//
-//    @Override
-//    public boolean isIncremental() {
-//        return false;
-//    }
-//
-//    @Override
-//    public void transform(Context context, Collection<TransformInput> inputs, Collection<TransformInput> referencedInputs, TransformOutputProvider outputProvider, boolean isIncremental) throws IOException, TransformException, InterruptedException {
-////        super.transform(context, inputs, referencedInputs, outputProvider, isIncremental);
-//
-//        for (TransformInput input : inputs) {
-//            Collection<DirectoryInput> directoryInputs = input.getDirectoryInputs();
-//            for (DirectoryInput directoryInput : directoryInputs) {
-//                System.out.println("====" + directoryInput.getFile().getAbsolutePath());
-//                IncrementalSupportVisitor.mainMe(new String[]{directoryInput.getFile().getAbsolutePath(), directoryInput.getFile().getAbsolutePath()});
-//
-//            }
-//        }
-//    }
-//}
+package dodola.anole.lib;
+
+import com.android.build.api.transform.Context;
+import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.Format;
+import com.android.build.api.transform.JarInput;
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.Status;
+import com.android.build.api.transform.Transform;
+import com.android.build.api.transform.TransformException;
+import com.android.build.api.transform.TransformInput;
+import com.android.build.api.transform.TransformOutputProvider;
+import com.android.build.gradle.BaseExtension;
+import com.android.build.gradle.internal.pipeline.TransformManager;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
+
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Instruments the classes of the app before they are dexed, as an incremental {@link Transform}.
+ * <p>
+ * Only the inputs reported as changed are processed again and the output of every class is kept
+ * in an {@link InstrumentationCache}, so that an incremental build costs in proportion to the
+ * size of the change instead of the size of the app. A full build, which goes through the cache
+ * as well, is only done when the change can affect untouched classes: a jar changed or was
+ * removed, or the methods of a class that may be extended changed.
+ * <p>
+ * As the transform sees the classes before they are instrumented, it also maintains the hash index
+ * of the variant and builds the patch against the previous version, which rocooJarBeforeDex does
+ * on the ProGuard output otherwise.
+ * <p>
+ * The transform is registered when the plugin is applied, before the extension is evaluated, and
+ * only copies its inputs over unless {@link RocooFixExtension#transform} is set.
+ */
+public class AnoleTransform extends Transform {
+
+    private static final String STATE_FILE = "state.properties";
+    // class internal names never contain dots, so this key does not collide with a signature.
+    private static final String STATE_CONFIG = "anole.config";
+    private static final String PACKAGE_INFO = "package-info";
+
+    private final Project project;
+    private final Map<String, VariantOutput> variantOutputs =
+            new ConcurrentHashMap<String, VariantOutput>();
+
+    /**
+     * Where the hash index and the patch of a variant are written.
+     */
+    public static final class VariantOutput {
+
+        private final File outputDir;
+        private final File patchDir;
+        private final File preVersionDir;
+
+        /**
+         * @param outputDir     the folder of the variant in the version folder, which holds the
+         *                      hash index.
+         * @param patchDir      the folder the patch classes are written to.
+         * @param preVersionDir the folder of the variant in the version to build the patch
+         *                      against, or null.
+         */
+        public VariantOutput(File outputDir, File patchDir, File preVersionDir) {
+            this.outputDir = outputDir;
+            this.patchDir = patchDir;
+            this.preVersionDir = preVersionDir;
+        }
+    }
+
+    public AnoleTransform(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Sets where to write the hash index and the patch of a variant. Variants without output are
+     * only instrumented.
+     */
+    public void setVariantOutput(String variantName, VariantOutput output) {
+        variantOutputs.put(variantName, output);
+    }
+
+    @Override
+    public String getName() {
+        return "dodola";
+    }
+
+    @Override
+    public Set<QualifiedContent.ContentType> getInputTypes() {
+        return TransformManager.CONTENT_CLASS;
+    }
+
+    @Override
+    public Set<QualifiedContent.Scope> getScopes() {
+        return TransformManager.SCOPE_FULL_PROJECT;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return true;
+    }
+
+    @Override
+    public void transform(Context context, Collection<TransformInput> inputs,
+                          Collection<TransformInput> referencedInputs,
+                          TransformOutputProvider outputProvider, boolean isIncremental)
+            throws IOException, TransformException, InterruptedException {
+
+        RocooFixExtension config = RocooFixExtension.getConfig(project);
+        VariantOutput variantOutput = config.transform ? getVariantOutput(context.getPath()) : null;
+
+        // the signatures of the classes of the previous build, and the configuration it ran with.
+        File stateFile = new File(context.getTemporaryDir(), STATE_FILE);
+        Properties state = loadState(stateFile);
+        InstrumentationOptions options = config.createOptions(project,
+                new InstrumentationReport());
+        InstrumentationFilter filter = options.getFilter();
+        String stateConfig = config.transform + File.pathSeparator + config.preVersionPath
+                + File.pathSeparator + config.intDispatch + File.pathSeparator
+                + config.accessors + File.pathSeparator + filter.getCacheKey();
+        if (!stateConfig.equals(state.getProperty(STATE_CONFIG))
+                || (variantOutput != null && !HashIndex.isCurrent(variantOutput.outputDir))) {
+            isIncremental = false;
+        }
+        // the classes are compared by their bytes with the index of an older plugin, which the
+        // digests kept in the index of this version do not allow for the untouched classes.
+        if (variantOutput != null && variantOutput.preVersionDir != null
+                && HashIndex.isOutdated(variantOutput.preVersionDir)) {
+            isIncremental = false;
+        }
+
+        ClassHierarchy classHierarchy = config.transform
+                ? new ClassHierarchy(getClassPath(inputs, referencedInputs))
+                : null;
+        try {
+            if (isIncremental && classHierarchy != null
+                    && hasNonLocalChanges(inputs, classHierarchy, state)) {
+                isIncremental = false;
+            }
+            if (!isIncremental) {
+                outputProvider.deleteAll();
+                state.clear();
+            }
+
+            TransformRun run = new TransformRun(project.getLogger(), config, options,
+                    classHierarchy, state,
+                    new InstrumentationCache(new File(context.getTemporaryDir(), "cache")),
+                    variantOutput, isIncremental);
+            for (TransformInput input : inputs) {
+                for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
+                    run.transformDirectory(directoryInput, outputProvider.getContentLocation(
+                            directoryInput.getName(), directoryInput.getContentTypes(),
+                            directoryInput.getScopes(), Format.DIRECTORY));
+                }
+                for (JarInput jarInput : input.getJarInputs()) {
+                    run.transformJar(jarInput, outputProvider.getContentLocation(
+                            jarInput.getName(), jarInput.getContentTypes(),
+                            jarInput.getScopes(), Format.JAR));
+                }
+            }
+            run.finish();
+        } finally {
+            if (classHierarchy != null) {
+                classHierarchy.close();
+            }
+        }
+
+        state.setProperty(STATE_CONFIG, stateConfig);
+        saveState(stateFile, state);
+    }
+
+    /**
+     * Returns whether the changed inputs may change the instrumentation of inputs that did not
+     * change, in which case everything must be instrumented again.
+     */
+    private static boolean hasNonLocalChanges(Collection<TransformInput> inputs,
+                                              ClassHierarchy classHierarchy, Properties state) {
+        for (TransformInput input : inputs) {
+            for (JarInput jarInput : input.getJarInputs()) {
+                // the classes of a jar are not tracked one by one.
+                if (jarInput.getStatus() == Status.CHANGED
+                        || jarInput.getStatus() == Status.REMOVED) {
+                    return true;
+                }
+            }
+            for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
+                for (Map.Entry<File, Status> entry : directoryInput.getChangedFiles().entrySet()) {
+                    if (isNonLocalChange(FileUtils.relativePossiblyNonExistingPath(
+                            entry.getKey(), directoryInput.getFile()), entry.getValue(),
+                            classHierarchy, state)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether a changed file of a directory input may change the instrumentation of
+     * other classes: a package-info, whose annotations can disable the instrumentation of its
+     * package, or a class whose signature changed, its subclasses being instrumented against it.
+     *
+     * @param path  the path of the file, relative to the directory input.
+     * @param state the signatures of the classes instrumented by the previous build, by name.
+     */
+    static boolean isNonLocalChange(String path, Status status, ClassHierarchy classHierarchy,
+                                    Properties state) {
+        String className = getClassName(path);
+        if (className == null || status == Status.NOTCHANGED) {
+            return false;
+        }
+        if (className.equals(PACKAGE_INFO) || className.endsWith("/" + PACKAGE_INFO)) {
+            return true;
+        }
+        if (status != Status.CHANGED && status != Status.REMOVED) {
+            return false;
+        }
+        String signature = state.getProperty(className);
+        if (signature == null) {
+            return false;
+        }
+        ClassNode classNode = classHierarchy.getClassNode(className);
+        return classNode == null
+                || !signature.equals(InstrumentationCache.getSignature(classNode));
+    }
+
+    /**
+     * State of a single invocation of the transform.
+     */
+    private static final class TransformRun {
+
+        private final Logger logger;
+        private final RocooFixExtension config;
+        private final InstrumentationFilter filter;
+        private final ClassHierarchy classHierarchy;
+        private final Properties state;
+        private final InstrumentationCache cache;
+        private final VariantOutput variantOutput;
+        private final boolean incremental;
+        private final HashIndex.Builder hashes;
+        private final HashIndex preHashes;
+        private final MethodIds previousIds;
+        private final InstrumentationReport report;
+        private final IncrementalVisitor.VisitorBuilder supportVisitorBuilder;
+        private final MethodIds methodIds;
+        private final IncrementalVisitor.VisitorBuilder changeVisitorBuilder;
+
+        TransformRun(Logger logger, RocooFixExtension config, InstrumentationOptions options,
+                     ClassHierarchy classHierarchy, Properties state,
+                     InstrumentationCache cache, VariantOutput variantOutput,
+                     boolean incremental) throws IOException {
+            this.logger = logger;
+            this.config = config;
+            this.filter = options.getFilter();
+            this.report = options.getReport();
+            this.classHierarchy = classHierarchy;
+            this.state = state;
+            this.cache = cache;
+            this.variantOutput = variantOutput;
+            this.incremental = incremental;
+            this.supportVisitorBuilder = IncrementalSupportVisitor.newVisitorBuilder(options);
+            if (variantOutput == null) {
+                hashes = null;
+                preHashes = null;
+                methodIds = null;
+                previousIds = null;
+                changeVisitorBuilder = null;
+                return;
+            }
+            if (incremental) {
+                hashes = HashIndex.Builder.read(variantOutput.outputDir);
+                methodIds = MethodIds.read(
+                        new File(variantOutput.outputDir, MethodIds.METHOD_IDS_TXT), options);
+            } else {
+                hashes = new HashIndex.Builder();
+                methodIds = new MethodIds(options);
+                FileUtils.mkdirs(variantOutput.patchDir);
+                FileUtils.emptyFolder(variantOutput.patchDir);
+            }
+            if (variantOutput.preVersionDir != null) {
+                preHashes = HashIndex.read(variantOutput.preVersionDir);
+                // the patch dispatches on the ids the previous version was instrumented with.
+                previousIds = MethodIds.read(
+                        new File(variantOutput.preVersionDir, MethodIds.METHOD_IDS_TXT));
+                changeVisitorBuilder = IncrementalChangeVisitor.newVisitorBuilder(
+                        previousIds, options);
+            } else {
+                preHashes = null;
+                previousIds = null;
+                changeVisitorBuilder = null;
+            }
+        }
+
+        void transformDirectory(DirectoryInput input, File outputDir) throws IOException {
+            File inputDir = input.getFile();
+            List<File> files;
+            if (incremental) {
+                files = new ArrayList<File>();
+                for (Map.Entry<File, Status> entry : input.getChangedFiles().entrySet()) {
+                    File file = entry.getKey();
+                    String path = FileUtils.toSystemIndependentPath(
+                            FileUtils.relativePossiblyNonExistingPath(file, inputDir));
+                    switch (entry.getValue()) {
+                        case ADDED:
+                        case CHANGED:
+                            if (file.isFile()) {
+                                files.add(file);
+                            }
+                            break;
+                        case REMOVED:
+                            FileUtils.deleteIfExists(new File(outputDir,
+                                    FileUtils.toSystemDependentPath(path)));
+                            onEntryRemoved(path);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                Collections.sort(files);
+            } else if (inputDir.isDirectory()) {
+                files = Files.fileTreeTraverser().preOrderTraversal(inputDir)
+                        .filter(Files.isFile()).toSortedList(Ordering.natural());
+            } else {
+                return;
+            }
+
+            if (classHierarchy == null) {
+                for (File file : files) {
+                    File outputFile = new File(outputDir, FileUtils.relativePath(file, inputDir));
+                    Files.createParentDirs(outputFile);
+                    Files.copy(file, outputFile);
+                }
+                return;
+            }
+            for (File file : files) {
+                String path = FileUtils.toSystemIndependentPath(
+                        FileUtils.relativePath(file, inputDir));
+                onEntry(path, Files.toByteArray(file));
+                String className = getClassName(path);
+                ClassNode classNode = className != null
+                        ? classHierarchy.getClassNode(className)
+                        : null;
+                if (classNode != null) {
+                    state.setProperty(className, InstrumentationCache.getSignature(classNode));
+                }
+            }
+            IncrementalVisitor.instrumentFiles(inputDir, files, outputDir,
+                    supportVisitorBuilder, config.parallelism,
+                    classHierarchy, cache);
+        }
+
+        void transformJar(JarInput input, File outputJar) throws IOException {
+            if (incremental && input.getStatus() == Status.NOTCHANGED) {
+                return;
+            }
+            if (input.getStatus() == Status.REMOVED) {
+                FileUtils.deleteIfExists(outputJar);
+                return;
+            }
+            Files.createParentDirs(outputJar);
+            if (classHierarchy == null) {
+                Files.copy(input.getFile(), outputJar);
+                return;
+            }
+            IncrementalVisitor.instrumentJar(input.getFile(), outputJar,
+                    supportVisitorBuilder, classHierarchy, config.parallelism,
+                    config.jarCompressionLevel, new IncrementalVisitor.JarEntryListener() {
+                        @Override
+                        public void onEntry(String entryName, byte[] bytes) throws IOException {
+                            if (!entryName.endsWith("/")) {
+                                TransformRun.this.onEntry(entryName, bytes);
+                            }
+                        }
+                    }, cache);
+        }
+
+        /**
+         * Records the hash of an input and updates its patch class.
+         */
+        private void onEntry(String path, byte[] bytes) throws IOException {
+            if (variantOutput == null) {
+                return;
+            }
+            HashIndex.Digest digest = HashIndex.Digest.of(path, bytes, preHashes);
+            hashes.put(path, digest);
+            if (!path.endsWith(SdkConstants.DOT_CLASS)) {
+                return;
+            }
+            methodIds.record(bytes);
+            if (preHashes == null) {
+                return;
+            }
+            if (preHashes.isChanged(path, digest)) {
+                for (String change : previousIds.getUnpatchableChanges(bytes, filter)) {
+                    logger.warn("Anole cannot patch the changes to " + change
+                            + ", it is left out of the instrumentation");
+                }
+                IncrementalVisitor.instrumentClass(path, bytes, variantOutput.patchDir,
+                        changeVisitorBuilder, classHierarchy);
+            } else {
+                // changed back to the previous version.
+                FileUtils.deleteIfExists(getPatchFile(path));
+            }
+        }
+
+        private void onEntryRemoved(String path) throws IOException {
+            String className = getClassName(path);
+            if (className != null) {
+                state.remove(className);
+            }
+            if (variantOutput == null) {
+                return;
+            }
+            hashes.remove(path);
+            if (className != null) {
+                methodIds.remove(className);
+                FileUtils.deleteIfExists(getPatchFile(path));
+            }
+        }
+
+        private File getPatchFile(String path) {
+            return new File(variantOutput.patchDir, FileUtils.toSystemDependentPath(
+                    IncrementalChangeVisitor.VISITOR_BUILDER.getMangledRelativeClassFilePath(path)));
+        }
+
+        /**
+         * Writes the hash index, the method ids, the instrumentation report and the patch loader,
+         * and drops the cache entries no class uses anymore after a full build.
+         */
+        void finish() throws IOException {
+            if (!incremental && classHierarchy != null) {
+                cache.trim();
+            }
+            if (variantOutput == null) {
+                return;
+            }
+            hashes.write(variantOutput.outputDir);
+            methodIds.write(new File(variantOutput.outputDir, MethodIds.METHOD_IDS_TXT));
+            report.write(new File(variantOutput.outputDir,
+                    InstrumentationReport.INSTRUMENTATION_TXT));
+
+            if (preHashes != null) {
+                List<String> changedFiles = new ArrayList<String>();
+                for (Map.Entry<String, HashIndex.Digest> entry : hashes.getEntries().entrySet()) {
+                    String className = getClassName(entry.getKey());
+                    if (className != null && filter.isIncluded(className)
+                            && preHashes.isChanged(entry.getKey(), entry.getValue())) {
+                        changedFiles.add(className.replace('/', '.'));
+                    }
+                }
+                InstantRunTransform.writePatchFileContents(changedFiles, variantOutput.patchDir);
+            }
+        }
+    }
+
+    private VariantOutput getVariantOutput(String taskPath) {
+        // the task is named transformClassesWithDodolaFor<Variant>.
+        for (Map.Entry<String, VariantOutput> entry : variantOutputs.entrySet()) {
+            String variantName = entry.getKey();
+            if (taskPath.endsWith("For" + Character.toUpperCase(variantName.charAt(0))
+                    + variantName.substring(1))) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private List<File> getClassPath(Collection<TransformInput> inputs,
+                                    Collection<TransformInput> referencedInputs) {
+        List<File> classPath = new ArrayList<File>();
+        List<TransformInput> allInputs = new ArrayList<TransformInput>(inputs);
+        allInputs.addAll(referencedInputs);
+        for (TransformInput input : allInputs) {
+            for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
+                if (directoryInput.getFile().isDirectory()) {
+                    classPath.add(directoryInput.getFile());
+                }
+            }
+            for (JarInput jarInput : input.getJarInputs()) {
+                if (jarInput.getStatus() != Status.REMOVED && jarInput.getFile().isFile()) {
+                    classPath.add(jarInput.getFile());
+                }
+            }
+        }
+        classPath.addAll(project.getExtensions().getByType(BaseExtension.class).getBootClasspath());
+        return classPath;
+    }
+
+    /**
+     * Returns the internal name of the class of a relative path, or null if the path is not a
+     * class file.
+     */
+    private static String getClassName(String path) {
+        if (!path.endsWith(SdkConstants.DOT_CLASS)) {
+            return null;
+        }
+        return FileUtils.toSystemIndependentPath(path)
+                .substring(0, path.length() - SdkConstants.DOT_CLASS.length());
+    }
+
+    private static Properties loadState(File stateFile) throws IOException {
+        Properties state = new Properties();
+        if (stateFile.isFile()) {
+            InputStream inputStream = new FileInputStream(stateFile);
+            try {
+                state.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+        return state;
+    }
+
+    private static void saveState(File stateFile, Properties state) throws IOException {
+        Files.createParentDirs(stateFile);
+        OutputStream outputStream = new FileOutputStream(stateFile);
+        try {
+            state.store(outputStream, null);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rewrites a class in a canonical form that only changes with what the class declares and does,
+ * to tell the classes whose behaviour changed from the ones that were only recompiled.
+ * <p>
+ * The canonical form drops the debug information (source file, line numbers, local variables and
+ * parameter names) and the stack map frames, lists the fields and methods sorted by name and
+ * descriptor, and builds a new constant pool in the order the class uses it. Two compilations of
+ * the same code that only moved lines or reordered the constant pool therefore have the same
+ * canonical form, like {@link MethodIds#hashMethod} for the code of a single method.
+ */
+public class ClassFingerprint {
+
+    private static final Comparator<FieldNode> FIELD_ORDER = new Comparator<FieldNode>() {
+        @Override
+        public int compare(FieldNode o1, FieldNode o2) {
+            int comparison = o1.name.compareTo(o2.name);
+            return comparison != 0 ? comparison : o1.desc.compareTo(o2.desc);
+        }
+    };
+
+    private static final Comparator<MethodNode> METHOD_ORDER = new Comparator<MethodNode>() {
+        @Override
+        public int compare(MethodNode o1, MethodNode o2) {
+            int comparison = o1.name.compareTo(o2.name);
+            return comparison != 0 ? comparison : o1.desc.compareTo(o2.desc);
+        }
+    };
+
+    private ClassFingerprint() {
+    }
+
+    /**
+     * Returns the canonical form of a class, or the class bytes themselves if they cannot be
+     * parsed.
+     */
+    public static byte[] canonicalize(byte[] classBytes) {
+        ClassNode classNode = new ClassNode();
+        try {
+            new ClassReader(classBytes).accept(classNode,
+                    ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        } catch (RuntimeException e) {
+            // not a class file, compared as is.
+            return classBytes;
+        }
+        //noinspection unchecked ASM api.
+        Collections.sort((List<FieldNode>) classNode.fields, FIELD_ORDER);
+        //noinspection unchecked ASM api.
+        Collections.sort((List<MethodNode>) classNode.methods, METHOD_ORDER);
+        // not built from the reader, so that the constant pool is not copied over.
+        ClassWriter writer = new ClassWriter(0);
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+}
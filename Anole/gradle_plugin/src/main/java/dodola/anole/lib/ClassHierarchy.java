@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Index of the classes visible to the instrumentation, built from the class files bytes only so
+ * no class is ever loaded in the build JVM.
+ * <p>
+ * Each class is parsed at most once, without its method bodies, and the resulting
+ * {@link ClassNode} (name, super class, interfaces, access, fields and methods) is shared by all
+ * the visitors to find the parents of an instrumented class. The stack map frames computation
+ * only needs the super types of the classes it merges, most of them from the platform jar: it
+ * reads their class header only, without building a node, and keeps their super type names
+ * interned. The annotations of the packages are read from all the package-info classes at once,
+ * the first time they are looked up. Lookups can be issued concurrently from several threads.
+ * <p>
+ * The returned nodes must be treated as read-only.
+ */
+public class ClassHierarchy implements Closeable {
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String PACKAGE_INFO = "package-info";
+
+    // Markers for classes that cannot be found on the class path.
+    private static final ClassNode MISSING = new ClassNode();
+    private static final TypeHeader MISSING_HEADER = new TypeHeader(0, null, new String[0]);
+
+    private final List<File> directories = new ArrayList<File>();
+    private final List<ZipFile> jars = new ArrayList<ZipFile>();
+    private final ConcurrentMap<String, ClassNode> classes =
+            new ConcurrentHashMap<String, ClassNode>();
+    private final ConcurrentMap<String, TypeHeader> headers =
+            new ConcurrentHashMap<String, TypeHeader>();
+    // the super types of many classes are the same few ones, kept once.
+    private final Interner<String> names = Interners.newStrongInterner();
+    // package internal name to the descriptors of its annotations, read on first use.
+    private volatile Map<String, Set<String>> packageAnnotations;
+
+    /**
+     * @param classPath directories and jars to look classes up from, in lookup order.
+     */
+    public ClassHierarchy(List<File> classPath) throws IOException {
+        for (File path : classPath) {
+            if (!path.exists()) {
+                close();
+                throw new IllegalArgumentException(
+                        String.format("Invalid class path element %s", path));
+            }
+            if (path.isDirectory()) {
+                directories.add(path);
+            } else {
+                jars.add(new ZipFile(path));
+            }
+        }
+    }
+
+    /**
+     * Creates an index from a {@link File#pathSeparatorChar} separated class path.
+     */
+    public static ClassHierarchy fromClassPath(String classPath) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (String path : Splitter.on(File.pathSeparatorChar).omitEmptyStrings().split(classPath)) {
+            files.add(new File(path));
+        }
+        return new ClassHierarchy(files);
+    }
+
+    /**
+     * Returns the class node for the passed internal name, or null if it cannot be found. The
+     * methods of the returned node have no code.
+     */
+    public ClassNode getClassNode(String internalName) {
+        ClassNode classNode = classes.get(internalName);
+        if (classNode == null) {
+            classNode = parse(internalName);
+            ClassNode previous = classes.putIfAbsent(internalName, classNode);
+            if (previous != null) {
+                classNode = previous;
+            }
+        }
+        return classNode == MISSING ? null : classNode;
+    }
+
+    /**
+     * Returns the super classes of the passed class, closest first, stopping at the first one that
+     * cannot be located.
+     */
+    public List<ClassNode> getParents(ClassNode classNode) {
+        return getSuperClasses(classNode.superName);
+    }
+
+    /**
+     * Returns the passed class and its super classes, closest first, stopping at the first one
+     * that cannot be located.
+     *
+     * @param superName the internal name of the direct super class, may be null.
+     */
+    public List<ClassNode> getSuperClasses(String superName) {
+        List<ClassNode> parentNodes = new ArrayList<ClassNode>();
+        String currentParentName = superName;
+        while (currentParentName != null) {
+            ClassNode parentNode = getClassNode(currentParentName);
+            if (parentNode == null) {
+                // Could not locate parent class. This is as far as we can go locating parents.
+                break;
+            }
+            parentNodes.add(parentNode);
+            currentParentName = parentNode.superName;
+        }
+        return parentNodes;
+    }
+
+    /**
+     * Bytecode equivalent of {@link Class#isAssignableFrom(Class)} on internal names.
+     */
+    public boolean isAssignableFrom(String type, String subType) {
+        if (type.equals(subType) || type.equals(OBJECT)) {
+            return true;
+        }
+        TypeHeader header = getRequiredHeader(subType);
+        if (header.superName != null && isAssignableFrom(type, header.superName)) {
+            return true;
+        }
+        for (String anInterface : header.interfaces) {
+            if (isAssignableFrom(type, anInterface)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same contract as {@link org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)}.
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        if (isAssignableFrom(type1, type2)) {
+            return type1;
+        }
+        if (isAssignableFrom(type2, type1)) {
+            return type2;
+        }
+        if (isInterface(type1) || isInterface(type2)) {
+            return OBJECT;
+        }
+        String superName = type1;
+        do {
+            superName = getRequiredHeader(superName).superName;
+        } while (superName != null && !isAssignableFrom(superName, type2));
+        return superName == null ? OBJECT : superName;
+    }
+
+    /**
+     * Returns whether the package-info of a package carries an annotation, visible at runtime or
+     * not. Like for the classes, the first package-info found in lookup order is the one of the
+     * package.
+     *
+     * @param packageName    the package internal name, like {@code com/foo}, empty for the
+     *                       default package.
+     * @param annotationDesc the annotation type descriptor.
+     */
+    public boolean isPackageAnnotated(String packageName, String annotationDesc) {
+        Set<String> annotations = getPackageAnnotations().get(packageName);
+        return annotations != null && annotations.contains(annotationDesc);
+    }
+
+    private Map<String, Set<String>> getPackageAnnotations() {
+        Map<String, Set<String>> annotations = packageAnnotations;
+        if (annotations == null) {
+            synchronized (this) {
+                annotations = packageAnnotations;
+                if (annotations == null) {
+                    annotations = scanPackageAnnotations();
+                    packageAnnotations = annotations;
+                }
+            }
+        }
+        return annotations;
+    }
+
+    private Map<String, Set<String>> scanPackageAnnotations() {
+        String packageInfoClass = PACKAGE_INFO + SdkConstants.DOT_CLASS;
+        Map<String, Set<String>> annotations = new HashMap<String, Set<String>>();
+        try {
+            for (File directory : directories) {
+                for (File file : Files.fileTreeTraverser().preOrderTraversal(directory)) {
+                    if (file.getName().equals(packageInfoClass)) {
+                        readPackageAnnotations(
+                                read(new BufferedInputStream(new FileInputStream(file))),
+                                annotations);
+                    }
+                }
+            }
+            for (ZipFile jar : jars) {
+                Enumeration<? extends ZipEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (name.equals(packageInfoClass) || name.endsWith("/" + packageInfoClass)) {
+                        readPackageAnnotations(read(jar.getInputStream(entry)), annotations);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return annotations;
+    }
+
+    private static void readPackageAnnotations(byte[] packageInfoBytes,
+            Map<String, Set<String>> annotations) {
+        ClassReader classReader = new ClassReader(packageInfoBytes);
+        String className = classReader.getClassName();
+        int i = className.lastIndexOf('/');
+        String packageName = i == -1 ? "" : className.substring(0, i);
+        if (annotations.containsKey(packageName)) {
+            // hidden by the package-info found first.
+            return;
+        }
+        final Set<String> descs = new HashSet<String>();
+        classReader.accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                descs.add(desc);
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        annotations.put(packageName, descs.isEmpty() ? Collections.<String>emptySet() : descs);
+    }
+
+    private boolean isInterface(String type) {
+        return (getRequiredHeader(type).access & Opcodes.ACC_INTERFACE) != 0;
+    }
+
+    private TypeHeader getRequiredHeader(String internalName) {
+        TypeHeader header = headers.get(internalName);
+        if (header == null) {
+            header = readHeader(internalName);
+            TypeHeader previous = headers.putIfAbsent(internalName, header);
+            if (previous != null) {
+                header = previous;
+            }
+        }
+        if (header == MISSING_HEADER) {
+            throw new RuntimeException(new ClassNotFoundException(internalName.replace('/', '.')));
+        }
+        return header;
+    }
+
+    private TypeHeader readHeader(String internalName) {
+        ClassNode classNode = classes.get(internalName);
+        if (classNode == MISSING) {
+            return MISSING_HEADER;
+        }
+        if (classNode != null) {
+            //noinspection unchecked ASM api.
+            List<String> interfaces = classNode.interfaces;
+            return newHeader(classNode.access, classNode.superName,
+                    interfaces.toArray(new String[interfaces.size()]));
+        }
+        byte[] classBytes = readClass(internalName);
+        if (classBytes == null) {
+            return MISSING_HEADER;
+        }
+        // the reader only indexes the constant pool, the header is read without visiting.
+        ClassReader classReader = new ClassReader(classBytes);
+        return newHeader(classReader.getAccess(), classReader.getSuperName(),
+                classReader.getInterfaces());
+    }
+
+    private TypeHeader newHeader(int access, String superName, String[] interfaces) {
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = names.intern(interfaces[i]);
+        }
+        return new TypeHeader(access, superName == null ? null : names.intern(superName),
+                interfaces);
+    }
+
+    private ClassNode parse(String internalName) {
+        byte[] classBytes = readClass(internalName);
+        if (classBytes == null) {
+            return MISSING;
+        }
+        ClassReader classReader = new ClassReader(classBytes);
+        ClassNode classNode = new ClassNode();
+        classReader.accept(classNode,
+                ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return classNode;
+    }
+
+    /**
+     * Returns the bytes of the class file of the passed internal name, or null if it cannot be
+     * found.
+     */
+    private byte[] readClass(String internalName) {
+        String path = internalName + SdkConstants.DOT_CLASS;
+        try {
+            for (File directory : directories) {
+                File classFile = new File(directory, path);
+                if (classFile.isFile()) {
+                    return read(new BufferedInputStream(new FileInputStream(classFile)));
+                }
+            }
+            for (ZipFile jar : jars) {
+                ZipEntry entry = jar.getEntry(path);
+                if (entry != null) {
+                    return read(jar.getInputStream(entry));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return null;
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        try {
+            return ByteStreams.toByteArray(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ZipFile jar : jars) {
+            jar.close();
+        }
+        jars.clear();
+        classes.clear();
+        headers.clear();
+        packageAnnotations = null;
+    }
+
+    /**
+     * The part of a class header the subtyping checks need.
+     */
+    private static final class TypeHeader {
+
+        final int access;
+        // null for java/lang/Object.
+        final String superName;
+        final String[] interfaces;
+
+        TypeHeader(int access, String superName, String[] interfaces) {
+            this.access = access;
+            this.superName = superName;
+            this.interfaces = interfaces;
+        }
+    }
+}
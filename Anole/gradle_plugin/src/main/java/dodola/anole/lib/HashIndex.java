@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The digest of every entry of a version, used to find the classes changed since. Persisted next
+ * to the other files of the version as hash.idx, which replaces the hash.txt of the previous
+ * versions of the plugin:
+ * <pre>
+ * header:  magic, version, entry count            (3 ints)
+ * records: name offset, name length, size, sha1   (3 ints and 20 bytes, one per entry)
+ * names:   the UTF-8 names of the entries
+ * </pre>
+ * The records are sorted by the bytes of their names, an entry is found by a binary search in
+ * the memory mapped file without reading the others.
+ * <p>
+ * The digest of a class is the one of its {@link ClassFingerprint canonical form}, so that a class
+ * that was only recompiled is not seen as changed. The hash.txt and the first version of hash.idx
+ * hold the digests of the bytes of the entries instead, an entry is compared with them by its
+ * bytes.
+ */
+public class HashIndex {
+
+    public static final String HASH_IDX = "hash.idx";
+
+    // written by the previous versions of the plugin, read when there is no hash.idx.
+    public static final String HASH_TXT = "hash.txt";
+
+    private static final int MAGIC = 0x414e4849; // ANHI
+    private static final int VERSION = 2;
+    // the digests are of the bytes of the entries, classes included.
+    private static final int VERSION_BYTES = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int SHA1_LENGTH = 20;
+    private static final int RECORD_SIZE = 12 + SHA1_LENGTH;
+    private static final int UNKNOWN_SIZE = -1;
+
+    private static final Splitter LINE_SPLITTER = Splitter.on(':');
+
+    /**
+     * The SHA-1 and size of an entry.
+     */
+    public static final class Digest {
+
+        private final byte[] sha1;
+        private final int size;
+        // the digest of the entry bytes, to compare a class with an index of an older plugin.
+        private final Digest bytesDigest;
+
+        private Digest(byte[] sha1, int size) {
+            this(sha1, size, null);
+        }
+
+        private Digest(byte[] sha1, int size, Digest bytesDigest) {
+            this.sha1 = sha1;
+            this.size = size;
+            this.bytesDigest = bytesDigest;
+        }
+
+        public static Digest of(byte[] content) {
+            return new Digest(Hashing.sha1().hashBytes(content).asBytes(), content.length);
+        }
+
+        /**
+         * Returns the digest of an entry, the one of its canonical form if it is a class.
+         *
+         * @param previous the index the entry is compared with, or null. The bytes of the class
+         *                 are hashed as well if it is an index of an older plugin.
+         */
+        public static Digest of(String name, byte[] content, HashIndex previous) {
+            if (!name.endsWith(".class")) {
+                return of(content);
+            }
+            Digest digest = of(ClassFingerprint.canonicalize(content));
+            return previous != null && previous.bytesDigests
+                    ? new Digest(digest.sha1, digest.size, of(content))
+                    : digest;
+        }
+
+        /**
+         * Returns whether two digests are of the same content, the sizes read from a hash.txt
+         * are unknown.
+         */
+        boolean isSame(byte[] otherSha1, int otherSize) {
+            return Arrays.equals(sha1, otherSha1)
+                    && (size == UNKNOWN_SIZE || otherSize == UNKNOWN_SIZE || size == otherSize);
+        }
+
+        @Override
+        public String toString() {
+            return BaseEncoding.base16().lowerCase().encode(sha1);
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final boolean bytesDigests;
+
+    private HashIndex(ByteBuffer buffer, boolean bytesDigests) throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Unsupported hash index");
+        }
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        this.bytesDigests = bytesDigests;
+    }
+
+    private HashIndex(ByteBuffer buffer) throws IOException {
+        this(buffer, getVersion(buffer) == VERSION_BYTES);
+    }
+
+    private static int getVersion(ByteBuffer buffer) throws IOException {
+        int version = buffer.getInt(4);
+        if (version != VERSION && version != VERSION_BYTES) {
+            throw new IOException("Unsupported hash index version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Returns whether a version folder has a hash.idx written by this version of the plugin.
+     */
+    public static boolean isCurrent(File directory) throws IOException {
+        File indexFile = new File(directory, HASH_IDX);
+        if (!indexFile.isFile()) {
+            return false;
+        }
+        DataInputStream input = new DataInputStream(new FileInputStream(indexFile));
+        try {
+            return input.readInt() == MAGIC && input.readInt() == VERSION;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns whether a version folder has the hash.txt or hash.idx of an older plugin, whose
+     * classes are compared by their bytes.
+     */
+    public static boolean isOutdated(File directory) throws IOException {
+        return new File(directory, HASH_IDX).isFile()
+                ? !isCurrent(directory)
+                : new File(directory, HASH_TXT).isFile();
+    }
+
+    /**
+     * Reads the index of a version folder, from its hash.idx or else its hash.txt. The index is
+     * empty if the folder has neither.
+     */
+    public static HashIndex read(File directory) throws IOException {
+        File indexFile = new File(directory, HASH_IDX);
+        if (!indexFile.isFile()) {
+            return new HashIndex(readLegacy(new File(directory, HASH_TXT)).toByteBuffer(),
+                    true /* bytesDigests */);
+        }
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            // the mapping stays valid once the file is closed.
+            return new HashIndex(file.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            file.close();
+        }
+    }
+
+    private static Builder readLegacy(File hashFile) throws IOException {
+        Builder builder = new Builder();
+        if (!hashFile.isFile()) {
+            return builder;
+        }
+        for (String line : Files.readLines(hashFile, Charsets.UTF_8)) {
+            List<String> parts = LINE_SPLITTER.splitToList(line);
+            if (parts.size() == 2) {
+                builder.put(parts.get(0), new Digest(
+                        BaseEncoding.base16().lowerCase().decode(parts.get(1)), UNKNOWN_SIZE));
+            }
+        }
+        return builder;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns whether an entry changed since this version. Like the hash.txt comparison it
+     * replaces, nothing changed against an empty index.
+     */
+    public boolean isChanged(String name, Digest digest) {
+        if (count == 0) {
+            return false;
+        }
+        if (bytesDigests && digest.bytesDigest != null) {
+            digest = digest.bytesDigest;
+        }
+        int record = find(name.getBytes(Charsets.UTF_8));
+        if (record == -1) {
+            return true;
+        }
+        byte[] sha1 = new byte[SHA1_LENGTH];
+        ByteBuffer view = buffer.duplicate();
+        view.position(record + 12);
+        view.get(sha1);
+        return !digest.isSame(sha1, buffer.getInt(record + 8));
+    }
+
+    /**
+     * Returns the offset of the record of an entry, or -1 if there is none.
+     */
+    private int find(byte[] name) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int record = HEADER_SIZE + middle * RECORD_SIZE;
+            int comparison = compareName(record, name);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return record;
+            }
+        }
+        return -1;
+    }
+
+    private int compareName(int record, byte[] name) {
+        int offset = buffer.getInt(record);
+        int length = buffer.getInt(record + 4);
+        int common = Math.min(length, name.length);
+        for (int i = 0; i < common; i++) {
+            int comparison = UnsignedBytes.compare(buffer.get(offset + i), name[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length - name.length;
+    }
+
+    /**
+     * Collects the digests of the entries of a version and writes its index.
+     * Entries can be added concurrently.
+     */
+    public static final class Builder {
+
+        private final ConcurrentMap<String, Digest> entries =
+                new ConcurrentSkipListMap<String, Digest>();
+
+        /**
+         * Reads the index of a version folder to update it, which must be
+         * {@link HashIndex#isCurrent current}. Unlike {@link HashIndex#read(File)}, the hash.idx
+         * is not kept mapped so that it can be written again.
+         */
+        public static Builder read(File directory) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(
+                    Files.toByteArray(new File(directory, HASH_IDX)));
+            if (getVersion(buffer) != VERSION) {
+                throw new IOException("Outdated hash index in " + directory);
+            }
+            HashIndex index = new HashIndex(buffer);
+            Builder builder = new Builder();
+            for (int i = 0; i < index.count; i++) {
+                int record = HEADER_SIZE + i * RECORD_SIZE;
+                ByteBuffer view = index.buffer.duplicate();
+                byte[] name = new byte[index.buffer.getInt(record + 4)];
+                view.position(index.buffer.getInt(record));
+                view.get(name);
+                byte[] sha1 = new byte[SHA1_LENGTH];
+                view.position(record + 12);
+                view.get(sha1);
+                builder.put(new String(name, Charsets.UTF_8),
+                        new Digest(sha1, index.buffer.getInt(record + 8)));
+            }
+            return builder;
+        }
+
+        public void put(String name, Digest digest) {
+            entries.put(name, digest);
+        }
+
+        public void remove(String name) {
+            entries.remove(name);
+        }
+
+        /**
+         * Returns the entries by name, in a sorted read only view.
+         */
+        public Map<String, Digest> getEntries() {
+            return Collections.unmodifiableMap(entries);
+        }
+
+        /**
+         * Writes the hash.idx of a version folder and deletes the hash.txt an older plugin may
+         * have left there.
+         */
+        public void write(File directory) throws IOException {
+            ByteBuffer buffer = toByteBuffer();
+            File indexFile = new File(directory, HASH_IDX);
+            Files.createParentDirs(indexFile);
+            OutputStream outputStream = new BufferedOutputStream(
+                    new FileOutputStream(indexFile));
+            try {
+                outputStream.write(buffer.array(), 0, buffer.limit());
+            } finally {
+                outputStream.close();
+            }
+            FileUtils.deleteIfExists(new File(directory, HASH_TXT));
+        }
+
+        private ByteBuffer toByteBuffer() {
+            List<Map.Entry<byte[], Digest>> sorted =
+                    new ArrayList<Map.Entry<byte[], Digest>>(entries.size());
+            int namesSize = 0;
+            for (Map.Entry<String, Digest> entry : entries.entrySet()) {
+                byte[] name = entry.getKey().getBytes(Charsets.UTF_8);
+                namesSize += name.length;
+                sorted.add(new AbstractMap.SimpleImmutableEntry<byte[], Digest>(
+                        name, entry.getValue()));
+            }
+            // the binary search compares the bytes, which String does not sort the same way.
+            final Comparator<byte[]> bytesOrder = UnsignedBytes.lexicographicalComparator();
+            Collections.sort(sorted, new Comparator<Map.Entry<byte[], Digest>>() {
+                @Override
+                public int compare(Map.Entry<byte[], Digest> o1, Map.Entry<byte[], Digest> o2) {
+                    return bytesOrder.compare(o1.getKey(), o2.getKey());
+                }
+            });
+
+            ByteBuffer buffer = ByteBuffer.allocate(
+                    HEADER_SIZE + sorted.size() * RECORD_SIZE + namesSize);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(sorted.size());
+            int nameOffset = HEADER_SIZE + sorted.size() * RECORD_SIZE;
+            for (Map.Entry<byte[], Digest> entry : sorted) {
+                buffer.putInt(nameOffset)
+                        .putInt(entry.getKey().length)
+                        .putInt(entry.getValue().size)
+                        .put(entry.getValue().sha1);
+                nameOffset += entry.getKey().length;
+            }
+            for (Map.Entry<byte[], Digest> entry : sorted) {
+                buffer.put(entry.getKey());
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Runs the dx of a build tools version in the Gradle process instead of forking the dx script,
+ * which pays for a new JVM and its warm up on every patch.
+ * <p>
+ * The dx.jar of each build tools version is loaded once and kept for the life of the daemon, so
+ * that the following builds run dx already loaded and compiled. dx keeps its state in statics,
+ * runs of the same dx are therefore serialized.
+ * <p>
+ * The dx API is not public, it is called by reflection like the Android plugin does: when the
+ * dx.jar does not have the expected {@code Main.run(Arguments)}, {@link #dex} returns false and
+ * the caller runs the dx script instead.
+ * <p>
+ * What dx prints goes to the {@code DxConsole} streams, which are redirected for each run so that
+ * the output is reported with the patch rather than on the stderr of the daemon. A dx without
+ * {@code DxConsole} still prints to the daemon.
+ */
+public class InProcessDexer {
+
+    private static final String MAIN_CLASS = "com.android.dx.command.dexer.Main";
+    private static final String ARGUMENTS_CLASS = MAIN_CLASS + "$Arguments";
+    private static final String CONSOLE_CLASS = "com.android.dx.command.DxConsole";
+
+    private static final ConcurrentMap<File, InProcessDexer> DEXERS =
+            new ConcurrentHashMap<File, InProcessDexer>();
+
+    private final Method run;
+    private final Class<?> argumentsClass;
+    // the DxConsole.out and DxConsole.err streams, null if dx does not have them.
+    private final Field consoleOut;
+    private final Field consoleErr;
+
+    private InProcessDexer(Method run, Class<?> argumentsClass, Field consoleOut,
+                           Field consoleErr) {
+        this.run = run;
+        this.argumentsClass = argumentsClass;
+        this.consoleOut = consoleOut;
+        this.consoleErr = consoleErr;
+    }
+
+    /**
+     * Dexes a folder of classes into a jar.
+     *
+     * @param dxJar    the lib/dx.jar of the build tools.
+     * @param classDir the folder of the classes to dex.
+     * @param output   the jar to write the dex file to.
+     * @param log      receives what dx prints, like its warnings.
+     * @return false if dx could not be loaded from {@code dxJar}.
+     * @throws IOException if dx failed to dex the classes, with what dx printed.
+     */
+    public static boolean dex(File dxJar, File classDir, File output, OutputStream log)
+            throws IOException {
+        InProcessDexer dexer = get(dxJar);
+        return dexer != null && dexer.run(classDir, output, log);
+    }
+
+    private static InProcessDexer get(File dxJar) {
+        if (!dxJar.isFile()) {
+            return null;
+        }
+        InProcessDexer dexer = DEXERS.get(dxJar);
+        if (dexer != null) {
+            return dexer;
+        }
+        try {
+            // parented to the bootstrap loader, dx must not see the classes of the plugin.
+            ClassLoader loader = new URLClassLoader(new URL[]{dxJar.toURI().toURL()}, null);
+            Class<?> argumentsClass = loader.loadClass(ARGUMENTS_CLASS);
+            Method run = loader.loadClass(MAIN_CLASS).getMethod("run", argumentsClass);
+            Field consoleOut = null;
+            Field consoleErr = null;
+            try {
+                Class<?> consoleClass = loader.loadClass(CONSOLE_CLASS);
+                consoleOut = consoleClass.getField("out");
+                consoleErr = consoleClass.getField("err");
+            } catch (ReflectiveOperationException e) {
+                // dx prints to the daemon streams.
+            }
+            dexer = new InProcessDexer(run, argumentsClass, consoleOut, consoleErr);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+        InProcessDexer previous = DEXERS.putIfAbsent(dxJar, dexer);
+        return previous != null ? previous : dexer;
+    }
+
+    private boolean run(File classDir, File output, OutputStream log) throws IOException {
+        Object arguments;
+        try {
+            arguments = argumentsClass.getConstructor().newInstance();
+            argumentsClass.getField("outName").set(arguments, output.getAbsolutePath());
+            argumentsClass.getField("jarOutput").setBoolean(arguments, true);
+            argumentsClass.getField("fileNames")
+                    .set(arguments, new String[]{classDir.getAbsolutePath()});
+            setIfPresent(arguments, "optimize", true);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+        int exitCode;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        synchronized (this) {
+            PrintStream console = new PrintStream(printed, true);
+            Object previousOut = null;
+            Object previousErr = null;
+            try {
+                if (consoleOut != null) {
+                    previousOut = consoleOut.get(null);
+                    previousErr = consoleErr.get(null);
+                    consoleOut.set(null, console);
+                    consoleErr.set(null, console);
+                }
+                try {
+                    exitCode = (Integer) run.invoke(null, arguments);
+                } finally {
+                    if (consoleOut != null) {
+                        consoleOut.set(null, previousOut);
+                        consoleErr.set(null, previousErr);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                return false;
+            } catch (InvocationTargetException e) {
+                throw new IOException("dx failed to dex " + classDir + getOutput(printed),
+                        e.getCause());
+            }
+        }
+        if (exitCode != 0) {
+            throw new IOException("dx failed to dex " + classDir + ", exit code " + exitCode
+                    + getOutput(printed));
+        }
+        printed.writeTo(log);
+        return true;
+    }
+
+    private static String getOutput(ByteArrayOutputStream printed) {
+        String output = printed.toString().trim();
+        return output.isEmpty() ? "" : ":\n" + output;
+    }
+
+    private void setIfPresent(Object arguments, String name, boolean value)
+            throws IllegalAccessException {
+        try {
+            Field field = argumentsClass.getField(name);
+            field.setBoolean(arguments, value);
+        } catch (NoSuchFieldException e) {
+            // left to the dx default.
+        }
+    }
+}
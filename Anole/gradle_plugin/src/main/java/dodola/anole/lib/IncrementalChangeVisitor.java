@@ -32,9 +32,17 @@ import org.objectweb.asm.tree.MethodNode;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * Visitor for classes that have been changed since the initial push.
@@ -51,13 +59,39 @@ import java.util.Map;
  */
 public class IncrementalChangeVisitor extends IncrementalVisitor {
 
-    public static final VisitorBuilder VISITOR_BUILDER = new VisitorBuilder() {
+    public static final VisitorBuilder VISITOR_BUILDER =
+            newVisitorBuilder(null, InstrumentationOptions.DEFAULT);
+
+    /**
+     * Returns the builder of visitors whose {@code access$dispatch(int, Object[])} dispatches on
+     * the method ids the patched version was instrumented with, only generating override classes
+     * for the classes selected by the filter of {@code options}, the others were not
+     * instrumented.
+     *
+     * @param previousIds the method ids of the patched version, null if it dispatches on names.
+     * @param options     the options the patched version was instrumented with.
+     */
+    public static VisitorBuilder newVisitorBuilder(MethodIds previousIds,
+                                                   InstrumentationOptions options) {
+        return new ChangeVisitorBuilder(previousIds, options.getFilter());
+    }
+
+    private static final class ChangeVisitorBuilder implements VisitorBuilder {
+
+        private final MethodIds previousIds;
+        private final InstrumentationFilter filter;
+
+        private ChangeVisitorBuilder(MethodIds previousIds, InstrumentationFilter filter) {
+            this.previousIds = previousIds;
+            this.filter = filter;
+        }
 
         @Override
         public IncrementalVisitor build(ClassNode classNode,
                                         List<ClassNode> parentNodes,
                                         ClassVisitor classVisitor) {
-            return new IncrementalChangeVisitor(classNode, parentNodes, classVisitor);
+            return new IncrementalChangeVisitor(classNode, parentNodes, classVisitor,
+                    previousIds, filter);
         }
 
 
@@ -72,7 +106,24 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
         public OutputType getOutputType() {
             return OutputType.OVERRIDE;
         }
-    };
+
+        @Override
+        public InstrumentationFilter getFilter() {
+            return filter;
+        }
+
+        @Override
+        public String getCacheKey() {
+            // override classes are built from scratch for each patch and never cached.
+            return IncrementalChangeVisitor.class.getName();
+        }
+
+        @Override
+        public boolean isKeepingFrames() {
+            // every method is rewritten.
+            return false;
+        }
+    }
 
     // todo : find a better way to specify logging and append to a log file.
     private static final boolean DEBUG = false;
@@ -84,6 +135,17 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
     private MachineState state = MachineState.NORMAL;
     private boolean instantRunDisabled = false;
 
+    // the method ids of the patched version, may be null.
+    private final MethodIds previousIds;
+
+    private final InstrumentationFilter filter;
+
+    // the methods with the same code as in the patched version, see access$patched.
+    private Set<String> unchangedMethods;
+
+    // the methods the patched version left without redirection, nothing calls their override.
+    private Set<String> excludedMethods;
+
     // Description prefix used to add fake "this" as the first argument to each instance method
     // when converted to a static method.
     private String instanceToStaticDescPrefix;
@@ -99,7 +161,18 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
             ClassNode classNode,
             List<ClassNode> parentNodes,
             ClassVisitor classVisitor) {
+        this(classNode, parentNodes, classVisitor, null, InstrumentationFilter.ALL);
+    }
+
+    public IncrementalChangeVisitor(
+            ClassNode classNode,
+            List<ClassNode> parentNodes,
+            ClassVisitor classVisitor,
+            MethodIds previousIds,
+            InstrumentationFilter filter) {
         super(classNode, parentNodes, classVisitor);
+        this.previousIds = previousIds;
+        this.filter = filter;
     }
 
     /**
@@ -124,6 +197,10 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
         visitedClassName = name;
         visitedSuperName = superName;
         instanceToStaticDescPrefix = "(L" + visitedClassName + ";";
+        unchangedMethods = getUnchangedMethods();
+        excludedMethods = previousIds != null
+                ? previousIds.getExcludedMethods(visitedClassName)
+                : Collections.<String>emptySet();
 
         // Create empty constructor
         MethodVisitor mv = super
@@ -142,7 +219,7 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
 
     @Override
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-        if (DISABLE_ANNOTATION_TYPE.getDescriptor().equals(desc)) {
+        if (filter.isDisabledBy(desc)) {
             instantRunDisabled = true;
         }
         return super.visitAnnotation(desc, visible);
@@ -187,6 +264,18 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
             System.out.println("New Desc is " + newDesc + ":" + isStatic);
         }
 
+        if ((access & Opcodes.ACC_PRIVATE) == 0
+                && unchangedMethods.contains(name + "." + desc)) {
+            // the patched version keeps running its own code, private methods are still
+            // needed by the changed ones.
+            return null;
+        }
+        if ((access & Opcodes.ACC_PRIVATE) == 0
+                && excludedMethods.contains(name + "." + desc)) {
+            // the patched version never dispatches it, the patch build reports the change.
+            return null;
+        }
+
         // Do not carry on any access flags from the original method. For example synchronized
         // on the original method would translate into a static synchronized method here.
         access = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC;
@@ -214,6 +303,26 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
         }
     }
 
+    /**
+     * Returns the {@code name.desc} of the methods whose code is the same as in the patched
+     * version, according to the hashes recorded with its method ids.
+     */
+    private Set<String> getUnchangedMethods() {
+        Set<String> unchanged = new HashSet<String>();
+        if (previousIds == null) {
+            return unchanged;
+        }
+        //noinspection unchecked ASM api.
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            String hash = previousIds.getMethodHash(visitedClassName,
+                    method.name + "." + method.desc);
+            if (hash != null && hash.equals(MethodIds.hashMethod(method))) {
+                unchanged.add(method.name + "." + method.desc);
+            }
+        }
+        return unchanged;
+    }
+
     @Override
     public FieldVisitor visitField(int access, String name, String desc, String signature,
                                    Object value) {
@@ -322,6 +431,11 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
          * <code>
          * $package/AndroidInstantRuntime.setPrivateField($instance, value, $fieldName);
          * </code>
+         * unless the instrumented class has accessors for the field, which are called instead:
+         * <code>
+         * value = $type.access$get$fieldName($instance);
+         * $type.access$set$fieldName($instance, value);
+         * </code>
          *
          * @param opcode      the field access opcode, can only be {@link Opcodes#PUTFIELD} or
          *                    {@link Opcodes#GETFIELD}
@@ -345,8 +459,14 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
             }
 
             if (useReflection) {
-                // we should make this more efficient, have a per field access type method
-                // for getting and setting field values.
+                if (accessRight == AccessRight.PRIVATE && invokeAccessor(owner,
+                        (opcode == Opcodes.GETFIELD ? Accessors.GET_PREFIX : Accessors.SET_PREFIX)
+                                + name,
+                        opcode == Opcodes.GETFIELD
+                                ? Accessors.getGetterDesc(owner, desc, false /* isStatic */)
+                                : Accessors.getSetterDesc(owner, desc, false /* isStatic */))) {
+                    return true;
+                }
                 switch (opcode) {
                     case Opcodes.GETFIELD:
                         if (DEBUG) {
@@ -428,6 +548,7 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
          * <code>
          * $package/AndroidInstantRuntime.setStaticPrivateField(value, $type.class $fieldName);
          * </code>
+         * unless the instrumented class has accessors for the field, like for instance fields.
          *
          * @param opcode      the field access opcode, can only be {@link Opcodes#PUTSTATIC} or
          *                    {@link Opcodes#GETSTATIC}
@@ -440,6 +561,14 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
                 int opcode, String owner, String name, String desc, AccessRight accessRight) {
 
             if (accessRight != AccessRight.PUBLIC) {
+                if (accessRight == AccessRight.PRIVATE && invokeAccessor(owner,
+                        (opcode == Opcodes.GETSTATIC ? Accessors.GET_PREFIX : Accessors.SET_PREFIX)
+                                + name,
+                        opcode == Opcodes.GETSTATIC
+                                ? Accessors.getGetterDesc(owner, desc, true /* isStatic */)
+                                : Accessors.getSetterDesc(owner, desc, true /* isStatic */))) {
+                    return true;
+                }
                 switch (opcode) {
                     case Opcodes.GETSTATIC:
                         if (DEBUG) {
@@ -562,6 +691,11 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
          * new object[] {arg1, arg2}, new Class[] { String.class, Integer.class },
          * "protectedVirtual");
          * </code>
+         * The methods the instrumented class declares were made public and are called directly,
+         * the inherited ones through its accessor when it has one:
+         * <code>
+         * $value = $type.access$invoke$protectedVirtual($instance, arg1, arg2);
+         * </code>
          */
         private boolean handleVirtualOpcode(String owner, String name, String desc, boolean itf) {
 
@@ -571,9 +705,14 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
 
             }
             AccessRight accessRight = getMethodAccessRight(owner, name, desc);
-            if (accessRight == AccessRight.PUBLIC) {
+            if (accessRight == AccessRight.PUBLIC
+                    || (accessRight != AccessRight.PRIVATE && isPatchedClassMethod(name, desc))) {
                 return false;
             }
+            if (invokeAccessor(owner, Accessors.INVOKE_PREFIX + name,
+                    Accessors.getInvokerDesc(owner, desc, false /* isStatic */))) {
+                return true;
+            }
 
             // for anything else, private, protected and package private, we must go through
             // reflection.
@@ -609,6 +748,7 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
          * new object[] {arg1, arg2}, new Class[] { String.class, Integer.class },
          * "protectedStatic", $type.class);
          * </code>
+         * unless the method can be called directly or through an accessor, like for virtual calls.
          */
         private boolean handleStaticOpcode(String owner, String name, String desc, boolean itf) {
 
@@ -618,9 +758,14 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
 
             }
             AccessRight accessRight = getMethodAccessRight(owner, name, desc);
-            if (accessRight == AccessRight.PUBLIC) {
+            if (accessRight == AccessRight.PUBLIC
+                    || (accessRight != AccessRight.PRIVATE && isPatchedClassMethod(name, desc))) {
                 return false;
             }
+            if (invokeAccessor(owner, Accessors.INVOKE_PREFIX + name,
+                    Accessors.getInvokerDesc(owner, desc, true /* isStatic */))) {
+                return true;
+            }
 
             // for anything else, private, protected and package private, we must go through
             // reflection.
@@ -737,6 +882,35 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
             }
         }
 
+        /**
+         * Invokes an accessor of the visited class instead of going through reflection, if the
+         * instrumented class the patch applies to has it, see {@link Accessors}.
+         *
+         * @param owner the owner of the accessed member.
+         * @param name  the accessor name.
+         * @param desc  the accessor signature.
+         * @return true if the accessor was invoked.
+         */
+        private boolean invokeAccessor(String owner, String name, String desc) {
+            if (!owner.equals(visitedClassName) || previousIds == null
+                    || !previousIds.hasAccessor(owner, name + "." + desc)) {
+                return false;
+            }
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, owner, name, desc, false);
+            return true;
+        }
+
+        /**
+         * Returns whether the instrumented class the patch applies to declares a method of the
+         * visited class, in which case the method was made public and can be called directly.
+         */
+        private boolean isPatchedClassMethod(String name, String desc) {
+            List<String> methods = previousIds != null
+                    ? previousIds.getMethods(visitedClassName)
+                    : null;
+            return methods != null && methods.contains(name + "." + desc);
+        }
+
         /**
          * Returns the actual method access right or a best guess if we don't have access to the
          * method definition.
@@ -942,7 +1116,12 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
             if (!isAccessCompatibleWithInstantRun(methodNode.access)) {
                 continue;
             }
-            methods.put(methodNode.name + "." + methodNode.desc, methodNode);
+            String key = methodNode.name + "." + methodNode.desc;
+            if ((methodNode.access & Opcodes.ACC_PRIVATE) == 0 && unchangedMethods.contains(key)) {
+                // not generated, see visitMethod.
+                continue;
+            }
+            methods.put(key, methodNode);
         }
 
         new StringSwitch() {
@@ -953,34 +1132,7 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
 
             @Override
             void visitCase(String methodName) {
-                MethodNode methodNode = methods.get(methodName);
-                String name = methodNode.name;
-                boolean isStatic = (methodNode.access & Opcodes.ACC_STATIC) != 0;
-                String newDesc =
-                        computeOverrideMethodDesc(methodNode.desc, isStatic);
-
-                if (TRACING_ENABLED) {
-                    trace(mv, "M: " + name + " P:" + newDesc);
-                }
-                Type[] args = Type.getArgumentTypes(newDesc);
-                int argc = 0;
-                for (Type t : args) {
-                    mv.visitVarInsn(Opcodes.ALOAD, 2);
-                    mv.push(argc);
-                    mv.visitInsn(Opcodes.AALOAD);
-                    ByteCodeUtils.unbox(mv, t);
-                    argc++;
-                }
-                mv.visitMethodInsn(Opcodes.INVOKESTATIC, visitedClassName + "$override",
-                        isStatic ? computeOverrideMethodName(name, methodNode.desc) : name,
-                        newDesc, false);
-                Type ret = Type.getReturnType(methodNode.desc);
-                if (ret.getSort() == Type.VOID) {
-                    mv.visitInsn(Opcodes.ACONST_NULL);
-                } else {
-                    mv.box(ret);
-                }
-                mv.visitInsn(Opcodes.ARETURN);
+                invokeOverrideMethod(mv, methods.get(methodName), false /* specialized */);
             }
 
             @Override
@@ -992,9 +1144,305 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
         mv.visitMaxs(0, 0);
         mv.visitEnd();
 
+        Map<String, MethodNode> patchedMethods = new HashMap<String, MethodNode>(methods);
+        patchedMethods.keySet().removeAll(unchangedMethods);
+        addPatchedMethod(patchedMethods);
+        addIntDispatchMethod(patchedMethods);
+        addSpecializedDispatchMethods(patchedMethods);
+
         super.visitEnd();
     }
 
+    /**
+     * Adds the method the code instrumented with integer method ids calls before dispatching, so
+     * that the methods whose code did not change keep running in the patched version.
+     * <p/>
+     * Pseudo code:
+     * <code>
+     * boolean access$patched(int id) {
+     * switch (id) {
+     * case 0:
+     * case 3:
+     * return true;
+     * default:
+     * return false;
+     * }
+     * }
+     * </code>
+     *
+     * @param methods the changed methods of the class, by name and descriptor.
+     */
+    private void addPatchedMethod(Map<String, MethodNode> methods) {
+        Method m = new Method("access$patched", "(I)Z");
+        MethodVisitor visitor = super.visitMethod(Opcodes.ACC_PUBLIC,
+                m.getName(),
+                m.getDescriptor(),
+                null, null);
+
+        GeneratorAdapter mv = new GeneratorAdapter(Opcodes.ACC_PUBLIC, m, visitor);
+
+        SortedSet<Integer> patched = new TreeSet<Integer>();
+        List<String> ids = previousIds != null ? previousIds.getMethods(visitedClassName) : null;
+        if (ids != null) {
+            for (int id = 0; id < ids.size(); id++) {
+                if (methods.containsKey(ids.get(id))) {
+                    patched.add(id);
+                }
+            }
+        }
+        Label defaultLabel = new Label();
+        Map<Integer, Label> labels = visitIdSwitch(mv, patched, defaultLabel);
+        for (Label label : labels.values()) {
+            mv.visitLabel(label);
+        }
+        if (!labels.isEmpty()) {
+            mv.push(true);
+            mv.returnValue();
+        }
+        mv.visitLabel(defaultLabel);
+        mv.push(false);
+        mv.returnValue();
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Adds the dispatch method called by the code instrumented with integer method ids, see
+     * {@link MethodIds}.
+     * <p/>
+     * Pseudo code:
+     * <code>
+     * Object access$dispatch(int id, object[] args) {
+     * switch (id) {
+     * case 0:
+     * return firstMethod(($type)arg[0], (String)arg[1], arg[2]);
+     * case 1:
+     * secondMethod(($type)arg[0], (String)arg[1], (int)arg[2]);
+     * return null;
+     * ...
+     * default:
+     * throw new $package/InstantReloadException(
+     * String.format("Method id %s not found in %s", id, visitedClassName));
+     * }
+     * }
+     * </code>
+     * The ids are those of the patched version of the class, methods it did not have cannot be
+     * called by its code and methods removed or unchanged since fall in the default case, see
+     * {@link #addPatchedMethod(Map)}.
+     *
+     * @param methods the changed methods of the class, by name and descriptor.
+     */
+    private void addIntDispatchMethod(Map<String, MethodNode> methods) {
+        int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_VARARGS;
+        Method m = new Method("access$dispatch", "(I[Ljava/lang/Object;)Ljava/lang/Object;");
+        MethodVisitor visitor = super.visitMethod(access,
+                m.getName(),
+                m.getDescriptor(),
+                null, null);
+
+        GeneratorAdapter mv = new GeneratorAdapter(access, m, visitor);
+
+        SortedMap<Integer, MethodNode> cases = new TreeMap<Integer, MethodNode>();
+        List<String> ids = previousIds != null ? previousIds.getMethods(visitedClassName) : null;
+        if (ids != null) {
+            for (int id = 0; id < ids.size(); id++) {
+                MethodNode methodNode = methods.get(ids.get(id));
+                if (methodNode != null) {
+                    cases.put(id, methodNode);
+                }
+            }
+        }
+        visitIdDispatch(mv, cases, false /* specialized */);
+
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    /**
+     * Adds the allocation free entry points called by the code instrumented with integer method
+     * ids, see {@link SpecializedDispatch}. Each one dispatches the methods with its signature.
+     * <p/>
+     * Pseudo code:
+     * <code>
+     * long access$dispatchLong(int id, Object a0, long a1) {
+     * switch (id) {
+     * case 3:
+     * return (long) firstMethod(($type)a0, (int)a1);
+     * ...
+     * default:
+     * throw new $package/InstantReloadException(
+     * String.format("Method id %s not found in %s", id, visitedClassName));
+     * }
+     * }
+     * </code>
+     *
+     * @param methods the changed methods of the class, by name and descriptor.
+     */
+    private void addSpecializedDispatchMethods(Map<String, MethodNode> methods) {
+        Map<Method, SortedMap<Integer, MethodNode>> casesByEntry =
+                new HashMap<Method, SortedMap<Integer, MethodNode>>();
+        List<String> ids = previousIds != null ? previousIds.getMethods(visitedClassName) : null;
+        if (ids != null) {
+            for (int id = 0; id < ids.size(); id++) {
+                MethodNode methodNode = methods.get(ids.get(id));
+                if (methodNode == null) {
+                    continue;
+                }
+                Method entry = SpecializedDispatch.getMethod(
+                        Arrays.asList(Type.getArgumentTypes(computeOverrideMethodDesc(
+                                methodNode.desc, (methodNode.access & Opcodes.ACC_STATIC) != 0))),
+                        Type.getReturnType(methodNode.desc));
+                if (entry == null) {
+                    continue;
+                }
+                SortedMap<Integer, MethodNode> cases = casesByEntry.get(entry);
+                if (cases == null) {
+                    cases = new TreeMap<Integer, MethodNode>();
+                    casesByEntry.put(entry, cases);
+                }
+                cases.put(id, methodNode);
+            }
+        }
+
+        // all of them are implemented, the ones no method uses only throw.
+        for (Method m : SpecializedDispatch.getMethods()) {
+            MethodVisitor visitor = super.visitMethod(Opcodes.ACC_PUBLIC,
+                    m.getName(),
+                    m.getDescriptor(),
+                    null, null);
+
+            GeneratorAdapter mv = new GeneratorAdapter(Opcodes.ACC_PUBLIC, m, visitor);
+            SortedMap<Integer, MethodNode> cases = casesByEntry.get(m);
+            visitIdDispatch(mv, cases != null ? cases : new TreeMap<Integer, MethodNode>(),
+                    true /* specialized */);
+
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    /**
+     * Switches over the method id in the first argument of a dispatch method to the override
+     * method of each id, and throws in the default case.
+     */
+    private void visitIdDispatch(GeneratorAdapter mv, SortedMap<Integer, MethodNode> cases,
+                                 boolean specialized) {
+        Label defaultLabel = new Label();
+        for (Map.Entry<Integer, Label> entry : visitIdSwitch(
+                mv, new TreeSet<Integer>(cases.keySet()), defaultLabel).entrySet()) {
+            mv.visitLabel(entry.getValue());
+            invokeOverrideMethod(mv, cases.get(entry.getKey()), specialized);
+        }
+
+        mv.visitLabel(defaultLabel);
+        Type exceptionType = Type.getType("L" + PACKAGE + "/InstantReloadException;");
+        mv.newInstance(exceptionType);
+        mv.dup();
+        mv.push("Method id %s not found in %s");
+        mv.push(2);
+        mv.newArray(Type.getType(Object.class));
+        mv.dup();
+        mv.push(0);
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.box(Type.INT_TYPE);
+        mv.arrayStore(Type.getType(Object.class));
+        mv.dup();
+        mv.push(1);
+        mv.push(visitedClassName);
+        mv.arrayStore(Type.getType(Object.class));
+        mv.invokeStatic(Type.getType(String.class),
+                Method.getMethod("String format(String, Object[])"));
+        mv.invokeConstructor(exceptionType, Method.getMethod("void <init> (String)"));
+        mv.throwException();
+    }
+
+    /**
+     * Switches over the method id in the first argument of a method, using a tableswitch unless
+     * the ids are sparse.
+     *
+     * @return the label of each id, to be visited by the caller.
+     */
+    private static Map<Integer, Label> visitIdSwitch(GeneratorAdapter mv, SortedSet<Integer> ids,
+                                                     Label defaultLabel) {
+        Map<Integer, Label> labels = new TreeMap<Integer, Label>();
+        if (ids.isEmpty()) {
+            return labels;
+        }
+        for (Integer id : ids) {
+            labels.put(id, new Label());
+        }
+        int min = ids.first();
+        int max = ids.last();
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        if (max - min + 1 <= 2 * ids.size()) {
+            Label[] table = new Label[max - min + 1];
+            for (int id = min; id <= max; id++) {
+                table[id - min] = labels.containsKey(id) ? labels.get(id) : defaultLabel;
+            }
+            mv.visitTableSwitchInsn(min, max, defaultLabel, table);
+        } else {
+            int[] keys = new int[ids.size()];
+            Label[] table = new Label[ids.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Label> entry : labels.entrySet()) {
+                keys[i] = entry.getKey();
+                table[i] = entry.getValue();
+                i++;
+            }
+            mv.visitLookupSwitchInsn(defaultLabel, keys, table);
+        }
+        return labels;
+    }
+
+    /**
+     * Loads the arguments of a method, invokes its static version in the override class and
+     * returns its result. The arguments are unboxed from the arguments array of access$dispatch
+     * and the result is boxed, or for the specialized entry points they are converted from and
+     * to their slot types, see {@link SpecializedDispatch}.
+     */
+    private void invokeOverrideMethod(GeneratorAdapter mv, MethodNode methodNode,
+                                      boolean specialized) {
+        String name = methodNode.name;
+        boolean isStatic = (methodNode.access & Opcodes.ACC_STATIC) != 0;
+        String newDesc =
+                computeOverrideMethodDesc(methodNode.desc, isStatic);
+
+        if (TRACING_ENABLED) {
+            trace(mv, "M: " + name + " P:" + newDesc);
+        }
+        Type[] args = Type.getArgumentTypes(newDesc);
+        int argc = 0;
+        // the slots of the specialized entry points follow the method id.
+        int local = 2;
+        for (Type t : args) {
+            if (specialized) {
+                Type slotType = SpecializedDispatch.getSlotType(t);
+                mv.visitVarInsn(slotType.getOpcode(Opcodes.ILOAD), local);
+                SpecializedDispatch.fromSlot(mv, t);
+                local += slotType.getSize();
+            } else {
+                mv.visitVarInsn(Opcodes.ALOAD, 2);
+                mv.push(argc);
+                mv.visitInsn(Opcodes.AALOAD);
+                ByteCodeUtils.unbox(mv, t);
+            }
+            argc++;
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, visitedClassName + "$override",
+                isStatic ? computeOverrideMethodName(name, methodNode.desc) : name,
+                newDesc, false);
+        Type ret = Type.getReturnType(methodNode.desc);
+        if (ret.getSort() == Type.VOID) {
+            mv.visitInsn(Opcodes.ACONST_NULL);
+        } else if (specialized) {
+            SpecializedDispatch.toSlot(mv, ret);
+        } else {
+            mv.box(ret);
+        }
+        mv.returnValue();
+    }
+
     /**
      * Command line invocation entry point. Expects 2 parameters, first is the source directory
      * with .class files as produced by the Java compiler, second is the output directory where to
@@ -1007,6 +1455,19 @@ public class IncrementalChangeVisitor extends IncrementalVisitor {
         IncrementalVisitor.main(args, VISITOR_BUILDER);
     }
 
+    /**
+     * Same as {@link #main(String[])} but resolves the class hierarchy from an index shared with
+     * the other instrumentation passes of the build, and dispatches on the method ids the patched
+     * version was instrumented with.
+     *
+     * @param options the options the patched version was instrumented with.
+     */
+    public static void main(String[] args, ClassHierarchy classHierarchy, MethodIds previousIds,
+                            InstrumentationOptions options) throws IOException {
+        IncrementalVisitor.main(args, newVisitorBuilder(previousIds, options), 1,
+                classHierarchy);
+    }
+
     /**
      * Returns true if the passed class name is in the same package as the visited class.
      *
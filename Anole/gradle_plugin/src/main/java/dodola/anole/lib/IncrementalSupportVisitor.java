@@ -27,8 +27,11 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
 import org.objectweb.asm.commons.GeneratorAdapter;
 import org.objectweb.asm.commons.Method;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.LabelNode;
 import org.objectweb.asm.tree.LineNumberNode;
@@ -58,9 +61,22 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
 
     private boolean disableRedirectionForClass = false;
 
+    // ids of the redirected methods when dispatching on integers, null to dispatch on names.
+    private final Map<String, Integer> methodIds;
+
+    private final InstrumentationFilter filter;
+
+    // may be null.
+    private final InstrumentationReport report;
+
+    private final boolean accessors;
+
     private static final class VisitorBuilder implements IncrementalVisitor.VisitorBuilder {
 
-        private VisitorBuilder() {
+        private final InstrumentationOptions options;
+
+        private VisitorBuilder(InstrumentationOptions options) {
+            this.options = options;
         }
 
         @NonNull
@@ -69,7 +85,7 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
                 @NonNull ClassNode classNode,
                 @NonNull List<ClassNode> parentNodes,
                 @NonNull ClassVisitor classVisitor) {
-            return new IncrementalSupportVisitor(classNode, parentNodes, classVisitor);
+            return new IncrementalSupportVisitor(classNode, parentNodes, classVisitor, options);
         }
 
         @Override
@@ -83,16 +99,66 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
         public OutputType getOutputType() {
             return OutputType.INSTRUMENT;
         }
+
+        @NonNull
+        @Override
+        public InstrumentationFilter getFilter() {
+            return options.getFilter();
+        }
+
+        @NonNull
+        @Override
+        public String getCacheKey() {
+            return IncrementalSupportVisitor.class.getName()
+                    + (options.isIntDispatch() ? ":int" : "")
+                    + (options.hasAccessors() ? "" : ":noaccessors")
+                    + ":" + options.getFilter().getCacheKey();
+        }
+
+        @Override
+        public boolean isKeepingFrames() {
+            return true;
+        }
     }
 
     public static final IncrementalVisitor.VisitorBuilder VISITOR_BUILDER =
-            new VisitorBuilder();
+            new VisitorBuilder(InstrumentationOptions.DEFAULT);
+
+    /**
+     * Returns the builder of visitors instrumenting the classes as {@code options} tell.
+     */
+    public static IncrementalVisitor.VisitorBuilder newVisitorBuilder(
+            @NonNull InstrumentationOptions options) {
+        return options == InstrumentationOptions.DEFAULT
+                ? VISITOR_BUILDER
+                : new VisitorBuilder(options);
+    }
 
     public IncrementalSupportVisitor(
             @NonNull ClassNode classNode,
             @NonNull List<ClassNode> parentNodes,
             @NonNull ClassVisitor classVisitor) {
+        this(classNode, parentNodes, classVisitor, InstrumentationOptions.DEFAULT);
+    }
+
+    public IncrementalSupportVisitor(
+            @NonNull ClassNode classNode,
+            @NonNull List<ClassNode> parentNodes,
+            @NonNull ClassVisitor classVisitor,
+            @NonNull InstrumentationOptions options) {
         super(classNode, parentNodes, classVisitor);
+        this.filter = options.getFilter();
+        this.report = options.getReport();
+        this.accessors = options.hasAccessors();
+        if (options.isIntDispatch()) {
+            List<String> methods = MethodIds.getDispatchedMethods(classNode);
+            methodIds = new HashMap<String, Integer>();
+            for (int id = 0; id < methods.size(); id++) {
+                methodIds.put(methods.get(id), id);
+            }
+        } else {
+            methodIds = null;
+        }
     }
 
     /**
@@ -117,7 +183,7 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
 
     @Override
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-        if (desc.equals(DISABLE_ANNOTATION_TYPE.getDescriptor())) {
+        if (filter.isDisabledBy(desc)) {
             disableRedirectionForClass = true;
         }
         return super.visitAnnotation(desc, visible);
@@ -143,7 +209,6 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
 
         access = transformAccessForInstantRun(access);
 
-        MethodVisitor defaultVisitor = super.visitMethod(access, name, desc, signature, exceptions);
         MethodNode method = getMethodByNameInClass(name, desc, classNode);
         // does the method use blacklisted APIs.
         boolean hasIncompatibleChange = InstantRunMethodVerifier.verifyMethod(method)
@@ -152,10 +217,45 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
         if (hasIncompatibleChange || disableRedirectionForClass
                 || !isAccessCompatibleWithInstantRun(access)
                 || name.equals(AsmUtils.CLASS_INITIALIZER)) {
-            return defaultVisitor;
+            // copied as is.
+            return super.visitMethod(access, name, desc, signature, exceptions);
         } else {
-            ISMethodVisitor mv = new ISMethodVisitor(defaultVisitor, access, name, desc);
-            if (name.equals(AsmUtils.CONSTRUCTOR)) {
+            int codeSize = getCodeSize(method);
+            InstrumentationFilter.MethodExclusion exclusion =
+                    filter.getMethodExclusion(visitedClassName, name, desc, codeSize);
+            if (exclusion != null) {
+                if (report != null) {
+                    report.onMethodExcluded(visitedClassName, name, desc, codeSize, exclusion);
+                }
+                return super.visitMethod(access, name, desc, signature, exceptions);
+            }
+            boolean isConstructor = name.equals(AsmUtils.CONSTRUCTOR);
+            Label methodStart = new Label();
+            MethodRedirection redirection = null;
+            if (!isConstructor) {
+                String methodName = name + "." + desc;
+                Integer id = methodIds != null ? methodIds.get(methodName) : null;
+                redirection = new MethodRedirection(
+                        new LabelNode(methodStart),
+                        methodName,
+                        id != null ? id : -1,
+                        Type.getReturnType(desc));
+            }
+            // the code inserted in constructors runs before this is initialized and reorders
+            // the locals, their frames are computed. Those of the other methods are kept, unless
+            // the code inserted needs frames of its own.
+            boolean keepFrames = !isConstructor && hasAllFrames(method)
+                    && !redirection.hasBranches(getRedirectedArgs(access, desc));
+            MethodVisitor defaultVisitor = keepFrames
+                    ? super.visitMethod(access, name, desc, signature, exceptions)
+                    : visitMethodComputingFrames(access, name, desc, signature, exceptions);
+            CodeSizeEvaluator sizeEvaluator = report != null
+                    ? new CodeSizeEvaluator(defaultVisitor)
+                    : null;
+            ISMethodVisitor mv = new ISMethodVisitor(
+                    sizeEvaluator != null ? sizeEvaluator : defaultVisitor, access, name, desc,
+                    methodStart, keepFrames ? method : null);
+            if (isConstructor) {
 
                 ConstructorDelegationDetector.Constructor constructor =
                         ConstructorDelegationDetector.deconstruct(visitedClassName, method);
@@ -181,16 +281,70 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
                 mv.addRedirection(new MethodRedirection(after, constructor.body.name + "."
                         + constructor.body.desc, Type.getReturnType(desc)));
             } else {
-                mv.addRedirection(new MethodRedirection(
-                        new LabelNode(mv.getStartLabel()),
-                        name + "." + desc,
-                        Type.getReturnType(desc)));
+                mv.addRedirection(redirection);
             }
             method.accept(mv);
+            if (report != null) {
+                report.onMethodRedirected(codeSize, sizeEvaluator.getMaxSize());
+            }
             return null;
         }
     }
 
+    /**
+     * Returns the arguments a method redirects, starting with a fictional first parameter for the
+     * "this" reference of instance methods.
+     */
+    private static List<Type> getRedirectedArgs(int access, String desc) {
+        List<Type> args = new ArrayList<Type>(Arrays.asList(Type.getArgumentTypes(desc)));
+        if ((access & Opcodes.ACC_STATIC) == 0) {
+            args.add(0, Type.getType(Object.class));
+        }
+        return args;
+    }
+
+    /**
+     * Whether a method read without expanding its frames has all the frames its code needs:
+     * classes before Java 6 have none and the code of their methods need none, the code of the
+     * later classes needs some as soon as it branches. Tools like ProGuard can strip them.
+     */
+    private boolean hasAllFrames(MethodNode method) {
+        if ((classNode.version & 0xFFFF) < Opcodes.V1_6) {
+            return true;
+        }
+        if (!method.tryCatchBlocks.isEmpty()) {
+            return hasFrame(method);
+        }
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null;
+                insn = insn.getNext()) {
+            switch (insn.getType()) {
+                case AbstractInsnNode.JUMP_INSN:
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    return hasFrame(method);
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasFrame(MethodNode method) {
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null;
+                insn = insn.getNext()) {
+            if (insn.getType() == AbstractInsnNode.FRAME) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static int getCodeSize(MethodNode method) {
+        CodeSizeEvaluator sizeEvaluator = new CodeSizeEvaluator(null);
+        method.instructions.accept(sizeEvaluator);
+        return sizeEvaluator.getMaxSize();
+    }
+
     /**
      * If a class is package private, make it public so instrumented code living in a different
      * class loader can instantiate them.
@@ -227,6 +381,14 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
         return access;
     }
 
+    /**
+     * Adds the redirections to a method.
+     * <p>
+     * When the frames of the method are kept, the locals of the method are not renumbered: the
+     * instructions and frames visited are passed through as is, the $change local is added above
+     * them and the frame of the original code following the redirection is added unless it has
+     * one. Otherwise the frames visited are dropped, the writer computes them.
+     */
     private class ISMethodVisitor extends GeneratorAdapter {
 
         private boolean disableRedirection = false;
@@ -235,25 +397,31 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
         private final List<Redirection> redirections;
         private final Map<Label, Redirection> resolvedRedirections;
         private final Label start;
+        private final boolean keepFrames;
+        private final int maxLocals;
+        private final boolean addStartFrame;
 
-        public ISMethodVisitor(MethodVisitor mv, int access, String name, String desc) {
+        /**
+         * @param start      the label marking the beginning of the instrumented method.
+         * @param keptFrames the method read, when its frames are kept, or null.
+         */
+        public ISMethodVisitor(MethodVisitor mv, int access, String name, String desc,
+                               Label start, MethodNode keptFrames) {
             super(Opcodes.ASM5, mv, access, name, desc);
             this.change = -1;
             this.redirections = new ArrayList<Redirection>();
             this.resolvedRedirections = new HashMap<Label, Redirection>();
-            this.args = new ArrayList<Type>(Arrays.asList(Type.getArgumentTypes(desc)));
-            this.start = new Label();
-            boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
-            // if this is not a static, we add a fictional first parameter what will contain the
-            // "this" reference which can be loaded with ILOAD_0 bytecode.
-            if (!isStatic) {
-                args.add(0, Type.getType(Object.class));
-            }
+            this.args = getRedirectedArgs(access, desc);
+            this.start = start;
+            this.keepFrames = keptFrames != null;
+            this.maxLocals = keepFrames ? keptFrames.maxLocals : 0;
+            this.addStartFrame = keepFrames && (classNode.version & 0xFFFF) >= Opcodes.V1_6
+                    && !startsWithFrame(keptFrames);
         }
 
         @Override
         public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-            if (desc.equals(DISABLE_ANNOTATION_TYPE.getDescriptor())) {
+            if (filter.isDisabledBy(desc)) {
                 disableRedirection = true;
             }
             return super.visitAnnotation(desc, visible);
@@ -278,16 +446,72 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
                 }
 
                 super.visitLabel(start);
-                change = newLocal(CHANGE_TYPE);
                 visitFieldInsn(Opcodes.GETSTATIC, visitedClassName, "$change",
                         getRuntimeTypeName(CHANGE_TYPE));
-                storeLocal(change);
+                if (keepFrames) {
+                    change = maxLocals;
+                    storeLocal(change, CHANGE_TYPE);
+                } else {
+                    change = newLocal(CHANGE_TYPE);
+                    storeLocal(change);
+                }
 
                 redirectAt(start);
+                if (addStartFrame) {
+                    // where the redirection jumps to when there is no change, with the locals
+                    // of the method entry.
+                    mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+                }
             }
             super.visitCode();
         }
 
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            if (keepFrames) {
+                mv.visitVarInsn(opcode, var);
+            } else {
+                super.visitVarInsn(opcode, var);
+            }
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            if (keepFrames) {
+                mv.visitIincInsn(var, increment);
+            } else {
+                super.visitIincInsn(var, increment);
+            }
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack,
+                               Object[] stack) {
+            if (keepFrames) {
+                mv.visitFrame(type, nLocal, local, nStack, stack);
+            }
+        }
+
+        @Override
+        public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath,
+                Label[] start, Label[] end, int[] index, String desc, boolean visible) {
+            if (keepFrames) {
+                return mv.visitLocalVariableAnnotation(typeRef, typePath, start, end, index,
+                        desc, visible);
+            }
+            return super.visitLocalVariableAnnotation(typeRef, typePath, start, end, index, desc,
+                    visible);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            if (keepFrames) {
+                mv.visitMaxs(maxStack, Math.max(maxLocals, change + 1));
+            } else {
+                super.visitMaxs(maxStack, maxLocals);
+            }
+        }
+
         @Override
         public void visitLabel(Label label) {
             super.visitLabel(label);
@@ -320,12 +544,28 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
             if (!disableRedirection && index < args.size()) {
                 start = this.start;
             }
-            super.visitLocalVariable(name, desc, signature, start, end, index);
+            if (keepFrames) {
+                mv.visitLocalVariable(name, desc, signature, start, end, index);
+            } else {
+                super.visitLocalVariable(name, desc, signature, start, end, index);
+            }
         }
+    }
 
-        public Label getStartLabel() {
-            return start;
+    /**
+     * Whether the first instruction of a method has a frame, a jump target like a loop header.
+     */
+    private static boolean startsWithFrame(MethodNode method) {
+        for (AbstractInsnNode insn = method.instructions.getFirst(); insn != null;
+                insn = insn.getNext()) {
+            if (insn.getType() == AbstractInsnNode.FRAME) {
+                return true;
+            }
+            if (insn.getOpcode() >= 0) {
+                return false;
+            }
         }
+        return false;
     }
 
     /**
@@ -368,7 +608,7 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
                 | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_VARARGS;
         Method m = new Method("access$super", "(L" + visitedClassName
                 + ";Ljava/lang/String;[Ljava/lang/Object;)Ljava/lang/Object;");
-        MethodVisitor visitor = super.visitMethod(access,
+        MethodVisitor visitor = visitMethodComputingFrames(access,
                 m.getName(),
                 m.getDescriptor(),
                 null, null);
@@ -485,7 +725,8 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
 
         Method m = new Method(AsmUtils.CONSTRUCTOR,
                 ConstructorArgsRedirection.DISPATCHING_THIS_SIGNATURE);
-        MethodVisitor visitor = super.visitMethod(0, m.getName(), m.getDescriptor(), null, null);
+        MethodVisitor visitor = visitMethodComputingFrames(0, m.getName(), m.getDescriptor(),
+                null, null);
         final GeneratorAdapter mv = new GeneratorAdapter(access, m, visitor);
 
         mv.visitCode();
@@ -545,6 +786,10 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
     public void visitEnd() {
         createAccessSuper();
         createDispatchingThis();
+        // no patch overrides the classes disabled by annotation, see MethodIds.record.
+        if (accessors && !disableRedirectionForClass) {
+            Accessors.addAccessors(cv, classNode);
+        }
         super.visitEnd();
     }
 
@@ -615,4 +860,16 @@ public class IncrementalSupportVisitor extends IncrementalVisitor {
     public static void mainMe(String args1, String arg2,String arg3) throws IOException {
         IncrementalVisitor.main(new String[]{args1, arg2,arg3}, VISITOR_BUILDER);
     }
+
+    /**
+     * Same as {@link #mainMe(String, String, String)} but instruments the classes as
+     * {@code options} tell, on {@code parallelism} threads, 0 meaning all available cores,
+     * resolving the class hierarchy from {@code classHierarchy} when not null.
+     */
+    public static void mainMe(String args1, String arg2, String arg3, int parallelism,
+                              ClassHierarchy classHierarchy, InstrumentationOptions options)
+            throws IOException {
+        IncrementalVisitor.main(new String[]{args1, arg2, arg3}, newVisitorBuilder(options),
+                parallelism, classHierarchy);
+    }
 }
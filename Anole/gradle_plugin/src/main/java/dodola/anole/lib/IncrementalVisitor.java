@@ -4,33 +4,44 @@
 
 package dodola.anole.lib;
 
-import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Lists;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Ordering;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.GeneratorAdapter;
 import org.objectweb.asm.commons.Method;
-import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.FieldNode;
 import org.objectweb.asm.tree.MethodNode;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 public class IncrementalVisitor extends ClassVisitor {
 
@@ -61,6 +72,15 @@ public class IncrementalVisitor extends ClassVisitor {
 
     protected static final boolean TRACING_ENABLED = Boolean.getBoolean("FDR_TRACING");
 
+    // Per thread scratch buffer input classes are read into, reused for every class the thread
+    // instruments so that parallel instrumentation does not allocate one array per class.
+    private static final ThreadLocal<byte[]> CLASS_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[64 * 1024];
+        }
+    };
+
     public static final Type CHANGE_TYPE = Type.getType("L" + PACKAGE + "/IncrementalChange;");
 
     protected String visitedClassName;
@@ -92,6 +112,19 @@ public class IncrementalVisitor extends ClassVisitor {
         this.parentNodes = parentNodes;
     }
 
+    /**
+     * Visits a method whose stack map frames are computed by the writer rather than visited, for
+     * the methods generated or rewritten without keeping track of their frames.
+     */
+    protected MethodVisitor visitMethodComputingFrames(int access, String name, String desc,
+            String signature, String[] exceptions) {
+        if (cv instanceof PartialFramesWriter) {
+            return ((PartialFramesWriter) cv).visitMethodComputingFrames(access, name, desc,
+                    signature, exceptions);
+        }
+        return super.visitMethod(access, name, desc, signature, exceptions);
+    }
+
     protected static String getRuntimeTypeName(Type type) {
         return "L" + type.getInternalName() + ";";
     }
@@ -199,11 +232,51 @@ public class IncrementalVisitor extends ClassVisitor {
 
 
         OutputType getOutputType();
+
+        /**
+         * Returns the filter selecting the classes the visitors are applied to, the others are
+         * copied over or have no output.
+         */
+        InstrumentationFilter getFilter();
+
+        /**
+         * Returns a string identifying the visitors built by this builder and their options, part
+         * of the key of their cached outputs.
+         */
+        String getCacheKey();
+
+        /**
+         * Whether the visitors keep the stack map frames of the methods they do not rewrite and
+         * emit the frames of the code they add. The classes are then visited straight from their
+         * reader without expanding their frames, and only the methods visited through
+         * {@link IncrementalVisitor#visitMethodComputingFrames} have their frames computed.
+         * Otherwise the frames of all the methods are computed.
+         */
+        boolean isKeepingFrames();
     }
 
     protected static void main(
             String[] args,
             VisitorBuilder visitorBuilder) throws IOException {
+        main(args, visitorBuilder, 1, null);
+    }
+
+    /**
+     * Instruments all the classes found in the input directory.
+     *
+     * @param args           input directory, output directory and classpath.
+     * @param visitorBuilder the builder of the visitor applied to each class.
+     * @param parallelism    the number of threads used to instrument the classes, 1 to instrument
+     *                       on the calling thread, 0 or less to use all available cores.
+     * @param classHierarchy the class index shared with other instrumentation passes of the same
+     *                       build, or null to index the input directory and classpath just for
+     *                       this pass.
+     */
+    protected static void main(
+            String[] args,
+            VisitorBuilder visitorBuilder,
+            int parallelism,
+            ClassHierarchy classHierarchy) throws IOException {
 
         if (args.length != 3) {
             throw new IllegalArgumentException("Needs to be given an input and output directory "
@@ -214,49 +287,135 @@ public class IncrementalVisitor extends ClassVisitor {
         File baseInstrumentedCompileOutputFolder = new File(args[1]);
         FileUtils.emptyFolder(baseInstrumentedCompileOutputFolder);
 
-        Iterable<String> classPathStrings = Splitter.on(File.pathSeparatorChar).split(args[2]);
-        List<URL> classPath = Lists.newArrayList();
-        for (String classPathString : classPathStrings) {
-            File path = new File(classPathString);
-
-            if (!path.exists()) {
-                throw new IllegalArgumentException(
-                        String.format("Invalid class path element %s", classPathString));
-            }
-            classPath.add(path.toURI().toURL());
+        if (classHierarchy != null) {
+            instrumentClasses(srcLocation, baseInstrumentedCompileOutputFolder, visitorBuilder,
+                    parallelism, classHierarchy);
+            return;
         }
-        classPath.add(srcLocation.toURI().toURL());
-        URL[] classPathArray = Iterables.toArray(classPath, URL.class);
-
-        ClassLoader classesToInstrumentLoader = new URLClassLoader(classPathArray, null) {
-            @Override
-            public URL getResource(String name) {
-                // Never delegate to bootstrap classes.
-                return findResource(name);
-            }
-        };
 
-        ClassLoader originalThreadContextClassLoader = Thread.currentThread()
-                .getContextClassLoader();
+        ClassHierarchy ownHierarchy = ClassHierarchy.fromClassPath(
+                srcLocation.getPath() + File.pathSeparatorChar + args[2]);
         try {
-            Thread.currentThread().setContextClassLoader(classesToInstrumentLoader);
-            instrumentClasses(srcLocation,
-                    baseInstrumentedCompileOutputFolder, visitorBuilder);
+            instrumentClasses(srcLocation, baseInstrumentedCompileOutputFolder, visitorBuilder,
+                    parallelism, ownHierarchy);
         } finally {
-            Thread.currentThread().setContextClassLoader(originalThreadContextClassLoader);
+            ownHierarchy.close();
         }
     }
 
     private static void instrumentClasses(
             File rootLocation,
             File outLocation,
-            VisitorBuilder visitorBuilder) throws IOException {
+            VisitorBuilder visitorBuilder,
+            int parallelism,
+            ClassHierarchy classHierarchy) throws IOException {
+
+        // sort the inputs so that the work split, and therefore the output, does not depend on
+        // the order in which the file system lists directories.
+        List<File> files = Files.fileTreeTraverser().preOrderTraversal(rootLocation)
+                .filter(Files.isFile()).toSortedList(Ordering.natural());
+        instrumentFiles(rootLocation, files, outLocation, visitorBuilder, parallelism,
+                classHierarchy, null /* cache */);
+    }
+
+    /**
+     * Instruments some of the files of a directory into the same relative paths of the output
+     * directory.
+     *
+     * @param rootLocation   the input directory.
+     * @param files          the files of the input directory to instrument.
+     * @param outLocation    the output directory.
+     * @param visitorBuilder the builder of the visitor applied to each class.
+     * @param parallelism    the number of instrumenting threads, 0 or less to use all cores.
+     * @param classHierarchy the index used to find the class parents and package-info and to
+     *                       compute frames, must have the classes of the input directory.
+     * @param cache          the cache to reuse the output of previous builds from, may be null.
+     */
+    public static void instrumentFiles(
+            File rootLocation,
+            List<File> files,
+            File outLocation,
+            VisitorBuilder visitorBuilder,
+            int parallelism,
+            ClassHierarchy classHierarchy,
+            InstrumentationCache cache) throws IOException {
+
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        if (parallelism == 1 || files.size() <= InstrumentTask.THRESHOLD) {
+            for (File inputFile : files) {
+                instrumentClass(rootLocation, inputFile, outLocation, visitorBuilder,
+                        classHierarchy, cache);
+            }
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new InstrumentTask(rootLocation, outLocation, visitorBuilder, files,
+                    classHierarchy, cache));
+        } catch (RuntimeException e) {
+            // the tasks wrap their IOExceptions, and the pool may wrap the task exception again
+            // when rethrowing it on the calling thread.
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-        Iterable<File> files =
-                Files.fileTreeTraverser().preOrderTraversal(rootLocation).filter(Files.isFile());
+    /**
+     * Fork/join task instrumenting a slice of the input files. Slices are split in halves until
+     * they are small enough to be processed sequentially, idle workers steal the pending halves.
+     */
+    private static final class InstrumentTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int THRESHOLD = 32;
+
+        private final File rootLocation;
+        private final File outLocation;
+        private final VisitorBuilder visitorBuilder;
+        private final List<File> files;
+        private final ClassHierarchy classHierarchy;
+        private final InstrumentationCache cache;
+
+        InstrumentTask(File rootLocation, File outLocation, VisitorBuilder visitorBuilder,
+                       List<File> files, ClassHierarchy classHierarchy,
+                       InstrumentationCache cache) {
+            this.rootLocation = rootLocation;
+            this.outLocation = outLocation;
+            this.visitorBuilder = visitorBuilder;
+            this.files = files;
+            this.classHierarchy = classHierarchy;
+            this.cache = cache;
+        }
 
-        for (File inputFile : files) {
-            instrumentClass(rootLocation, inputFile, outLocation, visitorBuilder);
+        @Override
+        protected void compute() {
+            if (files.size() > THRESHOLD) {
+                int middle = files.size() / 2;
+                invokeAll(
+                        new InstrumentTask(rootLocation, outLocation, visitorBuilder,
+                                files.subList(0, middle), classHierarchy, cache),
+                        new InstrumentTask(rootLocation, outLocation, visitorBuilder,
+                                files.subList(middle, files.size()), classHierarchy, cache));
+                return;
+            }
+            try {
+                for (File inputFile : files) {
+                    instrumentClass(rootLocation, inputFile, outLocation, visitorBuilder,
+                            classHierarchy, cache);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         }
     }
 
@@ -345,13 +504,21 @@ public class IncrementalVisitor extends ClassVisitor {
 //        }
 //    }
 
+    /**
+     * Instruments a class file of a directory into the same relative path of the output
+     * directory, files that are not classes are copied over.
+     *
+     * @param cache the cache to reuse the output of previous builds from, may be null.
+     * @return the written file or null if the visitor produces no output for this class.
+     */
     public static File instrumentClass(
             File inputRootDirectory,
             File inputFile,
             File outputDirectory,
-            VisitorBuilder visitorBuilder) throws IOException {
+            VisitorBuilder visitorBuilder,
+            ClassHierarchy classHierarchy,
+            InstrumentationCache cache) throws IOException {
 
-        byte[] classBytes;
         String path = FileUtils.relativePath(inputFile, inputRootDirectory);
         if (!inputFile.getPath().endsWith(SdkConstants.DOT_CLASS)) {
             File outputFile = new File(outputDirectory, path);
@@ -359,39 +526,115 @@ public class IncrementalVisitor extends ClassVisitor {
             Files.copy(inputFile, outputFile);
             return outputFile;
         }
-        classBytes = Files.toByteArray(inputFile);
-        ClassReader classReader = new ClassReader(classBytes);
-        // override the getCommonSuperClass to use the thread context class loader instead of
-        // the system classloader. This is useful as ASM needs to load classes from the project
-        // which the system classloader does not have visibility upon.
-        // TODO: investigate if there is not a simpler way than overriding.
-        ClassWriter classWriter = new ClassWriter(classReader, ClassWriter.COMPUTE_FRAMES) {
-            @Override
-            protected String getCommonSuperClass(final String type1, final String type2) {
-                Class<?> c, d;
-                ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-                try {
-                    c = Class.forName(type1.replace('/', '.'), false, classLoader);
-                    d = Class.forName(type2.replace('/', '.'), false, classLoader);
-                } catch (Exception e) {
-                    throw new RuntimeException(e.toString());
-                }
-                if (c.isAssignableFrom(d)) {
-                    return type1;
-                }
-                if (d.isAssignableFrom(c)) {
-                    return type2;
-                }
-                if (c.isInterface() || d.isInterface()) {
-                    return "java/lang/Object";
-                } else {
-                    do {
-                        c = c.getSuperclass();
-                    } while (!c.isAssignableFrom(d));
-                    return c.getName().replace('.', '/');
-                }
+        byte[] classBytes = readClassBytes(inputFile);
+        int classLength = (int) inputFile.length();
+        byte[] outputBytes = instrumentClassBytes(classBytes, classLength, visitorBuilder,
+                classHierarchy, cache);
+        if (outputBytes == null) {
+            return null;
+        }
+        File outputFile = new File(outputDirectory,
+                visitorBuilder.getMangledRelativeClassFilePath(path));
+        Files.createParentDirs(outputFile);
+        if (outputBytes == classBytes) {
+            writeClassBytes(classBytes, classLength, outputFile);
+        } else {
+            Files.write(outputBytes, outputFile);
+        }
+        return outputFile;
+    }
+
+    /**
+     * Instruments a class read from a jar entry and writes the result in the output directory.
+     * The jar must be part of {@code classHierarchy}, which is used to find its package-info.
+     *
+     * @param entryName       the jar entry name, like {@code com/foo/Bar.class}.
+     * @param classBytes      the entry content.
+     * @param outputDirectory the directory to write the instrumented class to.
+     * @return the written file or null if the visitor produces no output for this class.
+     */
+    public static File instrumentClass(
+            String entryName,
+            byte[] classBytes,
+            File outputDirectory,
+            VisitorBuilder visitorBuilder,
+            ClassHierarchy classHierarchy) throws IOException {
+
+        byte[] outputBytes = instrumentClassBytes(classBytes, classBytes.length, visitorBuilder,
+                classHierarchy, null /* cache */);
+        if (outputBytes == null) {
+            return null;
+        }
+        File outputFile = new File(outputDirectory, FileUtils.toSystemDependentPath(
+                visitorBuilder.getMangledRelativeClassFilePath(entryName)));
+        Files.createParentDirs(outputFile);
+        Files.write(outputBytes, outputFile);
+        return outputFile;
+    }
+
+    /**
+     * Instruments the bytes of a single class.
+     *
+     * @param classBytes     array holding the class bytes, possibly larger than the class.
+     * @param classLength    the class length.
+     * @param visitorBuilder the builder of the visitor applied to the class.
+     * @param classHierarchy the index used to find the class parents and package-info and to
+     *                       compute frames.
+     * @param cache          the cache to reuse the output of previous builds from, may be null.
+     * @return the instrumented bytes, {@code classBytes} itself if the class must be copied over
+     * without change, or null if the visitor produces no output for this class.
+     */
+    static byte[] instrumentClassBytes(
+            byte[] classBytes,
+            int classLength,
+            VisitorBuilder visitorBuilder,
+            final ClassHierarchy classHierarchy,
+            InstrumentationCache cache) throws IOException {
+
+        ClassReader classReader = new ClassReader(classBytes, 0, classLength);
+        if (!visitorBuilder.getFilter().isIncluded(classReader.getClassName())) {
+            // excluded classes are not even parsed.
+            return visitorBuilder.getOutputType() == OutputType.INSTRUMENT ? classBytes : null;
+        }
+        // the class header is enough to find everything the output depends on.
+        boolean packageDisabled = isPackageInstantRunDisabled(
+                classReader.getClassName(), classHierarchy);
+        List<ClassNode> parentsNodes = classHierarchy.getSuperClasses(classReader.getSuperName());
+
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = InstrumentationCache.getKey(classBytes, classLength, parentsNodes,
+                    packageDisabled, visitorBuilder);
+            byte[] cachedBytes = cache.get(cacheKey);
+            if (cachedBytes != null) {
+                return cachedBytes;
             }
-        };
+        }
+
+        byte[] outputBytes = instrumentClassBytes(classReader, classBytes, visitorBuilder,
+                classHierarchy, packageDisabled, parentsNodes);
+        if (cache != null && outputBytes != null) {
+            cache.put(cacheKey, outputBytes == classBytes
+                    ? Arrays.copyOf(classBytes, classLength)
+                    : outputBytes);
+        }
+        return outputBytes;
+    }
+
+    private static byte[] instrumentClassBytes(
+            ClassReader classReader,
+            byte[] classBytes,
+            VisitorBuilder visitorBuilder,
+            final ClassHierarchy classHierarchy,
+            boolean packageDisabled,
+            List<ClassNode> parentsNodes) {
+
+        if (visitorBuilder.isKeepingFrames()) {
+            return instrumentKeepingFrames(classReader, classBytes, visitorBuilder,
+                    classHierarchy, packageDisabled, parentsNodes);
+        }
+        ClassWriter classWriter = PartialFramesWriter.newClassWriter(classReader,
+                ClassWriter.COMPUTE_FRAMES, classHierarchy);
 
         ClassNode classNode = new ClassNode();
         classReader.accept(classNode, ClassReader.EXPAND_FRAMES);
@@ -399,119 +642,308 @@ public class IncrementalVisitor extends ClassVisitor {
         // when dealing with interface, we just copy the inputFile over without any changes unless
         // this is a package private interface.
         AccessRight accessRight = AccessRight.fromNodeAccess(classNode.access);
-        File outputFile = new File(outputDirectory, path);
         if ((classNode.access & Opcodes.ACC_INTERFACE) != 0) {
             if (visitorBuilder.getOutputType() == OutputType.INSTRUMENT) {
                 // don't change the name of interfaces.
-                Files.createParentDirs(outputFile);
                 if (accessRight == AccessRight.PACKAGE_PRIVATE) {
                     classNode.access = classNode.access | Opcodes.ACC_PUBLIC;
                     classNode.accept(classWriter);
-                    Files.write(classWriter.toByteArray(), outputFile);
+                    return classWriter.toByteArray();
                 } else {
                     // just copy the input file over, no change.
-                    Files.write(classBytes, outputFile);
+                    return classBytes;
                 }
-                return outputFile;
             } else {
                 return null;
             }
         }
 
-        if (isPackageInstantRunDisabled(inputFile, classNode)) {
+        if (packageDisabled) {
             if (visitorBuilder.getOutputType() == OutputType.INSTRUMENT) {
-                Files.createParentDirs(outputFile);
-                Files.write(classBytes, outputFile);
-                return outputFile;
+                return classBytes;
             } else {
                 return null;
             }
         }
 
-        List<ClassNode> parentsNodes = parseParents(inputFile, classNode);
-        outputFile = new File(outputDirectory, visitorBuilder.getMangledRelativeClassFilePath(path));
-        Files.createParentDirs(outputFile);
         IncrementalVisitor visitor = visitorBuilder.build(classNode, parentsNodes, classWriter);
         classNode.accept(visitor);
 
-        Files.write(classWriter.toByteArray(), outputFile);
-        return outputFile;
+        return classWriter.toByteArray();
     }
 
+    /**
+     * Same as {@link #instrumentClassBytes(ClassReader, byte[], VisitorBuilder, ClassHierarchy,
+     * boolean, List)} for the visitors keeping the frames, see
+     * {@link VisitorBuilder#isKeepingFrames()}.
+     * <p>
+     * The class node the visitor looks the methods up in is read with the frames as they are in
+     * the class file. The class is then visited from the reader: the methods the visitor rewrites
+     * are skipped by the reader and replayed from the node, the others are copied as is, so that
+     * the code of each method is parsed once.
+     */
+    private static byte[] instrumentKeepingFrames(
+            ClassReader classReader,
+            byte[] classBytes,
+            VisitorBuilder visitorBuilder,
+            ClassHierarchy classHierarchy,
+            boolean packageDisabled,
+            List<ClassNode> parentsNodes) {
+
+        PartialFramesWriter classWriter = new PartialFramesWriter(classReader, classHierarchy);
+
+        ClassNode classNode = new ClassNode();
+        classReader.accept(classNode, 0);
+
+        if ((classNode.access & Opcodes.ACC_INTERFACE) != 0) {
+            if (visitorBuilder.getOutputType() != OutputType.INSTRUMENT) {
+                return null;
+            }
+            // don't change the name of interfaces, only make package private ones public.
+            if (AccessRight.fromNodeAccess(classNode.access) != AccessRight.PACKAGE_PRIVATE) {
+                return classBytes;
+            }
+            classNode.access = classNode.access | Opcodes.ACC_PUBLIC;
+            classNode.accept(classWriter);
+            return classWriter.toByteArray();
+        }
+
+        if (packageDisabled) {
+            return visitorBuilder.getOutputType() == OutputType.INSTRUMENT ? classBytes : null;
+        }
+
+        IncrementalVisitor visitor = visitorBuilder.build(classNode, parentsNodes, classWriter);
+        classReader.accept(visitor, 0);
 
-    private static File getBinaryFolder(File inputFile, ClassNode classNode) {
-        return new File(inputFile.getAbsolutePath().substring(0,
-                inputFile.getAbsolutePath().length() - (classNode.name.length() + ".class".length())));
+        return classWriter.toByteArray();
     }
 
+    /**
+     * Callback notified of the content of each entry streamed by {@link #instrumentJar} or
+     * {@link #readJar}.
+     */
+    public interface JarEntryListener {
 
-    private static List<ClassNode> parseParents(
-            File inputFile, ClassNode classNode) throws IOException {
-        File binaryFolder = getBinaryFolder(inputFile, classNode);
-        List<ClassNode> parentNodes = new ArrayList<ClassNode>();
-        String currentParentName = classNode.superName;
+        /**
+         * Called on the reading thread, in jar order, before the entry is instrumented.
+         *
+         * @param entryName the entry name.
+         * @param bytes     the entry original content, must not be modified.
+         */
+        void onEntry(String entryName, byte[] bytes) throws IOException;
+    }
 
-        while (currentParentName != null) {
-            File parentFile = new File(binaryFolder, currentParentName + ".class");
-            if (parentFile.exists()) {
-                InputStream parentFileClassReader = new BufferedInputStream(new FileInputStream(parentFile));
-                ClassReader parentClassReader = new ClassReader(parentFileClassReader);
-                ClassNode parentNode = new ClassNode();
-                parentClassReader.accept(parentNode, ClassReader.EXPAND_FRAMES);
-                parentNodes.add(parentNode);
-                currentParentName = parentNode.superName;
-            } else {
-                // May need method information from outside of the current project. Thread local class reader
-                // should be the one
-                try {
-                    ClassReader parentClassReader = new ClassReader(
-                            Thread.currentThread().getContextClassLoader().getResourceAsStream(
-                                    currentParentName + ".class"));
-                    ClassNode parentNode = new ClassNode();
-                    parentClassReader.accept(parentNode, ClassReader.EXPAND_FRAMES);
-                    parentNodes.add(parentNode);
-                    currentParentName = parentNode.superName;
-                } catch (IOException e) {
-                    // Could not locate parent class. This is as far as we can go locating parents.
-                    currentParentName = null;
+    /**
+     * Instruments a jar into another jar without extracting it: each entry is read once, handed
+     * to the listener, instrumented and written straight to the output jar, in the input order.
+     * Classes are instrumented on {@code parallelism} threads while the next entries are read,
+     * and compressed on as many threads by a {@link JarWriter}.
+     *
+     * @param inputJar         the jar to instrument, must be part of {@code classHierarchy}.
+     * @param outputJar        the instrumented jar to create.
+     * @param visitorBuilder   the builder of the visitor applied to each class.
+     * @param classHierarchy   the index used to find the class parents and compute frames.
+     * @param parallelism      the number of instrumenting threads, 0 or less to use all cores.
+     * @param compressionLevel the compression level of the output jar, see {@link JarWriter}.
+     * @param listener         notified of every entry, may be null.
+     * @param cache            the output of previous builds to reuse for the classes it has,
+     *                         may be null.
+     */
+    public static void instrumentJar(
+            File inputJar,
+            File outputJar,
+            final VisitorBuilder visitorBuilder,
+            final ClassHierarchy classHierarchy,
+            int parallelism,
+            int compressionLevel,
+            JarEntryListener listener,
+            final InstrumentationCache cache) throws IOException {
+
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        // bound the number of entries held in memory while waiting to be written.
+        int window = parallelism * InstrumentTask.THRESHOLD;
+
+        JarFile jarFile = new JarFile(inputJar);
+        try {
+            JarWriter jarWriter = new JarWriter(outputJar, compressionLevel, parallelism);
+            ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+            boolean completed = false;
+            try {
+                instrumentEntries(jarFile, jarWriter, visitorBuilder, classHierarchy, pool,
+                        window, listener, cache);
+                // closing writes the central directory, the jar is complete once it succeeds.
+                jarWriter.close();
+                completed = true;
+            } finally {
+                if (pool != null) {
+                    pool.shutdownNow();
+                }
+                if (!completed) {
+                    // keep the failure that left the jar incomplete rather than this one.
+                    Closeables.close(jarWriter, true /* swallowIOException */);
+                    outputJar.delete();
                 }
             }
+        } finally {
+            jarFile.close();
         }
-        return parentNodes;
     }
 
+    private static void instrumentEntries(
+            JarFile jarFile,
+            JarWriter jarWriter,
+            final VisitorBuilder visitorBuilder,
+            final ClassHierarchy classHierarchy,
+            ForkJoinPool pool,
+            int window,
+            JarEntryListener listener,
+            final InstrumentationCache cache) throws IOException {
+        Deque<PendingEntry> pending = new ArrayDeque<PendingEntry>();
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            JarEntry entry = entries.nextElement();
+            final byte[] bytes = readEntry(jarFile, entry);
+            if (listener != null) {
+                listener.onEntry(entry.getName(), bytes);
+            }
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            if (!entry.getName().endsWith(SdkConstants.DOT_CLASS)) {
+                pending.add(new PendingEntry(entry, Futures.immediateFuture(bytes)));
+            } else if (pool == null) {
+                pending.add(new PendingEntry(entry, Futures.immediateFuture(
+                        instrumentClassBytes(bytes, bytes.length, visitorBuilder,
+                                classHierarchy, cache))));
+            } else {
+                pending.add(new PendingEntry(entry, pool.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return instrumentClassBytes(bytes, bytes.length, visitorBuilder,
+                                classHierarchy, cache);
+                    }
+                })));
+            }
+            while (pending.size() > window) {
+                pending.poll().write(jarWriter, visitorBuilder);
+            }
+        }
+        while (!pending.isEmpty()) {
+            pending.poll().write(jarWriter, visitorBuilder);
+        }
+    }
 
-    private static ClassNode parsePackageInfo(
-            File inputFile, ClassNode classNode) throws IOException {
+    /**
+     * Reads every entry of a jar once, in jar order, and hands its content to the listener, for
+     * the callers that need an entry for several purposes without inflating it again.
+     */
+    public static void readJar(File inputJar, JarEntryListener listener) throws IOException {
+        JarFile jarFile = new JarFile(inputJar);
+        try {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                listener.onEntry(entry.getName(), readEntry(jarFile, entry));
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
 
-        File packageFolder = inputFile.getParentFile();
-        File packageInfoClass = new File(packageFolder, "package-info.class");
-        if (packageInfoClass.exists()) {
-            InputStream reader = new BufferedInputStream(new FileInputStream(packageInfoClass));
-            ClassReader classReader = new ClassReader(reader);
-            ClassNode packageInfo = new ClassNode();
-            classReader.accept(packageInfo, ClassReader.EXPAND_FRAMES);
-            return packageInfo;
+    /**
+     * Inflates an entry straight into an array of its size when the jar records it, instead of
+     * growing and copying buffers.
+     */
+    private static byte[] readEntry(JarFile jarFile, JarEntry entry) throws IOException {
+        InputStream inputStream = jarFile.getInputStream(entry);
+        try {
+            long size = entry.getSize();
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                return ByteStreams.toByteArray(inputStream);
+            }
+            byte[] bytes = new byte[(int) size];
+            ByteStreams.readFully(inputStream, bytes);
+            return bytes;
+        } finally {
+            inputStream.close();
         }
-        return null;
     }
 
-    private static boolean isPackageInstantRunDisabled(
-            File inputFile, ClassNode classNode) throws IOException {
-
-        ClassNode packageInfoClass = parsePackageInfo(inputFile, classNode);
-        if (packageInfoClass != null) {
-            //noinspection unchecked
-            List<AnnotationNode> annotations = packageInfoClass.invisibleAnnotations;
-            if (annotations == null) {
-                return false;
+    /**
+     * An input jar entry waiting for its instrumentation to complete to be written.
+     */
+    private static final class PendingEntry {
+
+        private final JarEntry entry;
+        private final Future<byte[]> content;
+
+        PendingEntry(JarEntry entry, Future<byte[]> content) {
+            this.entry = entry;
+            this.content = content;
+        }
+
+        void write(JarWriter jarWriter, VisitorBuilder visitorBuilder)
+                throws IOException {
+            byte[] bytes;
+            try {
+                bytes = content.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                throw new RuntimeException(e.getCause());
             }
-            for (AnnotationNode annotation : annotations) {
-                if (annotation.desc.equals(DISABLE_ANNOTATION_TYPE.getDescriptor())) {
-                    return true;
-                }
+            if (bytes == null) {
+                return;
             }
+            String name = entry.getName();
+            if (name.endsWith(SdkConstants.DOT_CLASS)) {
+                name = visitorBuilder.getMangledRelativeClassFilePath(name);
+            }
+            jarWriter.add(name, entry.getTime(), bytes);
         }
-        return false;
+    }
+
+    /**
+     * Reads the class file into the calling thread's scratch buffer, growing it when needed.
+     * The returned array is only valid until the next call on the same thread.
+     */
+    private static byte[] readClassBytes(File inputFile) throws IOException {
+        int length = (int) inputFile.length();
+        byte[] buffer = CLASS_BUFFER.get();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+            CLASS_BUFFER.set(buffer);
+        }
+        InputStream inputStream = new FileInputStream(inputFile);
+        try {
+            ByteStreams.readFully(inputStream, buffer, 0, length);
+        } finally {
+            inputStream.close();
+        }
+        return buffer;
+    }
+
+    private static void writeClassBytes(byte[] classBytes, int length, File outputFile)
+            throws IOException {
+        OutputStream outputStream = new FileOutputStream(outputFile);
+        try {
+            outputStream.write(classBytes, 0, length);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static boolean isPackageInstantRunDisabled(
+            String className,
+            ClassHierarchy classHierarchy) {
+
+        int i = className.lastIndexOf('/');
+        return classHierarchy.isPackageAnnotated(i == -1 ? "" : className.substring(0, i),
+                DISABLE_ANNOTATION_TYPE.getDescriptor());
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of instrumented classes, kept across builds.
+ * <p>
+ * Entries are keyed by a hash of everything the instrumentation output depends on: the input
+ * class bytes, the signatures of its super classes (whose methods and constructors are used to
+ * generate {@code access$super} and the dispatching constructor), whether its package opted out of the
+ * instrumentation and the visitor used with its options. A class whose key did not change since
+ * a previous build is therefore not instrumented again, its previous output is read back instead.
+ * <p>
+ * Entries can be read and written concurrently, from several threads or builds.
+ */
+public class InstrumentationCache {
+
+    // bump when the instrumentation output changes so that entries of older plugins are ignored.
+    private static final int VERSION = 6;
+
+    private final File directory;
+    private final Set<String> usedKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public InstrumentationCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Computes the key of a class.
+     *
+     * @param classBytes      array holding the class bytes, possibly larger than the class.
+     * @param classLength     the class length.
+     * @param parentNodes     the super classes of the class, closest first.
+     * @param packageDisabled whether the class package disables the instrumentation.
+     * @param visitorBuilder  the builder of the visitor applied to the class.
+     */
+    public static String getKey(
+            byte[] classBytes,
+            int classLength,
+            List<ClassNode> parentNodes,
+            boolean packageDisabled,
+            IncrementalVisitor.VisitorBuilder visitorBuilder) {
+
+        Hasher hasher = Hashing.sha1().newHasher()
+                .putInt(VERSION)
+                .putUnencodedChars(visitorBuilder.getCacheKey())
+                .putBoolean(packageDisabled)
+                .putBytes(classBytes, 0, classLength);
+        for (ClassNode parentNode : parentNodes) {
+            putSignature(hasher, parentNode);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Returns a hash of what a class contributes to the output of its subclasses: its access
+     * flags, super class, interfaces, annotations and methods. The subclasses of a class whose
+     * signature changed must be instrumented again.
+     */
+    public static String getSignature(ClassNode classNode) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        putSignature(hasher, classNode);
+        return hasher.hash().toString();
+    }
+
+    private static void putSignature(Hasher hasher, ClassNode classNode) {
+        hasher.putUnencodedChars(classNode.name)
+                .putInt(classNode.access)
+                .putUnencodedChars(Strings.nullToEmpty(classNode.superName));
+        //noinspection unchecked ASM api.
+        for (String interfaceName : (List<String>) classNode.interfaces) {
+            hasher.putUnencodedChars(interfaceName);
+        }
+        //noinspection unchecked ASM api.
+        putAnnotations(hasher, (List<AnnotationNode>) classNode.visibleAnnotations);
+        //noinspection unchecked ASM api.
+        putAnnotations(hasher, (List<AnnotationNode>) classNode.invisibleAnnotations);
+        //noinspection unchecked ASM api.
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            hasher.putInt(method.access)
+                    .putUnencodedChars(method.name)
+                    .putUnencodedChars(method.desc);
+        }
+    }
+
+    private static void putAnnotations(Hasher hasher, List<AnnotationNode> annotations) {
+        // separates the visible annotations from the invisible ones.
+        hasher.putInt(annotations != null ? annotations.size() : 0);
+        if (annotations != null) {
+            for (AnnotationNode annotation : annotations) {
+                hasher.putUnencodedChars(annotation.desc);
+            }
+        }
+    }
+
+    /**
+     * Returns the cached output for the passed key, or null if it was never stored.
+     */
+    public byte[] get(String key) throws IOException {
+        usedKeys.add(key);
+        File entry = getEntry(key);
+        return entry.isFile() ? Files.toByteArray(entry) : null;
+    }
+
+    /**
+     * Stores the output of a class. The entry is written to a temporary file first so that
+     * concurrent readers never see a partial entry.
+     */
+    public void put(String key, byte[] bytes) throws IOException {
+        usedKeys.add(key);
+        File entry = getEntry(key);
+        Files.createParentDirs(entry);
+        File tmp = File.createTempFile(key, ".tmp", entry.getParentFile());
+        Files.write(bytes, tmp);
+        if (!tmp.renameTo(entry)) {
+            // another thread or build stored the same output in the meantime.
+            FileUtils.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Deletes the entries that were not looked up or stored since this instance was created.
+     * Only meaningful after a full build, during which every live class was looked up.
+     */
+    public void trim() throws IOException {
+        File[] buckets = directory.listFiles();
+        if (buckets == null) {
+            return;
+        }
+        for (File bucket : buckets) {
+            File[] entries = bucket.listFiles();
+            if (entries == null) {
+                continue;
+            }
+            for (File entry : entries) {
+                if (!usedKeys.contains(bucket.getName() + entry.getName())) {
+                    FileUtils.delete(entry);
+                }
+            }
+        }
+    }
+
+    private File getEntry(String key) {
+        // spread the entries over 256 folders to keep directory listings short.
+        return new File(new File(directory, key.substring(0, 2)), key.substring(2));
+    }
+}
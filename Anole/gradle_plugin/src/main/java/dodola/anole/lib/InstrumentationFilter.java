@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the classes and methods that are instrumented, the others are copied over without the
+ * $change checks and can not be patched.
+ * <p>
+ * Packages and classes are given with dots or slashes, like {@code com.foo} or
+ * {@code com/foo/Bar}, and are one of:
+ * <ul>
+ * <li>a name: a package also matches its sub packages and a class its inner classes.</li>
+ * <li>a glob: {@code *} matches within a package segment, {@code **} across segments and
+ * {@code ?} a single character. A package glob also matches the sub packages.</li>
+ * <li>a regular expression prefixed with {@code regex:}, matched against the whole package or
+ * class name.</li>
+ * </ul>
+ * A class is instrumented if its package matches one of the included packages, or there are
+ * none, and it matches none of the excluded packages and classes. Classes and methods annotated
+ * with one of the excluded annotations, which must not be dropped from the class files, are left
+ * without redirection like the ones annotated with {@code @DisableInstantRun}.
+ * <p>
+ * Excluded classes are copied over as is: patched code cannot use their package private members.
+ * <p>
+ * Methods can also be left without redirection, to keep the cost of the $change check out of
+ * the hottest code: the hot methods of a {@link MethodProfile} and the methods whose code is
+ * smaller than a minimum size. Changes to these methods cannot be patched.
+ */
+public class InstrumentationFilter {
+
+    public static final InstrumentationFilter ALL = new InstrumentationFilter(
+            Collections.<String>emptySet(), Collections.<String>emptySet(),
+            Collections.<String>emptySet(), Collections.<String>emptySet());
+
+    private static final String REGEX_PREFIX = "regex:";
+
+    /**
+     * Why a method is left without redirection.
+     */
+    public enum MethodExclusion {
+        HOT, SMALL
+    }
+
+    private final List<Pattern> includePackages;
+    private final List<Pattern> excludePackages;
+    private final List<Pattern> excludeClasses;
+    private final Set<String> excludeAnnotations;
+    private final MethodProfile hotMethods;
+    private final int minMethodSize;
+    private final String cacheKey;
+
+    /**
+     * @param includePackages    the packages to instrument, all of them if empty.
+     * @param excludePackages    the packages not to instrument.
+     * @param excludeClasses     the classes not to instrument.
+     * @param excludeAnnotations the annotations of the classes and methods not to instrument, as
+     *                           class names.
+     */
+    public InstrumentationFilter(
+            Collection<String> includePackages,
+            Collection<String> excludePackages,
+            Collection<String> excludeClasses,
+            Collection<String> excludeAnnotations) {
+        this(includePackages, excludePackages, excludeClasses, excludeAnnotations,
+                null /* hotMethods */, 0 /* minMethodSize */);
+    }
+
+    /**
+     * @param hotMethods    the methods to leave without redirection, may be null.
+     * @param minMethodSize the code size, in bytes, below which methods are left without
+     *                      redirection.
+     */
+    public InstrumentationFilter(
+            Collection<String> includePackages,
+            Collection<String> excludePackages,
+            Collection<String> excludeClasses,
+            Collection<String> excludeAnnotations,
+            MethodProfile hotMethods,
+            int minMethodSize) {
+        this.includePackages = compile(includePackages, true /* isPackage */);
+        this.excludePackages = compile(excludePackages, true /* isPackage */);
+        this.excludeClasses = compile(excludeClasses, false /* isPackage */);
+        ImmutableSet.Builder<String> descriptors = ImmutableSet.builder();
+        for (String annotation : excludeAnnotations) {
+            descriptors.add("L" + annotation.replace('.', '/') + ";");
+        }
+        this.excludeAnnotations = descriptors.build();
+        this.hotMethods = hotMethods;
+        this.minMethodSize = minMethodSize;
+        this.cacheKey = Joiner.on(':').join(
+                Ordering.natural().sortedCopy(includePackages),
+                Ordering.natural().sortedCopy(excludePackages),
+                Ordering.natural().sortedCopy(excludeClasses),
+                Ordering.natural().sortedCopy(excludeAnnotations),
+                hotMethods != null ? hotMethods.getCacheKey() : "",
+                minMethodSize);
+    }
+
+    /**
+     * Returns whether a class is instrumented.
+     *
+     * @param className the internal name of the class, like {@code com/foo/Bar}.
+     */
+    public boolean isIncluded(String className) {
+        if (this == ALL) {
+            return true;
+        }
+        String name = className.replace('/', '.');
+        int separator = name.lastIndexOf('.');
+        String packageName = separator == -1 ? "" : name.substring(0, separator);
+        if (!includePackages.isEmpty() && !matches(includePackages, packageName)) {
+            return false;
+        }
+        return !matches(excludePackages, packageName) && !matches(excludeClasses, name);
+    }
+
+    /**
+     * Returns whether an annotation, as a descriptor, disables the instrumentation of the class or
+     * method it annotates.
+     */
+    public boolean isDisabledBy(String annotationDesc) {
+        return annotationDesc.equals(IncrementalVisitor.DISABLE_ANNOTATION_TYPE.getDescriptor())
+                || excludeAnnotations.contains(annotationDesc);
+    }
+
+    /**
+     * Returns why a method of an instrumented class is left without redirection, or null if it
+     * is redirected.
+     *
+     * @param className the internal name of the class.
+     * @param codeSize  the size of the method code in bytes.
+     */
+    public MethodExclusion getMethodExclusion(String className, String name, String desc,
+                                              int codeSize) {
+        if (hotMethods != null && hotMethods.isHot(className, name, desc)) {
+            return MethodExclusion.HOT;
+        }
+        if (codeSize < minMethodSize) {
+            return MethodExclusion.SMALL;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a string identifying the rules of this filter, part of the key of the cached
+     * outputs of the visitors using it.
+     */
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    private static boolean matches(List<Pattern> patterns, String name) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> compile(Collection<String> rules, boolean isPackage) {
+        ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+        for (String rule : rules) {
+            if (rule.startsWith(REGEX_PREFIX)) {
+                patterns.add(Pattern.compile(rule.substring(REGEX_PREFIX.length())));
+                continue;
+            }
+            String name = rule.replace('/', '.');
+            // a package matches its sub packages and a class its inner classes.
+            String suffix = isPackage ? "(\\..*)?" : "(\\$.*)?";
+            patterns.add(Pattern.compile(globToRegex(name) + suffix));
+        }
+        return patterns.build();
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^.]*");
+            } else if (c == '?') {
+                regex.append("[^.]");
+            } else if (Character.isLetterOrDigit(c) || c == '_') {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return regex.toString();
+    }
+}
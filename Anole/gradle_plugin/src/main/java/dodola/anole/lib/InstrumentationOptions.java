@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+/**
+ * How the classes of a build are instrumented and their patches built: the dispatch of the
+ * redirected methods, the classes and methods left out, the accessors added and the report of the
+ * code size. The same options are given to the instrumentation and to the patch passes.
+ */
+public final class InstrumentationOptions {
+
+    public static final InstrumentationOptions DEFAULT = new Builder().build();
+
+    private final boolean intDispatch;
+    private final InstrumentationFilter filter;
+    private final InstrumentationReport report;
+    private final boolean accessors;
+
+    private InstrumentationOptions(Builder builder) {
+        this.intDispatch = builder.intDispatch;
+        this.filter = builder.filter;
+        this.report = builder.report;
+        this.accessors = builder.accessors;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns whether the redirected methods are dispatched through
+     * {@code access$dispatch(int, Object[])}, on the ids defined by {@link MethodIds}, instead of
+     * on their names.
+     */
+    public boolean isIntDispatch() {
+        return intDispatch;
+    }
+
+    /**
+     * Returns the filter selecting the classes and methods instrumented and patched.
+     */
+    @NonNull
+    public InstrumentationFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Returns the report recording the code size of the methods, or null.
+     */
+    @Nullable
+    public InstrumentationReport getReport() {
+        return report;
+    }
+
+    /**
+     * Returns whether the {@link Accessors} are added to the classes.
+     */
+    public boolean hasAccessors() {
+        return accessors;
+    }
+
+    public static final class Builder {
+
+        private boolean intDispatch;
+        private InstrumentationFilter filter = InstrumentationFilter.ALL;
+        private InstrumentationReport report;
+        private boolean accessors = true;
+
+        private Builder() {
+        }
+
+        public Builder setIntDispatch(boolean intDispatch) {
+            this.intDispatch = intDispatch;
+            return this;
+        }
+
+        public Builder setFilter(@NonNull InstrumentationFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        public Builder setReport(@Nullable InstrumentationReport report) {
+            this.report = report;
+            return this;
+        }
+
+        public Builder setAccessors(boolean accessors) {
+            this.accessors = accessors;
+            return this;
+        }
+
+        public InstrumentationOptions build() {
+            return new InstrumentationOptions(this);
+        }
+    }
+}
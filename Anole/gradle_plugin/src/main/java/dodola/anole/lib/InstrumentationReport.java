@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The code size the instrumentation adds to the methods it redirects, and the code of the methods
+ * {@link InstrumentationFilter} leaves without redirection. Classes can be instrumented
+ * concurrently.
+ * <p>
+ * Only the classes instrumented by the visitors are counted, not the ones whose output is reused
+ * from the {@link InstrumentationCache}.
+ */
+public class InstrumentationReport {
+
+    public static final String INSTRUMENTATION_TXT = "instrumentation.txt";
+
+    private final AtomicLong redirectedMethods = new AtomicLong();
+    private final AtomicLong originalSize = new AtomicLong();
+    private final AtomicLong instrumentedSize = new AtomicLong();
+    private final AtomicLong[] excludedMethods =
+            new AtomicLong[InstrumentationFilter.MethodExclusion.values().length];
+    private final AtomicLong[] excludedSize =
+            new AtomicLong[InstrumentationFilter.MethodExclusion.values().length];
+    // sorted so that the report does not depend on the instrumentation order.
+    private final Set<String> excluded = new ConcurrentSkipListSet<String>();
+
+    public InstrumentationReport() {
+        for (int i = 0; i < excludedMethods.length; i++) {
+            excludedMethods[i] = new AtomicLong();
+            excludedSize[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Records a redirected method.
+     *
+     * @param originalSize     its code size in bytes before instrumentation.
+     * @param instrumentedSize its code size in bytes after instrumentation.
+     */
+    public void onMethodRedirected(int originalSize, int instrumentedSize) {
+        redirectedMethods.incrementAndGet();
+        this.originalSize.addAndGet(originalSize);
+        this.instrumentedSize.addAndGet(instrumentedSize);
+    }
+
+    /**
+     * Records a method left without redirection.
+     *
+     * @param className the internal name of the class.
+     * @param codeSize  the method code size in bytes.
+     */
+    public void onMethodExcluded(String className, String name, String desc, int codeSize,
+                                 InstrumentationFilter.MethodExclusion reason) {
+        excludedMethods[reason.ordinal()].incrementAndGet();
+        excludedSize[reason.ordinal()].addAndGet(codeSize);
+        excluded.add(className + "." + name + desc + " " + reason + " " + codeSize);
+    }
+
+    /**
+     * Returns the bytes the instrumentation added to the code of the redirected methods.
+     */
+    public long getSizeDelta() {
+        return instrumentedSize.get() - originalSize.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder()
+                .append(redirectedMethods.get()).append(" methods redirected, code size ")
+                .append(originalSize.get()).append(" -> ").append(instrumentedSize.get())
+                .append(" bytes (+").append(getSizeDelta()).append(")");
+        for (InstrumentationFilter.MethodExclusion reason
+                : InstrumentationFilter.MethodExclusion.values()) {
+            summary.append(", ").append(excludedMethods[reason.ordinal()].get()).append(' ')
+                    .append(reason.name().toLowerCase()).append(" methods left out (")
+                    .append(excludedSize[reason.ordinal()].get()).append(" bytes)");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Writes the summary followed by the methods left without redirection, one per line.
+     */
+    public void write(File file) throws IOException {
+        Files.createParentDirs(file);
+        Writer writer = Files.newWriter(file, Charsets.UTF_8);
+        try {
+            writer.write(toString() + "\n");
+            for (String method : excluded) {
+                writer.write(method + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -16,49 +16,47 @@
 
 package dodola.anole.lib;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
+import java.util.zip.Deflater;
 
 public class JARCompress {
     /**
-     * jar压缩功能测试.
+     * 以默认压缩级别在当前线程压缩目录.
      *
      * @param dir     所要压缩的目录名（包含绝对路径）
      * @param jarName 压缩后的文件名
      * @throws Exception
      */
     public static void doIt(String dir, String jarName) throws Exception {
+        doIt(dir, jarName, Deflater.DEFAULT_COMPRESSION, 1);
+    }
+
+    /**
+     * 把目录压缩成jar,entry按路径排序,可以在多个线程上压缩后按顺序写入.
+     *
+     * @param dir         所要压缩的目录名（包含绝对路径）
+     * @param jarName     压缩后的文件名
+     * @param level       压缩级别,{@link Deflater#NO_COMPRESSION}不压缩直接存储
+     * @param parallelism 压缩线程数,0表示使用所有核心,1表示在当前线程压缩
+     * @throws Exception
+     */
+    public static void doIt(String dir, String jarName, int level, int parallelism)
+            throws Exception {
         File folderObject = new File(dir);
         if (folderObject.exists()) {
-            List fileList = getSubFiles(new File(dir));
+            List<File> fileList = getSubFiles(folderObject);
             // 压缩文件名
-            FileOutputStream fos = new FileOutputStream(jarName);
-            JarOutputStream zos = new JarOutputStream(fos);
-            JarEntry ze = null;
-            byte[] buf = new byte[1024];
-            int readLen = 0;
-            for (int i = 0; i < fileList.size(); i++) {
-                File f = (File) fileList.get(i);
-
-                ze = new JarEntry(getAbsFileName(dir, f));
-                ze.setSize(f.length());
-                ze.setTime(f.lastModified());
-
-                zos.putNextEntry(ze);
-                InputStream is = new BufferedInputStream(new FileInputStream(f));
-                while ((readLen = is.read(buf, 0, 1024)) != -1) {
-                    zos.write(buf, 0, readLen);
+            JarWriter writer = new JarWriter(new File(jarName), level, parallelism);
+            try {
+                for (File f : fileList) {
+                    writer.add(getAbsFileName(dir, f), f);
                 }
-                is.close();
+            } finally {
+                writer.close();
             }
-            zos.close();
         } else {
             throw new Exception("文件夹不存在!");
         }
@@ -70,18 +68,24 @@ public class JARCompress {
      * @param baseDir File 指定的目录
      * @return 包含java.io.File的List
      */
-    private static List getSubFiles(File baseDir) {
-        List fileList = new ArrayList();
+    private static List<File> getSubFiles(File baseDir) {
+        List<File> fileList = new ArrayList<File>();
+        getSubFiles(baseDir, fileList);
+        return fileList;
+    }
+
+    private static void getSubFiles(File baseDir, List<File> fileList) {
         File[] tmp = baseDir.listFiles();
-        for (int i = 0; i < tmp.length; i++) {
-            if (tmp[i].isFile()) {
-                fileList.add(tmp[i]);
+        // keep the jar entries in a stable order whatever the file system listing order is.
+        Arrays.sort(tmp);
+        for (File file : tmp) {
+            if (file.isFile()) {
+                fileList.add(file);
             }
-            if (tmp[i].isDirectory()) {
-                fileList.addAll(getSubFiles(tmp[i]));
+            if (file.isDirectory()) {
+                getSubFiles(file, fileList);
             }
         }
-        return fileList;
     }
 
     /**
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a jar whose entries are compressed on several threads and written in the order they
+ * were added. Unlike {@link java.util.jar.JarOutputStream}, entries can be compressed before
+ * their turn to be written comes, as the writer lays out the zip records itself with the sizes
+ * and CRC of the compressed entries.
+ * <p>
+ * The compression level can be {@link Deflater#NO_COMPRESSION}, which stores the entries: the
+ * cheapest choice for the intermediate jars read back by dx right away. The zip64 records are
+ * only written when the jar needs them, from 65535 entries or 4 GB on, like
+ * {@link java.util.jar.JarOutputStream} does.
+ * <p>
+ * If adding an entry fails, the jar is not completed: closing the writer deletes it and throws
+ * the failure again.
+ */
+public class JarWriter implements Closeable {
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int VERSION_NEEDED = 20;
+    private static final int ZIP64_VERSION_NEEDED = 45;
+    // general purpose flag: the names are encoded in UTF-8.
+    private static final int UTF8_NAMES = 0x0800;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    // the largest values of the fields of the records, which mark the zip64 ones.
+    private static final int ZIP64_COUNT = 0xffff;
+    private static final long ZIP64_SIZE = 0xffffffffL;
+    // compressed entries held in memory while waiting to be written, per thread.
+    private static final int WINDOW = 32;
+
+    private final File outputJar;
+    private final OutputStream outputStream;
+    private final int level;
+    private final ForkJoinPool pool;
+    private final int window;
+    private final Deque<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+    private final List<Entry> written = new ArrayList<Entry>();
+    private long offset;
+    // the first failure, after which the jar is deleted instead of completed.
+    private Throwable failure;
+
+    /**
+     * @param outputJar   the jar to create.
+     * @param level       the compression level, from {@link Deflater#NO_COMPRESSION} which
+     *                    stores the entries to {@link Deflater#BEST_COMPRESSION}, or
+     *                    {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param parallelism the number of compressing threads, 0 or less to use all cores and 1 to
+     *                    compress on the calling thread.
+     */
+    public JarWriter(File outputJar, int level, int parallelism) throws IOException {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        this.level = level;
+        this.pool = parallelism > 1 && level != Deflater.NO_COMPRESSION
+                ? new ForkJoinPool(parallelism)
+                : null;
+        this.window = parallelism * WINDOW;
+        this.outputJar = outputJar;
+        this.outputStream = new BufferedOutputStream(new FileOutputStream(outputJar), 64 * 1024);
+    }
+
+    /**
+     * Adds an entry with the content of a file.
+     */
+    public void add(String name, File file) throws IOException {
+        byte[] content;
+        try {
+            content = readFile(file);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        add(name, file.lastModified(), content);
+    }
+
+    /**
+     * Adds an entry.
+     *
+     * @param time    the entry modification time, in milliseconds since the epoch.
+     * @param content the entry content, must not be modified once passed.
+     */
+    public void add(final String name, final long time, final byte[] content)
+            throws IOException {
+        if (failure != null) {
+            throw new IOException("Cannot add " + name + " after a failed entry", failure);
+        }
+        try {
+            if (pool == null) {
+                pending.add(Futures.immediateFuture(compress(name, time, content)));
+            } else {
+                pending.add(pool.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws IOException {
+                        return compress(name, time, content);
+                    }
+                }));
+            }
+            while (pending.size() > window) {
+                write(pending.poll());
+            }
+        } catch (Throwable t) {
+            failure = t;
+            Throwables.propagateIfPossible(t, IOException.class);
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Writes the pending entries and the central directory, and closes the jar. If an entry
+     * could not be added or written, deletes the jar instead and throws the failure.
+     */
+    @Override
+    public void close() throws IOException {
+        if (failure == null) {
+            try {
+                while (!pending.isEmpty()) {
+                    write(pending.poll());
+                }
+                writeCentralDirectory();
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            // a jar without its central directory or some of its entries is of no use.
+            outputJar.delete();
+            Throwables.propagateIfPossible(failure, IOException.class);
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private Entry compress(String name, long time, byte[] content) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        if (level == Deflater.NO_COMPRESSION) {
+            return new Entry(name, time, STORED, crc.getValue(), content.length, content);
+        }
+        Deflater deflater = new Deflater(level, true /* nowrap */);
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressed, deflater);
+            deflaterStream.write(content);
+            deflaterStream.finish();
+            return new Entry(name, time, DEFLATED, crc.getValue(), content.length,
+                    compressed.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void write(Future<Entry> future) throws IOException {
+        Entry entry;
+        try {
+            entry = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        }
+        entry.offset = offset;
+        ByteBuffer header = newRecord(30 + entry.name.length);
+        header.putInt(LOCAL_HEADER);
+        putEntryFields(header, entry, VERSION_NEEDED);
+        header.putShort((short) 0); // extra field length
+        header.put(entry.name);
+        offset += writeRecord(header);
+        outputStream.write(entry.data);
+        offset += entry.data.length;
+        // the content is not needed anymore, only the record of the central directory.
+        entry.data = null;
+        written.add(entry);
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long start = offset;
+        for (Entry entry : written) {
+            // only the offset can be too large, the entries are read into arrays.
+            boolean zip64 = entry.offset >= ZIP64_SIZE;
+            ByteBuffer header = newRecord(46 + entry.name.length + (zip64 ? 12 : 0));
+            header.putInt(CENTRAL_HEADER);
+            header.putShort((short) VERSION_NEEDED); // version made by
+            putEntryFields(header, entry, zip64 ? ZIP64_VERSION_NEEDED : VERSION_NEEDED);
+            header.putShort((short) (zip64 ? 12 : 0)); // extra field length
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) Math.min(entry.offset, ZIP64_SIZE));
+            header.put(entry.name);
+            if (zip64) {
+                header.putShort((short) ZIP64_EXTRA);
+                header.putShort((short) 8);
+                header.putLong(entry.offset);
+            }
+            offset += writeRecord(header);
+        }
+        long size = offset - start;
+        int count = written.size();
+        if (count >= ZIP64_COUNT || size >= ZIP64_SIZE || start >= ZIP64_SIZE) {
+            // the zip64 end of central directory record, followed by its locator.
+            long zip64Start = offset;
+            ByteBuffer zip64End = newRecord(56 + 20);
+            zip64End.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY);
+            zip64End.putLong(44); // size of the rest of the record
+            zip64End.putShort((short) ZIP64_VERSION_NEEDED); // version made by
+            zip64End.putShort((short) ZIP64_VERSION_NEEDED);
+            zip64End.putInt(0); // disk number
+            zip64End.putInt(0); // disk with the central directory
+            zip64End.putLong(count);
+            zip64End.putLong(count);
+            zip64End.putLong(size);
+            zip64End.putLong(start);
+            zip64End.putInt(ZIP64_LOCATOR);
+            zip64End.putInt(0); // disk with the zip64 end of central directory
+            zip64End.putLong(zip64Start);
+            zip64End.putInt(1); // number of disks
+            offset += writeRecord(zip64End);
+        }
+        ByteBuffer end = newRecord(22);
+        end.putInt(END_OF_CENTRAL_DIRECTORY);
+        end.putShort((short) 0); // disk number
+        end.putShort((short) 0); // disk with the central directory
+        end.putShort((short) Math.min(count, ZIP64_COUNT));
+        end.putShort((short) Math.min(count, ZIP64_COUNT));
+        end.putInt((int) Math.min(size, ZIP64_SIZE));
+        end.putInt((int) Math.min(start, ZIP64_SIZE));
+        end.putShort((short) 0); // comment length
+        writeRecord(end);
+    }
+
+    /**
+     * Puts the fields the local and central headers have in common, from the version needed to
+     * extract to the name length.
+     */
+    private static void putEntryFields(ByteBuffer header, Entry entry, int versionNeeded) {
+        header.putShort((short) versionNeeded);
+        header.putShort((short) UTF8_NAMES);
+        header.putShort((short) entry.method);
+        header.putInt(entry.dosTime);
+        header.putInt((int) entry.crc);
+        header.putInt((int) entry.compressedSize);
+        header.putInt((int) entry.size);
+        header.putShort((short) entry.name.length);
+    }
+
+    private static ByteBuffer newRecord(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int writeRecord(ByteBuffer record) throws IOException {
+        outputStream.write(record.array(), 0, record.position());
+        return record.position();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large for a jar entry: " + file);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException(file.getPath());
+                }
+            }
+            return buffer.array();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Converts a time to the MS-DOS format of the zip headers, with the date in the upper half.
+     */
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // the earliest date the format can hold, 1980-01-01.
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * A compressed entry, then the record of a written entry.
+     */
+    private static final class Entry {
+
+        private final byte[] name;
+        private final int dosTime;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private byte[] data;
+        private long offset;
+
+        Entry(String name, long time, int method, long crc, long size, byte[] data) {
+            this.name = name.getBytes(Charsets.UTF_8);
+            this.dosTime = toDosTime(time);
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = data.length;
+            this.data = data;
+        }
+    }
+}
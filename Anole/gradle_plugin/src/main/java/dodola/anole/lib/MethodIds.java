@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Integer ids of the methods dispatched through {@code access$dispatch(int, Object[])}, and the
+ * accessors added to each class, see {@link Accessors}.
+ * <p>
+ * The ids of a class are the indexes of its dispatchable methods sorted by {@code name.desc},
+ * so the instrumentation computes them from the class alone. The ids of every class of a version
+ * are persisted next to its hash.idx: the patches built against that version dispatch on the ids
+ * its classes were instrumented with, even if methods were added or removed since.
+ * <p>
+ * The ids of classes instrumented with integer dispatch also record a hash of the code of each
+ * method, see {@link #hashMethod(MethodNode)}: a patch only overrides the methods whose code
+ * changed, the others keep running in the patched version.
+ * <p>
+ * The classes the {@link InstrumentationFilter} leaves out, and the methods it leaves without
+ * redirection with the hash of their code, are recorded too: changes to them cannot be patched,
+ * see {@link #getUnpatchableChanges}.
+ */
+public class MethodIds {
+
+    public static final String METHOD_IDS_TXT = "methodids.txt";
+
+    private static final Splitter LINE_SPLITTER = Splitter.on(' ');
+
+    private static final String ACCESSOR = "accessor";
+
+    private static final String EXCLUDED = "excluded";
+
+    // sorted so that the persisted file does not depend on the instrumentation order.
+    private final ConcurrentMap<String, List<String>> classes =
+            new ConcurrentSkipListMap<String, List<String>>();
+
+    private final ConcurrentMap<String, Set<String>> accessors =
+            new ConcurrentHashMap<String, Set<String>>();
+
+    private final ConcurrentMap<String, Map<String, String>> hashes =
+            new ConcurrentHashMap<String, Map<String, String>>();
+
+    // the classes left out of the instrumentation.
+    private final Set<String> excludedClasses = new ConcurrentSkipListSet<String>();
+
+    // the methods left without redirection, with the hash of their code, by class.
+    private final ConcurrentMap<String, Map<String, String>> excludedMethods =
+            new ConcurrentHashMap<String, Map<String, String>>();
+
+    private final boolean hashMethods;
+
+    private final InstrumentationFilter filter;
+
+    // the filter of the classes that get accessors, null if no class has any.
+    private final InstrumentationFilter accessorFilter;
+
+    public MethodIds() {
+        this(InstrumentationOptions.DEFAULT);
+    }
+
+    /**
+     * @param options the options the classes are instrumented with: the hashes of the methods are
+     *                only recorded with integer dispatch, the only one that patches method by
+     *                method, and the classes the filter disables by annotation have no accessors,
+     *                see {@link Accessors#hasAccessors}.
+     */
+    public MethodIds(InstrumentationOptions options) {
+        this.hashMethods = options.isIntDispatch();
+        this.filter = options.getFilter();
+        this.accessorFilter = options.hasAccessors() ? filter : null;
+    }
+
+    /**
+     * Returns the {@code name.desc} of the methods of a class that have an id, the id of a method
+     * being its index in the list.
+     */
+    public static List<String> getDispatchedMethods(ClassNode classNode) {
+        List<String> methods = new ArrayList<String>();
+        //noinspection unchecked ASM api.
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            if (method.name.equals("<init>") || method.name.equals("<clinit>")) {
+                continue;
+            }
+            if (IncrementalVisitor.isAccessCompatibleWithInstantRun(method.access)) {
+                methods.add(method.name + "." + method.desc);
+            }
+        }
+        return Ordering.natural().immutableSortedCopy(methods);
+    }
+
+    /**
+     * Records the ids of the methods of a class, its accessors and what the filter leaves out of
+     * its instrumentation.
+     */
+    public void record(byte[] classBytes) {
+        ClassNode classNode = new ClassNode();
+        // the code tells which inherited methods have accessors.
+        new ClassReader(classBytes).accept(classNode,
+                ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        List<String> methods = getDispatchedMethods(classNode);
+        classes.put(classNode.name, methods);
+        if (accessorFilter != null && Accessors.hasAccessors(classNode, accessorFilter)) {
+            accessors.put(classNode.name,
+                    ImmutableSet.copyOf(Accessors.getAccessors(classNode)));
+        } else {
+            accessors.remove(classNode.name);
+        }
+        recordExclusions(classNode);
+        if (hashMethods) {
+            Set<String> dispatched = ImmutableSet.copyOf(methods);
+            Map<String, String> methodHashes = new HashMap<String, String>();
+            //noinspection unchecked ASM api.
+            for (MethodNode method : (List<MethodNode>) classNode.methods) {
+                String key = method.name + "." + method.desc;
+                if (dispatched.contains(key)) {
+                    methodHashes.put(key, hashMethod(method));
+                }
+            }
+            hashes.put(classNode.name, ImmutableMap.copyOf(methodHashes));
+        }
+    }
+
+    private void recordExclusions(ClassNode classNode) {
+        excludedMethods.remove(classNode.name);
+        if (!filter.isIncluded(classNode.name)) {
+            excludedClasses.add(classNode.name);
+            return;
+        }
+        excludedClasses.remove(classNode.name);
+        Map<String, String> methodHashes = new HashMap<String, String>();
+        //noinspection unchecked ASM api.
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            // the methods IncrementalSupportVisitor asks the filter about.
+            if (method.name.equals("<clinit>")
+                    || !IncrementalVisitor.isAccessCompatibleWithInstantRun(method.access)) {
+                continue;
+            }
+            if (filter.getMethodExclusion(classNode.name, method.name, method.desc,
+                    IncrementalSupportVisitor.getCodeSize(method)) != null) {
+                methodHashes.put(method.name + "." + method.desc, hashMethod(method));
+            }
+        }
+        if (!methodHashes.isEmpty()) {
+            excludedMethods.put(classNode.name, ImmutableMap.copyOf(methodHashes));
+        }
+    }
+
+    public void remove(String className) {
+        classes.remove(className);
+        accessors.remove(className);
+        hashes.remove(className);
+        excludedClasses.remove(className);
+        excludedMethods.remove(className);
+    }
+
+    /**
+     * Returns whether a class has the given accessor, as {@code name.desc}.
+     */
+    public boolean hasAccessor(String className, String accessor) {
+        Set<String> classAccessors = accessors.get(className);
+        return classAccessors != null && classAccessors.contains(accessor);
+    }
+
+    /**
+     * Returns the methods of a class by id, or null if the class was not recorded.
+     */
+    public List<String> getMethods(String className) {
+        return classes.get(className);
+    }
+
+    /**
+     * Returns the hash of the code of a method, as {@code name.desc}, or null if it was not
+     * recorded.
+     */
+    public String getMethodHash(String className, String method) {
+        Map<String, String> methodHashes = hashes.get(className);
+        return methodHashes != null ? methodHashes.get(method) : null;
+    }
+
+    /**
+     * Returns the {@code name.desc} of the methods of a class left without redirection, empty if
+     * there is none.
+     */
+    public Set<String> getExcludedMethods(String className) {
+        Map<String, String> methodHashes = excludedMethods.get(className);
+        return methodHashes != null ? methodHashes.keySet() : Collections.<String>emptySet();
+    }
+
+    /**
+     * Returns the changes to a class of the version these ids were recorded for that a patch
+     * cannot apply: the whole class if it was left out of the instrumentation or is left out of
+     * the patch by {@code filter}, otherwise the methods left without redirection whose code
+     * changed, nothing reaching their override.
+     *
+     * @param filter the filter the patch is built with.
+     * @return the class, as its internal name, or its methods, as {@code class.name desc}, empty
+     * if the class can be patched.
+     */
+    public List<String> getUnpatchableChanges(byte[] classBytes, InstrumentationFilter filter) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classBytes).accept(classNode,
+                ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (excludedClasses.contains(classNode.name) || !filter.isIncluded(classNode.name)) {
+            return ImmutableList.of(classNode.name);
+        }
+        Map<String, String> methodHashes = excludedMethods.get(classNode.name);
+        if (methodHashes == null) {
+            return ImmutableList.of();
+        }
+        List<String> changes = new ArrayList<String>();
+        //noinspection unchecked ASM api.
+        for (MethodNode method : (List<MethodNode>) classNode.methods) {
+            String hash = methodHashes.get(method.name + "." + method.desc);
+            if (hash != null && !hash.equals(hashMethod(method))) {
+                changes.add(classNode.name + "." + method.name + " " + method.desc);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Returns a hash of the code of a method that ignores its debug information and stack map
+     * frames, so that it is the same whether they were read or not and only changes with what
+     * the method does.
+     */
+    public static String hashMethod(MethodNode method) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, "M", null, "java/lang/Object", null);
+        //noinspection unchecked ASM api.
+        MethodVisitor mv = writer.visitMethod(method.access, method.name, method.desc,
+                method.signature, method.exceptions == null ? null
+                        : ((List<String>) method.exceptions).toArray(new String[0]));
+        method.accept(new MethodVisitor(Opcodes.ASM5, mv) {
+            @Override
+            public void visitParameter(String name, int access) {
+            }
+
+            @Override
+            public void visitFrame(int type, int nLocal, Object[] local, int nStack,
+                                   Object[] stack) {
+            }
+
+            @Override
+            public void visitLocalVariable(String name, String desc, String signature,
+                                           Label start, Label end, int index) {
+            }
+
+            @Override
+            public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath,
+                    Label[] start, Label[] end, int[] index, String desc, boolean visible) {
+                return null;
+            }
+
+            @Override
+            public void visitLineNumber(int line, Label start) {
+            }
+
+            @Override
+            public void visitMaxs(int maxStack, int maxLocals) {
+                super.visitMaxs(0, 0);
+            }
+        });
+        writer.visitEnd();
+        return Hashing.sha1().hashBytes(writer.toByteArray()).toString();
+    }
+
+    /**
+     * Reads the ids persisted by {@link #write(File)}, the result is empty if the file does not
+     * exist.
+     */
+    public static MethodIds read(File file) throws IOException {
+        return read(file, InstrumentationOptions.DEFAULT);
+    }
+
+    /**
+     * Reads the ids persisted by {@link #write(File)} to record more classes, as
+     * {@link #MethodIds(InstrumentationOptions)} does.
+     */
+    public static MethodIds read(File file, InstrumentationOptions options) throws IOException {
+        MethodIds methodIds = new MethodIds(options);
+        if (!file.isFile()) {
+            return methodIds;
+        }
+        Map<String, List<String>> classes = new HashMap<String, List<String>>();
+        Map<String, Set<String>> accessors = new HashMap<String, Set<String>>();
+        Map<String, Map<String, String>> hashes = new HashMap<String, Map<String, String>>();
+        Map<String, Map<String, String>> excludedMethods =
+                new HashMap<String, Map<String, String>>();
+        for (String line : Files.readLines(file, Charsets.UTF_8)) {
+            // <class> <id> <name.desc> [<hash>], ids of a class are in increasing order,
+            // <class> accessor <name.desc>, <class> excluded <name.desc> <hash> or
+            // <class> excluded.
+            List<String> parts = LINE_SPLITTER.splitToList(line);
+            if (parts.size() < 2 || parts.size() > 4
+                    || parts.size() == 2 && !parts.get(1).equals(EXCLUDED)) {
+                continue;
+            }
+            List<String> methods = classes.get(parts.get(0));
+            if (methods == null) {
+                methods = new ArrayList<String>();
+                classes.put(parts.get(0), methods);
+            }
+            if (parts.get(1).equals(EXCLUDED)) {
+                if (parts.size() == 2) {
+                    methodIds.excludedClasses.add(parts.get(0));
+                }
+                if (parts.size() != 4) {
+                    continue;
+                }
+                Map<String, String> methodHashes = excludedMethods.get(parts.get(0));
+                if (methodHashes == null) {
+                    methodHashes = new HashMap<String, String>();
+                    excludedMethods.put(parts.get(0), methodHashes);
+                }
+                methodHashes.put(parts.get(2), parts.get(3));
+                continue;
+            }
+            if (!parts.get(1).equals(ACCESSOR)) {
+                methods.add(parts.get(2));
+                if (parts.size() == 4) {
+                    Map<String, String> methodHashes = hashes.get(parts.get(0));
+                    if (methodHashes == null) {
+                        methodHashes = new HashMap<String, String>();
+                        hashes.put(parts.get(0), methodHashes);
+                    }
+                    methodHashes.put(parts.get(2), parts.get(3));
+                }
+                continue;
+            }
+            Set<String> classAccessors = accessors.get(parts.get(0));
+            if (classAccessors == null) {
+                classAccessors = new HashSet<String>();
+                accessors.put(parts.get(0), classAccessors);
+            }
+            classAccessors.add(parts.get(2));
+        }
+        for (Map.Entry<String, List<String>> entry : classes.entrySet()) {
+            methodIds.classes.put(entry.getKey(), ImmutableList.copyOf(entry.getValue()));
+        }
+        for (Map.Entry<String, Set<String>> entry : accessors.entrySet()) {
+            methodIds.accessors.put(entry.getKey(), ImmutableSet.copyOf(entry.getValue()));
+        }
+        for (Map.Entry<String, Map<String, String>> entry : hashes.entrySet()) {
+            methodIds.hashes.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+        }
+        for (Map.Entry<String, Map<String, String>> entry : excludedMethods.entrySet()) {
+            methodIds.excludedMethods.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+        }
+        return methodIds;
+    }
+
+    public void write(File file) throws IOException {
+        Files.createParentDirs(file);
+        Writer writer = Files.newWriter(file, Charsets.UTF_8);
+        try {
+            for (Map.Entry<String, List<String>> entry : classes.entrySet()) {
+                List<String> methods = entry.getValue();
+                Map<String, String> methodHashes = hashes.get(entry.getKey());
+                for (int id = 0; id < methods.size(); id++) {
+                    String hash = methodHashes != null ? methodHashes.get(methods.get(id)) : null;
+                    writer.write(entry.getKey() + " " + id + " " + methods.get(id)
+                            + (hash != null ? " " + hash : "") + "\n");
+                }
+                Set<String> classAccessors = accessors.get(entry.getKey());
+                if (classAccessors != null) {
+                    for (String accessor : Ordering.natural().sortedCopy(classAccessors)) {
+                        writer.write(entry.getKey() + " " + ACCESSOR + " " + accessor + "\n");
+                    }
+                }
+                if (excludedClasses.contains(entry.getKey())) {
+                    writer.write(entry.getKey() + " " + EXCLUDED + "\n");
+                }
+                Map<String, String> excluded = excludedMethods.get(entry.getKey());
+                if (excluded != null) {
+                    for (String method : Ordering.natural().sortedCopy(excluded.keySet())) {
+                        writer.write(entry.getKey() + " " + EXCLUDED + " " + method + " "
+                                + excluded.get(method) + "\n");
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The hot methods of an application, read from a method profile. Their instrumentation is left
+ * out, see {@link InstrumentationFilter}.
+ * <p>
+ * Each line of the profile names a method like ART profiles do,
+ * {@code Lcom/foo/Bar;->run(I)V}, and is either:
+ * <ul>
+ * <li>a baseline profile rule, the method being prefixed by its flags: it is hot if they
+ * contain {@code H}, like {@code HSPLcom/foo/Bar;->run(I)V}.</li>
+ * <li>a call count, the method being followed by the number of times it was called: it is hot
+ * if the count reaches the threshold, like {@code Lcom/foo/Bar;->run(I)V 120000}.</li>
+ * </ul>
+ * Class rules, wildcards, comments starting with {@code #} and empty lines are ignored.
+ */
+public class MethodProfile {
+
+    private static final String SEPARATOR = "->";
+
+    // class.name.desc of the hot methods.
+    private final Set<String> hotMethods;
+
+    private MethodProfile(Set<String> hotMethods) {
+        this.hotMethods = hotMethods;
+    }
+
+    /**
+     * Reads a profile.
+     *
+     * @param file         the profile.
+     * @param hotThreshold the call count from which a method is hot.
+     */
+    public static MethodProfile read(File file, long hotThreshold) throws IOException {
+        Set<String> hotMethods = new TreeSet<String>();
+        for (String line : Files.readLines(file, Charsets.UTF_8)) {
+            line = line.trim();
+            int separator = line.indexOf(SEPARATOR);
+            if (line.startsWith("#") || separator == -1 || line.indexOf('*') != -1) {
+                continue;
+            }
+            int classStart = line.indexOf('L');
+            if (classStart == -1 || classStart > separator) {
+                continue;
+            }
+            String flags = line.substring(0, classStart);
+            int end = line.indexOf(' ', separator);
+            String method = end == -1
+                    ? line.substring(separator + SEPARATOR.length())
+                    : line.substring(separator + SEPARATOR.length(), end);
+            boolean hot = flags.indexOf('H') != -1;
+            if (!hot && end != -1) {
+                try {
+                    hot = Long.parseLong(line.substring(end).trim()) >= hotThreshold;
+                } catch (NumberFormatException e) {
+                    // not a call count.
+                }
+            }
+            if (hot && line.charAt(separator - 1) == ';') {
+                // Lcom/foo/Bar; -> com/foo/Bar
+                String className = line.substring(classStart + 1, separator - 1);
+                int descStart = method.indexOf('(');
+                if (descStart > 0) {
+                    hotMethods.add(className + "." + method);
+                }
+            }
+        }
+        return new MethodProfile(ImmutableSortedSet.copyOf(hotMethods));
+    }
+
+    /**
+     * Returns whether a method is hot.
+     *
+     * @param className the internal name of the class declaring it.
+     */
+    public boolean isHot(String className, String name, String desc) {
+        return hotMethods.contains(className + "." + name + desc);
+    }
+
+    /**
+     * Returns a string identifying the hot methods, part of the key of the cached instrumented
+     * classes.
+     */
+    public String getCacheKey() {
+        return Hashing.sha1().hashUnencodedChars(Joiner.on('\n').join(hotMethods)).toString();
+    }
+}
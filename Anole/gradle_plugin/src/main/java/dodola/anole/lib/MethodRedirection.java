@@ -17,8 +17,10 @@
 
 package dodola.anole.lib;
 
+import org.objectweb.asm.Label;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
 import org.objectweb.asm.tree.LabelNode;
 
 import java.util.List;
@@ -32,6 +34,61 @@ public class MethodRedirection extends Redirection {
         this.type = type;
     }
 
+    /**
+     * @param id the integer id of the method, see {@link MethodIds}.
+     */
+    MethodRedirection(LabelNode label, String name, int id, Type type) {
+        super(label, name, id);
+        this.type = type;
+    }
+
+    /**
+     * Methods with an id and few enough arguments are redirected through the allocation free
+     * entry point matching their signature, see {@link SpecializedDispatch}:
+     * <code>
+     * if ($change != null && $change.access$patched($id)) {
+     * return $change.access$dispatch($id, arg0, ... argsN)
+     * }
+     * $originalMethodBody
+     * </code>
+     * where the primitive arguments and return value are converted to and from long.
+     */
+    @Override
+    void redirect(GeneratorAdapter mv, int change, List<Type> args) {
+        Method dispatch = getId() >= 0 ? SpecializedDispatch.getMethod(args, type) : null;
+        if (dispatch == null) {
+            super.redirect(mv, change, args);
+            return;
+        }
+        Label l0 = new Label();
+        jumpIfNotRedirected(mv, change, l0);
+        mv.loadLocal(change);
+        mv.push(getId());
+        int stackIndex = 0;
+        for (Type arg : args) {
+            redirectLocal(mv, stackIndex, arg);
+            SpecializedDispatch.toSlot(mv, arg);
+            stackIndex += arg.getSize();
+        }
+        mv.invokeInterface(IncrementalVisitor.CHANGE_TYPE, dispatch);
+        if (type == Type.VOID_TYPE) {
+            mv.pop();
+        } else {
+            SpecializedDispatch.fromSlot(mv, type);
+        }
+        mv.returnValue();
+        mv.visitLabel(l0);
+    }
+
+    /**
+     * The boolean returned through a specialized entry point is converted back with a branch.
+     */
+    @Override
+    boolean hasBranches(List<Type> args) {
+        return getId() >= 0 && type.getSort() == Type.BOOLEAN
+                && SpecializedDispatch.getMethod(args, type) != null;
+    }
+
     /**
      * For methods, restore creates a return from the dispatch call, to exit the method
      * once the new implementation has been executed. for void methods, this is an empty return
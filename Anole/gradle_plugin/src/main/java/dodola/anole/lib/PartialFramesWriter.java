@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an instrumented class, computing the stack map frames of the methods that need it only.
+ * <p>
+ * The methods visited through {@link #visitMethod} are written with the frames they are visited
+ * with, only their maximum stack size and locals are computed. When the class is visited from the
+ * reader the writer was created with, those passed through without change are not even parsed:
+ * their code is copied as is.
+ * <p>
+ * The methods visited through {@link #visitMethodComputingFrames}, the ones whose instrumentation
+ * changes their frames, are written to a second class whose frames are computed, and are copied
+ * with them into the written class when it ends. Their place in the written class is reserved
+ * when they are visited, so that the methods keep their order.
+ */
+class PartialFramesWriter extends ClassVisitor {
+
+    private final ClassWriter classWriter;
+    private final ClassHierarchy classHierarchy;
+
+    // the class header, to write the methods computing frames to a class of the same name.
+    private int version;
+    private int access;
+    private String name;
+    private String signature;
+    private String superName;
+    private String[] interfaces;
+
+    // created with the first method computing frames.
+    private ClassWriter framesWriter;
+    // the methods of the written class the methods of framesWriter are copied to, in order.
+    private final List<MethodVisitor> reservedMethods = new ArrayList<MethodVisitor>();
+
+    PartialFramesWriter(ClassReader classReader, ClassHierarchy classHierarchy) {
+        this(newClassWriter(classReader, ClassWriter.COMPUTE_MAXS, classHierarchy),
+                classHierarchy);
+    }
+
+    private PartialFramesWriter(ClassWriter classWriter, ClassHierarchy classHierarchy) {
+        super(Opcodes.ASM5, classWriter);
+        this.classWriter = classWriter;
+        this.classHierarchy = classHierarchy;
+    }
+
+    /**
+     * Returns a class writer resolving the common super class of two types from the class files
+     * bytes of {@code classHierarchy} instead of loading them with the system class loader, which
+     * does not have visibility on the project classes anyway.
+     *
+     * @param classReader the reader of the class to copy the constant pool and the unchanged
+     *                    methods from, may be null.
+     */
+    static ClassWriter newClassWriter(ClassReader classReader, int flags,
+            final ClassHierarchy classHierarchy) {
+        if (classReader == null) {
+            return new ClassWriter(flags) {
+                @Override
+                protected String getCommonSuperClass(final String type1, final String type2) {
+                    return classHierarchy.getCommonSuperClass(type1, type2);
+                }
+            };
+        }
+        return new ClassWriter(classReader, flags) {
+            @Override
+            protected String getCommonSuperClass(final String type1, final String type2) {
+                return classHierarchy.getCommonSuperClass(type1, type2);
+            }
+        };
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName,
+                      String[] interfaces) {
+        this.version = version;
+        this.access = access;
+        this.name = name;
+        this.signature = signature;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    /**
+     * Visits a method whose frames are computed, the frames it is visited with are ignored.
+     */
+    MethodVisitor visitMethodComputingFrames(int access, String name, String desc,
+            String signature, String[] exceptions) {
+        if (framesWriter == null) {
+            framesWriter = newClassWriter(null, ClassWriter.COMPUTE_FRAMES, classHierarchy);
+            framesWriter.visit(version, this.access, this.name, this.signature, superName,
+                    interfaces);
+        }
+        reservedMethods.add(
+                classWriter.visitMethod(access, name, desc, signature, exceptions));
+        return framesWriter.visitMethod(access, name, desc, signature, exceptions);
+    }
+
+    @Override
+    public void visitEnd() {
+        if (framesWriter != null) {
+            framesWriter.visitEnd();
+            // the frames are copied compressed, as written.
+            new ClassReader(framesWriter.toByteArray()).accept(new ClassVisitor(Opcodes.ASM5) {
+                private int index;
+
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc,
+                        String signature, String[] exceptions) {
+                    return reservedMethods.get(index++);
+                }
+            }, 0);
+        }
+        super.visitEnd();
+    }
+
+    byte[] toByteArray() {
+        return classWriter.toByteArray();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Persistent cache of dexed patches, kept across builds and projects.
+ * <p>
+ * A patch is keyed by what it is built from: the plugin that builds it, the version it is built
+ * against, the digests of the classes changed since and the options of the build. A build whose
+ * changes were already patched, like a build run again without changes, reuses the patch.jar
+ * instead of building the $override classes and dexing them again.
+ * <p>
+ * The key is computed before the patch classes are built, written to patch.key next to them, and
+ * the patch.jar is stored under it once dexed.
+ */
+public class PatchCache {
+
+    public static final String PATCH_KEY = "patch.key";
+
+    // bump when the cache layout changes.
+    private static final int VERSION = 1;
+
+    // the digest of the plugin jar, so that the patches of another plugin build are ignored.
+    private static String pluginDigest;
+
+    private final File directory;
+
+    public PatchCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Computes the key of a patch.
+     *
+     * @param preVersionDir  the folder of the variant in the version the patch is built against.
+     * @param changedEntries the digests of the changed classes, by entry name.
+     * @param options        the build options the patch depends on, like the instrumentation
+     *                       filter and the build tools version.
+     */
+    public static String getKey(
+            File preVersionDir,
+            SortedMap<String, HashIndex.Digest> changedEntries,
+            String options) throws IOException {
+        Hasher hasher = Hashing.sha1().newHasher()
+                .putInt(VERSION)
+                .putUnencodedChars(getPluginDigest())
+                .putUnencodedChars(options);
+        // the ids the patch dispatches on and the classes it is compared with.
+        putFile(hasher, new File(preVersionDir, MethodIds.METHOD_IDS_TXT));
+        putFile(hasher, new File(preVersionDir, HashIndex.HASH_IDX));
+        putFile(hasher, new File(preVersionDir, HashIndex.HASH_TXT));
+        for (Map.Entry<String, HashIndex.Digest> entry : changedEntries.entrySet()) {
+            hasher.putUnencodedChars(entry.getKey())
+                    .putUnencodedChars(entry.getValue().toString());
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Returns the digest of the jar the plugin is loaded from, or its implementation version when
+     * it is not loaded from a jar.
+     */
+    private static synchronized String getPluginDigest() throws IOException {
+        if (pluginDigest == null) {
+            File jar = null;
+            CodeSource codeSource = PatchCache.class.getProtectionDomain().getCodeSource();
+            if (codeSource != null && codeSource.getLocation() != null
+                    && "file".equals(codeSource.getLocation().getProtocol())) {
+                try {
+                    jar = new File(codeSource.getLocation().toURI());
+                } catch (URISyntaxException e) {
+                    // use the version.
+                }
+            }
+            if (jar != null && jar.isFile()) {
+                pluginDigest = Files.hash(jar, Hashing.sha1()).toString();
+            } else {
+                pluginDigest = String.valueOf(
+                        PatchCache.class.getPackage().getImplementationVersion());
+            }
+        }
+        return pluginDigest;
+    }
+
+    private static void putFile(Hasher hasher, File file) throws IOException {
+        hasher.putBoolean(file.isFile());
+        if (file.isFile()) {
+            hasher.putBytes(Files.toByteArray(file));
+        }
+    }
+
+    /**
+     * Copies the patch stored under a key to {@code patchJar}.
+     *
+     * @return false if there is no patch stored under this key.
+     */
+    public boolean restore(String key, File patchJar) throws IOException {
+        File entry = getEntry(key);
+        if (!entry.isFile()) {
+            return false;
+        }
+        Files.createParentDirs(patchJar);
+        Files.copy(entry, patchJar);
+        return true;
+    }
+
+    /**
+     * Stores a dexed patch. The entry is written to a temporary file first so that concurrent
+     * builds never restore a partial patch.
+     */
+    public void put(String key, File patchJar) throws IOException {
+        File entry = getEntry(key);
+        Files.createParentDirs(entry);
+        File tmp = File.createTempFile(key, ".tmp", entry.getParentFile());
+        Files.copy(patchJar, tmp);
+        if (!tmp.renameTo(entry)) {
+            // another build stored the same patch in the meantime.
+            FileUtils.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Writes the key of the patch built in a version folder, for the dexing to store it.
+     */
+    public static void writeKey(File outputDir, String key) throws IOException {
+        Files.write(key, new File(outputDir, PATCH_KEY), Charsets.UTF_8);
+    }
+
+    /**
+     * Reads and deletes the key written by {@link #writeKey}, or returns null if there is none.
+     */
+    public static String takeKey(File outputDir) throws IOException {
+        File keyFile = new File(outputDir, PATCH_KEY);
+        if (!keyFile.isFile()) {
+            return null;
+        }
+        String key = Files.toString(keyFile, Charsets.UTF_8).trim();
+        FileUtils.delete(keyFile);
+        return key;
+    }
+
+    private File getEntry(String key) {
+        return new File(directory, key + ".jar");
+    }
+}
@@ -40,10 +40,20 @@ public abstract class Redirection {
      */
     private final LabelNode label;
 
+    /**
+     * The integer id of the method we redirect to, or -1 to dispatch on its name.
+     */
+    private final int id;
+
 
     Redirection(LabelNode label, String name) {
+        this(label, name, -1);
+    }
+
+    Redirection(LabelNode label, String name, int id) {
         this.name = name;
         this.label = label;
+        this.id = id;
     }
 
     /**
@@ -58,6 +68,8 @@ public abstract class Redirection {
      * }
      * $originalMethodBody
      * </code>
+     * where $name is replaced by the integer id of the method when it has one, see
+     * {@link #jumpIfNotRedirected(GeneratorAdapter, int, Label)}.
      *
      * @param mv     the method visitor to add the instructions to.
      * @param change the local variable containing the alternate implementation.
@@ -66,10 +78,13 @@ public abstract class Redirection {
     void redirect(GeneratorAdapter mv, int change, List<Type> args) {
         // code to check if a new implementation of the current class is available.
         Label l0 = new Label();
+        jumpIfNotRedirected(mv, change, l0);
         mv.loadLocal(change);
-        mv.visitJumpInsn(Opcodes.IFNULL, l0);
-        mv.loadLocal(change);
-        mv.push(name);
+        if (id >= 0) {
+            mv.push(id);
+        } else {
+            mv.push(name);
+        }
 
         // create an array of objects capable of containing all the parameters and optionally the "this"
         createLocals(mv, args);
@@ -93,7 +108,11 @@ public abstract class Redirection {
         }
 
         // now invoke the generic dispatch method.
-        mv.invokeInterface(IncrementalVisitor.CHANGE_TYPE, Method.getMethod("Object access$dispatch(String, Object[])"));
+        if (id >= 0) {
+            mv.invokeInterface(IncrementalVisitor.CHANGE_TYPE, Method.getMethod("Object access$dispatch(int, Object[])"));
+        } else {
+            mv.invokeInterface(IncrementalVisitor.CHANGE_TYPE, Method.getMethod("Object access$dispatch(String, Object[])"));
+        }
 
         // Restore the state after the redirection
         restore(mv, args);
@@ -102,6 +121,33 @@ public abstract class Redirection {
         mv.visitLabel(l0);
     }
 
+    /**
+     * Whether the instructions added by {@link #redirect} branch to labels of their own, besides
+     * the original code following them. Their frames are then computed with those of the method.
+     */
+    boolean hasBranches(List<Type> args) {
+        return false;
+    }
+
+    /**
+     * Jumps to the given label if there is no alternate implementation of the current class, or
+     * if the method has an id and the alternate implementation does not change it:
+     * <code>
+     * if ($change != null && $change.access$patched($id)) {
+     * </code>
+     */
+    protected void jumpIfNotRedirected(GeneratorAdapter mv, int change, Label label) {
+        mv.loadLocal(change);
+        mv.visitJumpInsn(Opcodes.IFNULL, label);
+        if (id >= 0) {
+            mv.loadLocal(change);
+            mv.push(id);
+            mv.invokeInterface(IncrementalVisitor.CHANGE_TYPE,
+                    Method.getMethod("boolean access$patched(int)"));
+            mv.visitJumpInsn(Opcodes.IFEQ, label);
+        }
+    }
+
     /**
      * Creates and pushes to the stack the array to hold all the parameters to redirect, and
      * optionally this.
@@ -127,4 +173,8 @@ public abstract class Redirection {
     public LabelNode getPosition() {
         return label;
     }
+
+    int getId() {
+        return id;
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The entry points of IncrementalChange that dispatch a method without allocating.
+ * <p>
+ * {@code access$dispatch(int, Object[])} boxes every argument in a new array and boxes the
+ * returned value. Methods with integer ids (see {@link MethodIds}) taking up to
+ * {@link #MAX_ARGS} arguments, the receiver of instance methods included, are dispatched through
+ * an entry point passing each argument in a slot instead: references as {@code Object} and
+ * primitives widened to {@code long}, float and double through their raw bits. Methods returning
+ * a primitive use {@code long access$dispatchLong(int, ...)} which returns it the same way, the
+ * others {@code Object access$dispatch(int, ...)}.
+ * <p>
+ * Every override class implements all the entry points, the instrumented code only calls the one
+ * matching the signature of the method.
+ */
+public class SpecializedDispatch {
+
+    /**
+     * The most slots an entry point has. Instance methods use one for their receiver, so only
+     * those of up to two parameters avoid the array, against four parameters for static methods.
+     * <p>
+     * Each slot doubles the number of entry points: covering four parameters and the receiver
+     * would take 126 of them instead of 30, all declared by IncrementalChange and implemented by
+     * every override class of every patch, a dex method count paid even by the classes whose
+     * methods are all short.
+     */
+    public static final int MAX_ARGS = 3;
+
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+
+    private static final String DISPATCH = "access$dispatch";
+
+    private static final String DISPATCH_LONG = "access$dispatchLong";
+
+    /**
+     * Returns the entry point dispatching a method, or null if it has too many arguments and
+     * goes through {@code access$dispatch(int, Object[])}.
+     *
+     * @param args       the arguments of the method, starting with the receiver if not static.
+     * @param returnType the return type of the method.
+     */
+    public static Method getMethod(List<Type> args, Type returnType) {
+        if (args.size() > MAX_ARGS) {
+            return null;
+        }
+        List<Type> slots = new ArrayList<Type>(args.size());
+        for (Type arg : args) {
+            slots.add(getSlotType(arg));
+        }
+        return getMethod(slots, isPrimitive(returnType));
+    }
+
+    /**
+     * Returns all the entry points declared by IncrementalChange.
+     */
+    public static List<Method> getMethods() {
+        List<Method> methods = new ArrayList<Method>();
+        for (int argc = 0; argc <= MAX_ARGS; argc++) {
+            // each bit of the mask selects a long or an Object slot.
+            for (int mask = 0; mask < (1 << argc); mask++) {
+                List<Type> slots = new ArrayList<Type>(argc);
+                for (int i = argc - 1; i >= 0; i--) {
+                    slots.add((mask & (1 << i)) != 0 ? OBJECT_TYPE : Type.LONG_TYPE);
+                }
+                methods.add(getMethod(slots, false));
+                methods.add(getMethod(slots, true));
+            }
+        }
+        return methods;
+    }
+
+    private static Method getMethod(List<Type> slots, boolean primitiveReturn) {
+        Type[] argumentTypes = new Type[slots.size() + 1];
+        argumentTypes[0] = Type.INT_TYPE;
+        for (int i = 0; i < slots.size(); i++) {
+            argumentTypes[i + 1] = slots.get(i);
+        }
+        return primitiveReturn
+                ? new Method(DISPATCH_LONG, Type.LONG_TYPE, argumentTypes)
+                : new Method(DISPATCH, OBJECT_TYPE, argumentTypes);
+    }
+
+    /**
+     * Returns the type of the slot a value of the given type is passed in.
+     */
+    public static Type getSlotType(Type type) {
+        return isPrimitive(type) ? Type.LONG_TYPE : OBJECT_TYPE;
+    }
+
+    private static boolean isPrimitive(Type type) {
+        return type.getSort() != Type.VOID && type.getSort() != Type.OBJECT
+                && type.getSort() != Type.ARRAY;
+    }
+
+    /**
+     * Converts the value of the given type on top of the stack to its slot type.
+     */
+    public static void toSlot(GeneratorAdapter mv, Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                mv.visitInsn(Opcodes.I2L);
+                break;
+            case Type.FLOAT:
+                mv.invokeStatic(Type.getType(Float.class),
+                        Method.getMethod("int floatToRawIntBits(float)"));
+                mv.visitInsn(Opcodes.I2L);
+                break;
+            case Type.DOUBLE:
+                mv.invokeStatic(Type.getType(Double.class),
+                        Method.getMethod("long doubleToRawLongBits(double)"));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Converts the slot value on top of the stack back to the given type.
+     * <p>
+     * Like {@link ByteCodeUtils#unbox(GeneratorAdapter, Type)}, narrow types are produced by
+     * instructions Dalvik types as such: it rejects an int where a boolean, byte, char or short
+     * is expected.
+     */
+    public static void fromSlot(GeneratorAdapter mv, Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                Label isFalse = new Label();
+                Label end = new Label();
+                mv.visitInsn(Opcodes.LCONST_0);
+                mv.visitInsn(Opcodes.LCMP);
+                mv.visitJumpInsn(Opcodes.IFEQ, isFalse);
+                mv.visitInsn(Opcodes.ICONST_1);
+                mv.visitJumpInsn(Opcodes.GOTO, end);
+                mv.visitLabel(isFalse);
+                mv.visitInsn(Opcodes.ICONST_0);
+                mv.visitLabel(end);
+                break;
+            case Type.CHAR:
+                mv.visitInsn(Opcodes.L2I);
+                mv.visitInsn(Opcodes.I2C);
+                break;
+            case Type.BYTE:
+                mv.visitInsn(Opcodes.L2I);
+                mv.visitInsn(Opcodes.I2B);
+                break;
+            case Type.SHORT:
+                mv.visitInsn(Opcodes.L2I);
+                mv.visitInsn(Opcodes.I2S);
+                break;
+            case Type.INT:
+                mv.visitInsn(Opcodes.L2I);
+                break;
+            case Type.FLOAT:
+                mv.visitInsn(Opcodes.L2I);
+                mv.invokeStatic(Type.getType(Float.class),
+                        Method.getMethod("float intBitsToFloat(int)"));
+                break;
+            case Type.DOUBLE:
+                mv.invokeStatic(Type.getType(Double.class),
+                        Method.getMethod("double longBitsToDouble(long)"));
+                break;
+            case Type.LONG:
+                break;
+            default:
+                if (!type.equals(OBJECT_TYPE)) {
+                    mv.checkCast(type);
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static dodola.anole.lib.TestClasses.CLASS_NAME;
+import static dodola.anole.lib.TestClasses.INTERNAL_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AccessorsTest {
+
+    private static final String SOURCE = ""
+            + "package fixture;\n"
+            + "%s\n"
+            + "public class Fixture {\n"
+            + "    @interface Frozen {}\n"
+            + "    private int count;\n"
+            + "    public int next() { return ++count; }\n"
+            + "}\n";
+
+    private static final String GETTER = Accessors.GET_PREFIX + "count."
+            + Accessors.getGetterDesc(INTERNAL_NAME, "I", false /* isStatic */);
+
+    private static final String SETTER = Accessors.SET_PREFIX + "count."
+            + Accessors.getSetterDesc(INTERNAL_NAME, "I", false /* isStatic */);
+
+    private static final InstrumentationFilter FROZEN_FILTER = new InstrumentationFilter(
+            ImmutableList.<String>of(), ImmutableList.<String>of(), ImmutableList.<String>of(),
+            ImmutableList.of(CLASS_NAME + "$Frozen"));
+
+    private static final InstrumentationOptions FROZEN_OPTIONS = InstrumentationOptions.builder()
+            .setIntDispatch(true)
+            .setFilter(FROZEN_FILTER)
+            .build();
+
+    private static final InstrumentationOptions NO_ACCESSORS_OPTIONS =
+            InstrumentationOptions.builder()
+                    .setIntDispatch(true)
+                    .setFilter(FROZEN_FILTER)
+                    .setAccessors(false)
+                    .build();
+
+    private ClassHierarchy classHierarchy;
+
+    @Before
+    public void setUp() throws Exception {
+        classHierarchy = TestClasses.newClassHierarchy();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        classHierarchy.close();
+    }
+
+    @Test
+    public void instrumentedClassesHaveTheRecordedAccessors() throws Exception {
+        byte[] classBytes = compile("");
+        MethodIds ids = new MethodIds(FROZEN_OPTIONS);
+        ids.record(classBytes);
+
+        assertEquals(ImmutableList.of(GETTER, SETTER),
+                Accessors.getAccessors(TestClasses.readClass(classBytes)));
+        assertTrue(ids.hasAccessor(INTERNAL_NAME, GETTER));
+        assertTrue(ids.hasAccessor(INTERNAL_NAME, SETTER));
+        assertEquals(ImmutableSet.of(GETTER, SETTER), getAccessors(TestClasses.instrument(
+                classBytes,
+                IncrementalSupportVisitor.newVisitorBuilder(FROZEN_OPTIONS),
+                classHierarchy)));
+    }
+
+    @Test
+    public void classesDisabledByAnnotationHaveNoAccessors() throws Exception {
+        byte[] classBytes = compile("@Fixture.Frozen");
+        MethodIds ids = new MethodIds(FROZEN_OPTIONS);
+        ids.record(classBytes);
+
+        ClassNode classNode = TestClasses.readClass(classBytes);
+        assertFalse(Accessors.hasAccessors(classNode, FROZEN_FILTER));
+        assertTrue(Accessors.hasAccessors(classNode, InstrumentationFilter.ALL));
+        assertFalse(ids.hasAccessor(INTERNAL_NAME, GETTER));
+        assertEquals(ImmutableSet.of(), getAccessors(TestClasses.instrument(classBytes,
+                IncrementalSupportVisitor.newVisitorBuilder(FROZEN_OPTIONS),
+                classHierarchy)));
+    }
+
+    @Test
+    public void accessorsCanBeTurnedOff() throws Exception {
+        byte[] classBytes = compile("");
+        MethodIds ids = new MethodIds(NO_ACCESSORS_OPTIONS);
+        ids.record(classBytes);
+
+        assertFalse(ids.hasAccessor(INTERNAL_NAME, GETTER));
+        assertEquals(ImmutableSet.of(), getAccessors(TestClasses.instrument(classBytes,
+                IncrementalSupportVisitor.newVisitorBuilder(NO_ACCESSORS_OPTIONS),
+                classHierarchy)));
+    }
+
+    private static byte[] compile(String annotation) throws Exception {
+        return TestClasses.compileFixture(String.format(SOURCE, annotation));
+    }
+
+    private static ImmutableSet<String> getAccessors(byte[] classBytes) {
+        List<String> accessors = new ArrayList<String>();
+        for (MethodNode method : TestClasses.getMethods(classBytes)) {
+            if (method.name.startsWith(Accessors.GET_PREFIX)
+                    || method.name.startsWith(Accessors.SET_PREFIX)
+                    || method.name.startsWith(Accessors.INVOKE_PREFIX)) {
+                accessors.add(method.name + "." + method.desc);
+            }
+        }
+        return ImmutableSet.copyOf(accessors);
+    }
+}
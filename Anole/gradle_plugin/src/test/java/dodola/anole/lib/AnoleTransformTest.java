@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.android.build.api.transform.Status;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Properties;
+
+import static dodola.anole.lib.TestClasses.INTERNAL_NAME;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnoleTransformTest {
+
+    private static final String PATH = INTERNAL_NAME + SdkConstants.DOT_CLASS;
+
+    private static final String SOURCE = ""
+            + "package fixture;\n"
+            + "public class Fixture {\n"
+            + "    protected int size() { return 1; }\n"
+            + "}\n";
+
+    private File dir;
+    private Properties state;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        // the state of the build that instrumented the class of SOURCE.
+        state = new Properties();
+        state.setProperty(INTERNAL_NAME, InstrumentationCache.getSignature(
+                TestClasses.readClass(TestClasses.compileFixture(SOURCE))));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void changedCodeIsLocal() throws Exception {
+        ClassHierarchy classHierarchy = newClassHierarchy(SOURCE.replace("1;", "2;"));
+        try {
+            assertFalse(AnoleTransform.isNonLocalChange(
+                    PATH, Status.CHANGED, classHierarchy, state));
+        } finally {
+            classHierarchy.close();
+        }
+    }
+
+    @Test
+    public void changedSignatureIsNotLocal() throws Exception {
+        ClassHierarchy classHierarchy = newClassHierarchy(
+                SOURCE.replace("public class", "public abstract class"));
+        try {
+            assertTrue(AnoleTransform.isNonLocalChange(
+                    PATH, Status.CHANGED, classHierarchy, state));
+            // a new class has no subclass instrumented against it yet.
+            assertFalse(AnoleTransform.isNonLocalChange(
+                    "fixture/Other.class", Status.ADDED, classHierarchy, state));
+        } finally {
+            classHierarchy.close();
+        }
+    }
+
+    @Test
+    public void removedClassIsNotLocal() throws Exception {
+        ClassHierarchy classHierarchy = TestClasses.newClassHierarchy(dir);
+        try {
+            assertTrue(AnoleTransform.isNonLocalChange(
+                    PATH, Status.REMOVED, classHierarchy, state));
+        } finally {
+            classHierarchy.close();
+        }
+    }
+
+    @Test
+    public void anyPackageInfoChangeIsNotLocal() throws Exception {
+        ClassHierarchy classHierarchy = newClassHierarchy(SOURCE);
+        try {
+            for (Status status : new Status[]{Status.ADDED, Status.CHANGED, Status.REMOVED}) {
+                assertTrue(AnoleTransform.isNonLocalChange(
+                        "fixture/package-info.class", status, classHierarchy, state));
+                assertTrue(AnoleTransform.isNonLocalChange(
+                        "package-info.class", status, classHierarchy, state));
+            }
+            assertFalse(AnoleTransform.isNonLocalChange(
+                    "fixture/package-info.class", Status.NOTCHANGED, classHierarchy, state));
+        } finally {
+            classHierarchy.close();
+        }
+    }
+
+    private ClassHierarchy newClassHierarchy(String source) throws Exception {
+        TestClasses.writeClasses(
+                ImmutableMap.of(INTERNAL_NAME, TestClasses.compileFixture(source)), dir);
+        return TestClasses.newClassHierarchy(dir);
+    }
+}
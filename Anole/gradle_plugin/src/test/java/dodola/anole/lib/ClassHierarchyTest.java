@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClassHierarchyTest {
+
+    private static final String PACKAGE_INFO = "fixture/package-info";
+
+    private static final String DISABLE_DESC =
+            IncrementalVisitor.DISABLE_ANNOTATION_TYPE.getDescriptor();
+
+    private static final String SOURCE = ""
+            + "package fixture;\n"
+            + "public class Fixture {\n"
+            + "    public int size() { return 1; }\n"
+            + "}\n";
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void packageAnnotationsAreReadFromDirectories() throws Exception {
+        File classesDir = writeClasses("classes", packageInfo(DISABLE_DESC));
+        ClassHierarchy classHierarchy = TestClasses.newClassHierarchy(classesDir);
+        try {
+            assertTrue(classHierarchy.isPackageAnnotated("fixture", DISABLE_DESC));
+            assertFalse(classHierarchy.isPackageAnnotated("fixture", "Ljava/lang/Deprecated;"));
+            assertFalse(classHierarchy.isPackageAnnotated("fixture/inner", DISABLE_DESC));
+            assertFalse(classHierarchy.isPackageAnnotated("", DISABLE_DESC));
+        } finally {
+            classHierarchy.close();
+        }
+    }
+
+    @Test
+    public void packageAnnotationsAreReadFromJars() throws Exception {
+        File jar = new File(dir, "classes.jar");
+        JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            outputStream.putNextEntry(new JarEntry(PACKAGE_INFO + SdkConstants.DOT_CLASS));
+            outputStream.write(packageInfo(DISABLE_DESC));
+            outputStream.closeEntry();
+        } finally {
+            outputStream.close();
+        }
+        ClassHierarchy classHierarchy = TestClasses.newClassHierarchy(jar);
+        try {
+            assertTrue(classHierarchy.isPackageAnnotated("fixture", DISABLE_DESC));
+        } finally {
+            classHierarchy.close();
+        }
+    }
+
+    @Test
+    public void firstPackageInfoHidesTheOthers() throws Exception {
+        File disabled = writeClasses("disabled", packageInfo(DISABLE_DESC));
+        File enabled = writeClasses("enabled", packageInfo());
+
+        ClassHierarchy classHierarchy = TestClasses.newClassHierarchy(disabled, enabled);
+        try {
+            assertTrue(classHierarchy.isPackageAnnotated("fixture", DISABLE_DESC));
+        } finally {
+            classHierarchy.close();
+        }
+        classHierarchy = TestClasses.newClassHierarchy(enabled, disabled);
+        try {
+            assertFalse(classHierarchy.isPackageAnnotated("fixture", DISABLE_DESC));
+        } finally {
+            classHierarchy.close();
+        }
+    }
+
+    @Test
+    public void classesOfADisabledPackageAreNotInstrumented() throws Exception {
+        byte[] classBytes = TestClasses.compileFixture(SOURCE);
+        File disabled = writeClasses("disabled", packageInfo(DISABLE_DESC));
+        File enabled = writeClasses("enabled", packageInfo());
+
+        ClassHierarchy classHierarchy = TestClasses.newClassHierarchy(disabled);
+        try {
+            assertSame(classBytes, TestClasses.instrument(classBytes,
+                    IncrementalSupportVisitor.VISITOR_BUILDER, classHierarchy));
+        } finally {
+            classHierarchy.close();
+        }
+        classHierarchy = TestClasses.newClassHierarchy(enabled);
+        try {
+            assertNotSame(classBytes, TestClasses.instrument(classBytes,
+                    IncrementalSupportVisitor.VISITOR_BUILDER, classHierarchy));
+        } finally {
+            classHierarchy.close();
+        }
+    }
+
+    private File writeClasses(String name, byte[] packageInfo) throws Exception {
+        File classesDir = new File(dir, name);
+        Map<String, byte[]> classes = ImmutableMap.of(PACKAGE_INFO, packageInfo);
+        TestClasses.writeClasses(classes, classesDir);
+        return classesDir;
+    }
+
+    /**
+     * Returns the package-info class of the fixture package, with annotations not visible at
+     * runtime, like javac writes it.
+     */
+    private static byte[] packageInfo(String... annotationDescs) {
+        ClassWriter classWriter = new ClassWriter(0);
+        classWriter.visit(Opcodes.V1_7,
+                Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT | Opcodes.ACC_SYNTHETIC,
+                PACKAGE_INFO, null, "java/lang/Object", null);
+        for (String desc : annotationDescs) {
+            classWriter.visitAnnotation(desc, false).visitEnd();
+        }
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static dodola.anole.lib.TestClasses.INTERNAL_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashIndexTest {
+
+    // sorted differently by String and by their UTF-8 bytes, which the index sorts on.
+    private static final List<String> NAMES = ImmutableList.of(
+            "AndroidManifest.xml",
+            "assets/\u00e9t\u00e9.txt",
+            "assets/\uff21.txt",
+            "assets/\ud83d\ude00.txt",
+            "com/foo/Bar.class",
+            "com/foo/Bar$1.class",
+            "res/layout/main.xml");
+
+    private static final String CLASS_ENTRY = INTERNAL_NAME + SdkConstants.DOT_CLASS;
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void writeThenReadKeepsEveryEntry() throws Exception {
+        HashIndex.Builder builder = new HashIndex.Builder();
+        for (String name : NAMES) {
+            builder.put(name, HashIndex.Digest.of(content(name)));
+        }
+        builder.write(dir);
+
+        HashIndex index = HashIndex.read(dir);
+        assertTrue(HashIndex.isCurrent(dir));
+        assertFalse(HashIndex.isOutdated(dir));
+        assertEquals(NAMES.size(), index.size());
+        for (String name : NAMES) {
+            assertFalse(name, index.isChanged(name, HashIndex.Digest.of(content(name))));
+            assertTrue(name, index.isChanged(name, HashIndex.Digest.of(content(name + "2"))));
+        }
+
+        HashIndex.Builder read = HashIndex.Builder.read(dir);
+        assertEquals(builder.getEntries().keySet(), read.getEntries().keySet());
+        for (String name : NAMES) {
+            assertEquals(builder.getEntries().get(name).toString(),
+                    read.getEntries().get(name).toString());
+        }
+    }
+
+    @Test
+    public void lookupFindsTheFirstAndLastEntries() throws Exception {
+        HashIndex.Builder builder = new HashIndex.Builder();
+        for (String name : ImmutableList.of("b", "d", "f", "h", "j")) {
+            builder.put(name, HashIndex.Digest.of(content(name)));
+        }
+        builder.write(dir);
+        HashIndex index = HashIndex.read(dir);
+
+        assertFalse(index.isChanged("b", HashIndex.Digest.of(content("b"))));
+        assertFalse(index.isChanged("f", HashIndex.Digest.of(content("f"))));
+        assertFalse(index.isChanged("j", HashIndex.Digest.of(content("j"))));
+        // missing before the first entry, between two entries, after the last one and as a
+        // prefix or an extension of an entry.
+        for (String missing : ImmutableList.of("a", "c", "i", "k", "", "bb", "jj")) {
+            assertTrue(missing, index.isChanged(missing, HashIndex.Digest.of(content("b"))));
+        }
+    }
+
+    @Test
+    public void legacyHashTxtComparesTheBytes() throws Exception {
+        byte[] classBytes = compileClass();
+        byte[] recompiled = compileClass("-g:none");
+        Files.write(CLASS_ENTRY + ":" + HashIndex.Digest.of(classBytes) + "\n"
+                        + "assets/a.txt:" + HashIndex.Digest.of(content("a")) + "\n"
+                        + "not a digest\n",
+                new File(dir, HashIndex.HASH_TXT), Charsets.UTF_8);
+
+        HashIndex index = HashIndex.read(dir);
+        assertFalse(HashIndex.isCurrent(dir));
+        assertTrue(HashIndex.isOutdated(dir));
+        assertEquals(2, index.size());
+        assertFalse(index.isChanged(CLASS_ENTRY,
+                HashIndex.Digest.of(CLASS_ENTRY, classBytes, index)));
+        // the class only changed against the current index, which compares canonical forms.
+        assertTrue(index.isChanged(CLASS_ENTRY,
+                HashIndex.Digest.of(CLASS_ENTRY, recompiled, index)));
+        assertFalse(index.isChanged("assets/a.txt",
+                HashIndex.Digest.of("assets/a.txt", content("a"), index)));
+        assertTrue(index.isChanged("assets/a.txt",
+                HashIndex.Digest.of("assets/a.txt", content("b"), index)));
+
+        // writing the index replaces the hash.txt.
+        new HashIndex.Builder().write(dir);
+        assertFalse(new File(dir, HashIndex.HASH_TXT).exists());
+        assertTrue(HashIndex.isCurrent(dir));
+    }
+
+    @Test
+    public void recompiledClassIsNotChanged() throws Exception {
+        byte[] classBytes = compileClass();
+        byte[] recompiled = compileClass("-g:none");
+        HashIndex.Builder builder = new HashIndex.Builder();
+        builder.put(CLASS_ENTRY, HashIndex.Digest.of(CLASS_ENTRY, classBytes, null));
+        builder.write(dir);
+        HashIndex index = HashIndex.read(dir);
+
+        assertFalse(index.isChanged(CLASS_ENTRY,
+                HashIndex.Digest.of(CLASS_ENTRY, recompiled, index)));
+    }
+
+    @Test
+    public void nothingChangedAgainstAnEmptyIndex() throws Exception {
+        HashIndex missing = HashIndex.read(dir);
+        assertEquals(0, missing.size());
+        assertFalse(missing.isChanged("a", HashIndex.Digest.of(content("a"))));
+
+        new HashIndex.Builder().write(dir);
+        HashIndex empty = HashIndex.read(dir);
+        assertEquals(0, empty.size());
+        assertFalse(empty.isChanged("a", HashIndex.Digest.of(content("a"))));
+    }
+
+    private static byte[] compileClass(String... options) throws Exception {
+        return TestClasses.compileFixture(
+                "package fixture; public class Fixture { int run() { return 1; } }", options);
+    }
+
+    private static byte[] content(String name) {
+        return ("content of " + name).getBytes(Charsets.UTF_8);
+    }
+}
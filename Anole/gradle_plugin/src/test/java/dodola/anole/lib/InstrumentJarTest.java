@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import static dodola.anole.lib.TestClasses.INTERNAL_NAME;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InstrumentJarTest {
+
+    private static final int[] PARALLELISMS = {1, 4};
+
+    private static final IncrementalVisitor.VisitorBuilder VISITOR_BUILDER =
+            IncrementalSupportVisitor.newVisitorBuilder(
+                    InstrumentationOptions.builder().setIntDispatch(true).build());
+
+    private static final String SOURCE = ""
+            + "package fixture;\n"
+            + "public class Fixture {\n"
+            + "    public String greet(String name) { return \"hi \" + name; }\n"
+            + "}\n";
+
+    private File dir;
+    private File outputJar;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        outputJar = new File(dir, "instrumented.jar");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void everyEntryIsWrittenInOrder() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(INTERNAL_NAME + SdkConstants.DOT_CLASS,
+                TestClasses.compileFixture(SOURCE));
+        entries.put("assets/a.txt", "a".getBytes(Charsets.UTF_8));
+        File inputJar = writeJar(entries);
+        for (int parallelism : PARALLELISMS) {
+            final List<String> listened = new ArrayList<String>();
+            ClassHierarchy classHierarchy = TestClasses.newClassHierarchy(inputJar);
+            try {
+                IncrementalVisitor.instrumentJar(inputJar, outputJar,
+                        VISITOR_BUILDER, classHierarchy,
+                        parallelism, Deflater.BEST_COMPRESSION,
+                        new IncrementalVisitor.JarEntryListener() {
+                            @Override
+                            public void onEntry(String entryName, byte[] bytes) {
+                                listened.add(entryName);
+                            }
+                        }, null /* cache */);
+            } finally {
+                classHierarchy.close();
+            }
+
+            Map<String, byte[]> instrumented = readEntries(outputJar);
+            assertEquals(new ArrayList<String>(entries.keySet()), listened);
+            assertEquals(listened, new ArrayList<String>(instrumented.keySet()));
+            assertTrue(new String(instrumented.get(INTERNAL_NAME + SdkConstants.DOT_CLASS),
+                    Charsets.ISO_8859_1).contains("$change"));
+            assertArrayEquals(entries.get("assets/a.txt"), instrumented.get("assets/a.txt"));
+        }
+    }
+
+    @Test
+    public void entriesAreStoredAtLevelZero() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(INTERNAL_NAME + SdkConstants.DOT_CLASS,
+                TestClasses.compileFixture(SOURCE));
+        entries.put("assets/a.txt", "a".getBytes(Charsets.UTF_8));
+        File inputJar = writeJar(entries);
+        ClassHierarchy classHierarchy = TestClasses.newClassHierarchy(inputJar);
+        try {
+            IncrementalVisitor.instrumentJar(inputJar, outputJar,
+                    VISITOR_BUILDER, classHierarchy,
+                    4 /* parallelism */, Deflater.NO_COMPRESSION, null /* listener */,
+                    null /* cache */);
+        } finally {
+            classHierarchy.close();
+        }
+
+        JarFile jarFile = new JarFile(outputJar);
+        try {
+            for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+                assertEquals(ZipEntry.STORED, e.nextElement().getMethod());
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    @Test
+    public void failedClassDeletesTheJar() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("assets/a.txt", "a".getBytes(Charsets.UTF_8));
+        entries.put("fixture/Broken.class", "not a class".getBytes(Charsets.UTF_8));
+        File inputJar = writeJar(entries);
+        for (int parallelism : PARALLELISMS) {
+            ClassHierarchy classHierarchy = TestClasses.newClassHierarchy(inputJar);
+            try {
+                IncrementalVisitor.instrumentJar(inputJar, outputJar,
+                        VISITOR_BUILDER, classHierarchy,
+                        parallelism, Deflater.BEST_COMPRESSION, null /* listener */,
+                        null /* cache */);
+                fail();
+            } catch (RuntimeException expected) {
+                // the class reader rejects the entry.
+            } finally {
+                classHierarchy.close();
+            }
+
+            assertFalse(outputJar.exists());
+        }
+    }
+
+    @Test
+    public void readJarListensToEveryEntryOnce() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put(INTERNAL_NAME + SdkConstants.DOT_CLASS,
+                TestClasses.compileFixture(SOURCE));
+        // larger than the buffers of the inflater.
+        entries.put("assets/large.txt", Strings.repeat("large ", 100000)
+                .getBytes(Charsets.UTF_8));
+        entries.put("assets/empty.txt", new byte[0]);
+        File inputJar = writeJar(entries);
+
+        final Map<String, byte[]> listened = new LinkedHashMap<String, byte[]>();
+        IncrementalVisitor.readJar(inputJar, new IncrementalVisitor.JarEntryListener() {
+            @Override
+            public void onEntry(String entryName, byte[] bytes) {
+                assertNull(entryName, listened.put(entryName, bytes));
+            }
+        });
+
+        assertEquals(new ArrayList<String>(entries.keySet()),
+                new ArrayList<String>(listened.keySet()));
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), listened.get(entry.getKey()));
+        }
+    }
+
+    private File writeJar(Map<String, byte[]> entries) throws Exception {
+        File jar = new File(dir, "input.jar");
+        JarOutputStream outputStream = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                outputStream.putNextEntry(new JarEntry(entry.getKey()));
+                outputStream.write(entry.getValue());
+                outputStream.closeEntry();
+            }
+        } finally {
+            outputStream.close();
+        }
+        return jar;
+    }
+
+    private static Map<String, byte[]> readEntries(File jar) throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        JarFile jarFile = new JarFile(jar);
+        try {
+            for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+                JarEntry entry = e.nextElement();
+                InputStream inputStream = jarFile.getInputStream(entry);
+                try {
+                    entries.put(entry.getName(), ByteStreams.toByteArray(inputStream));
+                } finally {
+                    inputStream.close();
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        return entries;
+    }
+}
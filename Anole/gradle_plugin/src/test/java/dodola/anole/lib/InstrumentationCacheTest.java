@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class InstrumentationCacheTest {
+
+    private static final String SOURCE = ""
+            + "package fixture;\n"
+            + "@Deprecated\n"
+            + "public class Fixture implements Runnable {\n"
+            + "    public void run() {}\n"
+            + "    protected int size() { return 1; }\n"
+            + "}\n";
+
+    private static final IncrementalVisitor.VisitorBuilder VISITOR_BUILDER =
+            IncrementalSupportVisitor.newVisitorBuilder(
+                    InstrumentationOptions.builder().setIntDispatch(true).build());
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void signatureIgnoresTheCode() throws Exception {
+        assertEquals(getSignature(SOURCE),
+                getSignature(SOURCE.replace("return 1;", "return 2;")));
+    }
+
+    @Test
+    public void signatureChangesWithWhatSubclassesDependOn() throws Exception {
+        String signature = getSignature(SOURCE);
+        for (String source : ImmutableList.of(
+                SOURCE.replace("public class", "public abstract class"),
+                SOURCE.replace("Fixture implements", "Fixture extends Thread implements"),
+                SOURCE.replace("implements Runnable", "implements Runnable, Cloneable"),
+                SOURCE.replace("@Deprecated\n", ""),
+                SOURCE.replace("protected int size()", "public int size()"),
+                SOURCE.replace("int size()", "long size()"))) {
+            assertNotEquals(source, signature, getSignature(source));
+        }
+    }
+
+    @Test
+    public void keyChangesWithTheSignatureOfTheParents() throws Exception {
+        byte[] classBytes = "class bytes".getBytes("UTF-8");
+        ClassNode parent = TestClasses.readClass(TestClasses.compileFixture(SOURCE));
+        ClassNode abstractParent = TestClasses.readClass(TestClasses.compileFixture(
+                SOURCE.replace("public class", "public abstract class")));
+
+        String key = InstrumentationCache.getKey(classBytes, classBytes.length,
+                ImmutableList.of(parent), false /* packageDisabled */, VISITOR_BUILDER);
+        assertEquals(key, InstrumentationCache.getKey(classBytes, classBytes.length,
+                ImmutableList.of(parent), false /* packageDisabled */, VISITOR_BUILDER));
+        assertNotEquals(key, InstrumentationCache.getKey(classBytes, classBytes.length,
+                ImmutableList.of(abstractParent), false /* packageDisabled */,
+                VISITOR_BUILDER));
+        assertNotEquals(key, InstrumentationCache.getKey(classBytes, classBytes.length,
+                ImmutableList.of(parent), true /* packageDisabled */, VISITOR_BUILDER));
+        assertNotEquals(key, InstrumentationCache.getKey(classBytes, classBytes.length,
+                Collections.<ClassNode>emptyList(), false /* packageDisabled */,
+                VISITOR_BUILDER));
+    }
+
+    @Test
+    public void trimDeletesTheEntriesNotUsed() throws Exception {
+        byte[] used = "used".getBytes("UTF-8");
+        byte[] unused = "unused".getBytes("UTF-8");
+        String usedKey = getKey(used);
+        String unusedKey = getKey(unused);
+        InstrumentationCache previousBuild = new InstrumentationCache(dir);
+        previousBuild.put(usedKey, used);
+        previousBuild.put(unusedKey, unused);
+
+        InstrumentationCache cache = new InstrumentationCache(dir);
+        assertArrayEquals(used, cache.get(usedKey));
+        cache.trim();
+
+        assertArrayEquals(used, cache.get(usedKey));
+        assertNull(cache.get(unusedKey));
+    }
+
+    private static String getKey(byte[] classBytes) {
+        return InstrumentationCache.getKey(classBytes, classBytes.length,
+                Collections.<ClassNode>emptyList(), false /* packageDisabled */, VISITOR_BUILDER);
+    }
+
+    private static String getSignature(String source) throws Exception {
+        return InstrumentationCache.getSignature(
+                TestClasses.readClass(TestClasses.compileFixture(source)));
+    }
+}
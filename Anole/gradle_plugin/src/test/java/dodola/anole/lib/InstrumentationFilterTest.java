@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InstrumentationFilterTest {
+
+    private static final List<String> NONE = Collections.emptyList();
+
+    // included packages, excluded packages, excluded classes, class, whether it is instrumented.
+    private static final Object[][] CLASSES = {
+            {NONE, NONE, NONE, "com/foo/Bar", true},
+            {NONE, NONE, NONE, "Bar", true},
+
+            // names match the sub packages and the inner classes, in either notation.
+            {list("com.foo"), NONE, NONE, "com/foo/Bar", true},
+            {list("com/foo"), NONE, NONE, "com/foo/Bar", true},
+            {list("com.foo"), NONE, NONE, "com/foo/sub/Bar", true},
+            {list("com.foo"), NONE, NONE, "com/foobar/Bar", false},
+            {list("com.foo"), NONE, NONE, "com/Bar", false},
+            {list("com.foo"), NONE, NONE, "Bar", false},
+            {list("com.foo", "org.bar"), NONE, NONE, "org/bar/Baz", true},
+            {NONE, list("com.foo"), NONE, "com/foo/sub/Bar", false},
+            {NONE, list("com.foo"), NONE, "com/foobar/Bar", true},
+            {NONE, NONE, list("com.foo.Bar"), "com/foo/Bar", false},
+            {NONE, NONE, list("com/foo/Bar"), "com/foo/Bar$Inner", false},
+            {NONE, NONE, list("com.foo.Bar"), "com/foo/BarBaz", true},
+            {NONE, NONE, list("com.foo.Bar"), "com/foo/sub/Bar", true},
+
+            // globs.
+            {list("com.*.ui"), NONE, NONE, "com/a/ui/View", true},
+            {list("com.*.ui"), NONE, NONE, "com/a/ui/widget/View", true},
+            {list("com.*.ui"), NONE, NONE, "com/a/b/ui/View", false},
+            {list("com.**.ui"), NONE, NONE, "com/a/b/ui/View", true},
+            {list("com.fo?"), NONE, NONE, "com/foo/Bar", true},
+            {list("com.fo?"), NONE, NONE, "com/fooo/Bar", false},
+            {NONE, NONE, list("com.foo.*Test"), "com/foo/BarTest", false},
+            {NONE, NONE, list("com.foo.*Test"), "com/foo/BarTest$1", false},
+            {NONE, NONE, list("com.foo.*Test"), "com/foo/sub/BarTest", true},
+            {NONE, NONE, list("com.foo.Bar$*"), "com/foo/Bar$Inner", false},
+            {NONE, NONE, list("com.foo.Bar$*"), "com/foo/Bar", true},
+
+            // regular expressions match the whole name only.
+            {list("regex:com\\.(a|b)"), NONE, NONE, "com/a/X", true},
+            {list("regex:com\\.(a|b)"), NONE, NONE, "com/b/X", true},
+            {list("regex:com\\.(a|b)"), NONE, NONE, "com/a/sub/X", false},
+            {list("regex:com\\.(a|b)"), NONE, NONE, "com/c/X", false},
+            {NONE, NONE, list("regex:.*\\.R(\\$.*)?"), "com/foo/R$string", false},
+            {NONE, NONE, list("regex:.*\\.R(\\$.*)?"), "com/foo/Rx", true},
+
+            // exclusions win over inclusions.
+            {list("com.foo"), list("com.foo.internal"), NONE, "com/foo/Bar", true},
+            {list("com.foo"), list("com.foo.internal"), NONE, "com/foo/internal/Bar", false},
+            {list("com.foo"), list("com.foo"), NONE, "com/foo/Bar", false},
+            {list("com.foo"), NONE, list("com.foo.Bar"), "com/foo/Bar", false},
+            {list("com.foo"), NONE, list("com.foo.Bar"), "com/foo/Baz", true},
+    };
+
+    // excluded annotations, annotation descriptor, whether it disables the instrumentation.
+    private static final Object[][] ANNOTATIONS = {
+            {NONE, IncrementalVisitor.DISABLE_ANNOTATION_TYPE.getDescriptor(), true},
+            {NONE, "Lcom/foo/Keep;", false},
+            {list("com.foo.Keep"), "Lcom/foo/Keep;", true},
+            {list("com/foo/Keep"), "Lcom/foo/Keep;", true},
+            {list("com.foo.Keep"), "Lcom/foo/Keep$Inner;", false},
+            {list("com.foo.Keep"), "Lcom/foo/Other;", false},
+            {list("com.foo.Keep"), IncrementalVisitor.DISABLE_ANNOTATION_TYPE.getDescriptor(),
+                    true},
+    };
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void packageAndClassRules() {
+        for (Object[] row : CLASSES) {
+            InstrumentationFilter filter = new InstrumentationFilter(
+                    rules(row[0]), rules(row[1]), rules(row[2]), NONE);
+
+            assertEquals(Arrays.toString(row), row[4], filter.isIncluded((String) row[3]));
+        }
+    }
+
+    @Test
+    public void allIncludesEverything() {
+        for (Object[] row : CLASSES) {
+            assertTrue((String) row[3], InstrumentationFilter.ALL.isIncluded((String) row[3]));
+        }
+    }
+
+    @Test
+    public void annotationRules() {
+        for (Object[] row : ANNOTATIONS) {
+            InstrumentationFilter filter = new InstrumentationFilter(NONE, NONE, NONE,
+                    rules(row[0]));
+
+            assertEquals(Arrays.toString(row), row[2], filter.isDisabledBy((String) row[1]));
+        }
+    }
+
+    @Test
+    public void hotAndSmallMethodsAreNotRedirected() throws Exception {
+        MethodProfile profile = readProfile("HSPLcom/foo/Bar;->run(I)V");
+        InstrumentationFilter filter = new InstrumentationFilter(NONE, NONE, NONE, NONE,
+                profile, 8 /* minMethodSize */);
+
+        assertEquals(InstrumentationFilter.MethodExclusion.HOT,
+                filter.getMethodExclusion("com/foo/Bar", "run", "(I)V", 100));
+        assertEquals(InstrumentationFilter.MethodExclusion.HOT,
+                filter.getMethodExclusion("com/foo/Bar", "run", "(I)V", 1));
+        assertEquals(InstrumentationFilter.MethodExclusion.SMALL,
+                filter.getMethodExclusion("com/foo/Bar", "walk", "(I)V", 7));
+        assertNull(filter.getMethodExclusion("com/foo/Bar", "walk", "(I)V", 8));
+        assertNull(filter.getMethodExclusion("com/foo/Bar", "run", "()V", 100));
+        assertNull(InstrumentationFilter.ALL.getMethodExclusion("com/foo/Bar", "run", "(I)V", 0));
+    }
+
+    @Test
+    public void cacheKeyDoesNotDependOnTheRulesOrder() {
+        assertEquals(
+                new InstrumentationFilter(list("a", "b"), list("c", "d"), list("e", "f"),
+                        list("g", "h")).getCacheKey(),
+                new InstrumentationFilter(list("b", "a"), list("d", "c"), list("f", "e"),
+                        list("h", "g")).getCacheKey());
+    }
+
+    @Test
+    public void cacheKeyChangesWithEveryRule() throws Exception {
+        List<InstrumentationFilter> filters = ImmutableList.of(
+                InstrumentationFilter.ALL,
+                new InstrumentationFilter(list("a"), NONE, NONE, NONE),
+                new InstrumentationFilter(NONE, list("a"), NONE, NONE),
+                new InstrumentationFilter(NONE, NONE, list("a"), NONE),
+                new InstrumentationFilter(NONE, NONE, NONE, list("a")),
+                new InstrumentationFilter(list("a", "b"), NONE, NONE, NONE),
+                new InstrumentationFilter(NONE, NONE, NONE, NONE, null, 8),
+                new InstrumentationFilter(NONE, NONE, NONE, NONE,
+                        readProfile("HSPLcom/foo/Bar;->run(I)V"), 0),
+                new InstrumentationFilter(NONE, NONE, NONE, NONE,
+                        readProfile("HSPLcom/foo/Bar;->run(J)V"), 0));
+        for (int i = 0; i < filters.size(); i++) {
+            for (int j = i + 1; j < filters.size(); j++) {
+                assertNotEquals(i + " " + j, filters.get(i).getCacheKey(),
+                        filters.get(j).getCacheKey());
+            }
+        }
+    }
+
+    private static List<String> list(String... rules) {
+        return Arrays.asList(rules);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> rules(Object rules) {
+        return (List<String>) rules;
+    }
+
+    private MethodProfile readProfile(String line) throws Exception {
+        File file = File.createTempFile("profile", ".txt", dir);
+        Files.write(line, file, Charsets.UTF_8);
+        return MethodProfile.read(file, 1000 /* hotThreshold */);
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class JarWriterTest {
+
+    private static final int[] LEVELS = {
+            Deflater.DEFAULT_COMPRESSION, Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION};
+
+    private static final int[] PARALLELISMS = {1, 4};
+
+    // a whole number of seconds, the zip times have a two seconds precision.
+    private static final long TIME = 1475000000000L;
+
+    // around 65535, the largest entry count of a jar without zip64.
+    private static final int[] ENTRY_COUNTS = {65534, 65535, 70000};
+
+    private File dir;
+    private File jar;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+        jar = new File(dir, "out.jar");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void writtenJarsReadBack() throws Exception {
+        Map<String, byte[]> entries = newEntries();
+        for (int level : LEVELS) {
+            for (int parallelism : PARALLELISMS) {
+                String message = "level " + level + ", " + parallelism + " threads";
+                JarWriter writer = new JarWriter(jar, level, parallelism);
+                try {
+                    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                        writer.add(entry.getKey(), TIME, entry.getValue());
+                    }
+                } finally {
+                    writer.close();
+                }
+
+                assertEntries(message, entries, readCentralDirectory(jar, level));
+                assertEntries(message, entries, readLocalHeaders(jar));
+            }
+        }
+    }
+
+    @Test
+    public void addingAFileKeepsItsContent() throws Exception {
+        File file = new File(dir, "content.txt");
+        Files.write("file content", file, Charsets.UTF_8);
+
+        JarWriter writer = new JarWriter(jar, Deflater.BEST_COMPRESSION, 1);
+        try {
+            writer.add("dir/content.txt", file);
+        } finally {
+            writer.close();
+        }
+
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            ZipEntry entry = zipFile.getEntry("dir/content.txt");
+            assertEquals("file content",
+                    new String(read(zipFile.getInputStream(entry)), Charsets.UTF_8));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void jarsOfManyEntriesUseZip64() throws Exception {
+        for (int count : ENTRY_COUNTS) {
+            JarWriter writer = new JarWriter(jar, Deflater.NO_COMPRESSION, 1);
+            try {
+                for (int i = 0; i < count; i++) {
+                    writer.add("e" + i, TIME, new byte[]{(byte) i});
+                }
+            } finally {
+                writer.close();
+            }
+
+            ZipFile zipFile = new ZipFile(jar);
+            try {
+                assertEquals(count, zipFile.size());
+                ZipEntry last = zipFile.getEntry("e" + (count - 1));
+                assertArrayEquals(new byte[]{(byte) (count - 1)},
+                        read(zipFile.getInputStream(last)));
+            } finally {
+                zipFile.close();
+            }
+            assertEquals(count, countLocalHeaders(jar));
+            assertEquals(count >= 0xffff, hasZip64Locator(jar));
+        }
+    }
+
+    @Test
+    public void missingFileFailsTheJar() throws Exception {
+        for (int parallelism : PARALLELISMS) {
+            JarWriter writer = new JarWriter(jar, Deflater.BEST_COMPRESSION, parallelism);
+            writer.add("a", TIME, new byte[10]);
+            FileNotFoundException failure = null;
+            try {
+                writer.add("missing", new File(dir, "missing"));
+                fail();
+            } catch (FileNotFoundException e) {
+                failure = e;
+            }
+            try {
+                writer.add("b", TIME, new byte[10]);
+                fail();
+            } catch (IOException e) {
+                assertSame(failure, e.getCause());
+            }
+
+            assertClosingRethrows(writer, failure);
+        }
+    }
+
+    @Test
+    public void failedCompressionFailsTheJar() throws Exception {
+        for (int parallelism : PARALLELISMS) {
+            JarWriter writer = new JarWriter(jar, Deflater.BEST_COMPRESSION, parallelism);
+            writer.add("a", TIME, new byte[10]);
+            RuntimeException failure = null;
+            try {
+                // compressed right away on a single thread, when closing otherwise.
+                writer.add("null", TIME, null);
+            } catch (NullPointerException e) {
+                failure = e;
+            }
+            try {
+                writer.close();
+                fail();
+            } catch (NullPointerException e) {
+                if (failure != null) {
+                    assertSame(failure, e);
+                }
+            }
+            assertEquals(parallelism == 1, failure != null);
+            assertFalse(jar.exists());
+        }
+    }
+
+    private static void assertEntries(String message, Map<String, byte[]> expected,
+                                      Map<String, byte[]> actual) {
+        assertEquals(message, new ArrayList<String>(expected.keySet()),
+                new ArrayList<String>(actual.keySet()));
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(message + ", " + entry.getKey(), entry.getValue(),
+                    actual.get(entry.getKey()));
+        }
+    }
+
+    private void assertClosingRethrows(JarWriter writer, Exception failure) {
+        try {
+            writer.close();
+            fail();
+        } catch (Exception e) {
+            assertSame(failure, e);
+        }
+        assertFalse(jar.exists());
+    }
+
+    /**
+     * Returns entries of all kinds, more than the writer holds in memory on several threads.
+     */
+    private static Map<String, byte[]> newEntries() {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        Random random = new Random(42);
+        entries.put("META-INF/MANIFEST.MF",
+                "Manifest-Version: 1.0\r\n\r\n".getBytes(Charsets.UTF_8));
+        entries.put("empty", new byte[0]);
+        entries.put("assets/\u00e9t\u00e9.txt", "\u00e9t\u00e9".getBytes(Charsets.UTF_8));
+        byte[] random100k = new byte[100 * 1024];
+        random.nextBytes(random100k);
+        entries.put("random.bin", random100k);
+        for (int i = 0; i < 300; i++) {
+            StringBuilder content = new StringBuilder();
+            for (int j = 0; j < random.nextInt(2000); j++) {
+                content.append("line ").append(j % 7).append('\n');
+            }
+            entries.put("com/foo/C" + i + ".class", content.toString().getBytes(Charsets.UTF_8));
+        }
+        return entries;
+    }
+
+    private static Map<String, byte[]> readCentralDirectory(File jar, int level)
+            throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                assertEquals(level == Deflater.NO_COMPRESSION ? ZipEntry.STORED
+                        : ZipEntry.DEFLATED, entry.getMethod());
+                assertEquals(TIME, entry.getTime());
+                entries.put(entry.getName(), read(zipFile.getInputStream(entry)));
+            }
+        } finally {
+            zipFile.close();
+        }
+        return entries;
+    }
+
+    private static Map<String, byte[]> readLocalHeaders(File jar) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        JarInputStream inputStream = new JarInputStream(new FileInputStream(jar));
+        try {
+            // the manifest is read with the first entries.
+            assertNotNull(inputStream.getManifest());
+            entries.put("META-INF/MANIFEST.MF",
+                    "Manifest-Version: 1.0\r\n\r\n".getBytes(Charsets.UTF_8));
+            JarEntry entry;
+            while ((entry = inputStream.getNextJarEntry()) != null) {
+                entries.put(entry.getName(), ByteStreams.toByteArray(inputStream));
+            }
+            assertNull(inputStream.getNextJarEntry());
+        } finally {
+            inputStream.close();
+        }
+        return entries;
+    }
+
+    private static int countLocalHeaders(File jar) throws IOException {
+        int count = 0;
+        JarInputStream inputStream = new JarInputStream(new FileInputStream(jar));
+        try {
+            while (inputStream.getNextJarEntry() != null) {
+                count++;
+            }
+        } finally {
+            inputStream.close();
+        }
+        return count;
+    }
+
+    /**
+     * Returns whether the end of central directory record, the last 22 bytes of the jars
+     * written without comment, follows the locator of a zip64 one.
+     */
+    private static boolean hasZip64Locator(File jar) throws IOException {
+        byte[] bytes = Files.toByteArray(jar);
+        ByteBuffer locator = ByteBuffer.wrap(bytes, bytes.length - 22 - 20, 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        return locator.getInt() == 0x07064b50;
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        try {
+            return ByteStreams.toByteArray(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
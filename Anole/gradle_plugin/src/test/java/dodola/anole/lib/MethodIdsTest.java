@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static dodola.anole.lib.TestClasses.INTERNAL_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MethodIdsTest {
+
+    private static final String SOURCE = ""
+            + "package fixture;\n"
+            + "public abstract class Fixture {\n"
+            + "    static int instances;\n"
+            + "    static { instances = 0; }\n"
+            + "    private int sides;\n"
+            + "    public Fixture(int sides) { this.sides = sides; instances++; }\n"
+            + "    public abstract double area();\n"
+            + "    public int sides() { return sides; }\n"
+            + "    public String describe(String name) {\n"
+            + "        int count = sides();\n"
+            + "        return name + \" \" + count + \" \" + hashCode();\n"
+            + "    }\n"
+            + "    private static int twice(int value) { return value * 2; }\n"
+            + "}\n";
+
+    // leaves sides() and twice(int) without redirection.
+    private static final InstrumentationFilter SMALL_METHODS_FILTER = new InstrumentationFilter(
+            ImmutableSet.<String>of(), ImmutableSet.<String>of(), ImmutableSet.<String>of(),
+            ImmutableSet.<String>of(), null /* hotMethods */, 10 /* minMethodSize */);
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void idsAreTheSortedDispatchableMethods() throws Exception {
+        ClassNode classNode = TestClasses.readClass(compile());
+
+        // no constructor, static initializer nor abstract method.
+        assertEquals(ImmutableList.of(
+                "describe.(Ljava/lang/String;)Ljava/lang/String;",
+                "sides.()I",
+                "twice.(I)I"),
+                MethodIds.getDispatchedMethods(classNode));
+    }
+
+    @Test
+    public void writeThenReadKeepsIdsHashesAndAccessors() throws Exception {
+        byte[] classBytes = compile();
+        MethodIds ids = new MethodIds(InstrumentationOptions.builder()
+                .setIntDispatch(true)
+                .build());
+        ids.record(classBytes);
+        File file = new File(dir, MethodIds.METHOD_IDS_TXT);
+        ids.write(file);
+
+        MethodIds read = MethodIds.read(file);
+
+        List<String> methods = ids.getMethods(INTERNAL_NAME);
+        assertEquals(methods, read.getMethods(INTERNAL_NAME));
+        for (String method : methods) {
+            assertEquals(ids.getMethodHash(INTERNAL_NAME, method),
+                    read.getMethodHash(INTERNAL_NAME, method));
+        }
+        String getter = Accessors.GET_PREFIX + "sides."
+                + Accessors.getGetterDesc(INTERNAL_NAME, "I", false /* isStatic */);
+        assertTrue(ids.hasAccessor(INTERNAL_NAME, getter));
+        assertTrue(read.hasAccessor(INTERNAL_NAME, getter));
+        assertFalse(read.hasAccessor(INTERNAL_NAME, Accessors.GET_PREFIX + "instances.()I"));
+    }
+
+    @Test
+    public void idsWithoutHashesHaveNoHash() throws Exception {
+        MethodIds ids = new MethodIds();
+        ids.record(compile());
+        File file = new File(dir, MethodIds.METHOD_IDS_TXT);
+        ids.write(file);
+
+        assertNull(MethodIds.read(file).getMethodHash(INTERNAL_NAME, "sides.()I"));
+    }
+
+    @Test
+    public void readingAMissingFileGivesNoIds() throws Exception {
+        assertNull(MethodIds.read(new File(dir, "missing.txt")).getMethods(INTERNAL_NAME));
+    }
+
+    @Test
+    public void exclusionsAreWrittenAndRead() throws Exception {
+        MethodIds ids = new MethodIds(InstrumentationOptions.builder()
+                .setFilter(SMALL_METHODS_FILTER)
+                .build());
+        ids.record(compile());
+        File file = new File(dir, MethodIds.METHOD_IDS_TXT);
+        ids.write(file);
+        MethodIds read = MethodIds.read(file);
+
+        assertEquals(ImmutableSet.of("sides.()I", "twice.(I)I"),
+                read.getExcludedMethods(INTERNAL_NAME));
+        assertEquals(ids.getMethods(INTERNAL_NAME), read.getMethods(INTERNAL_NAME));
+        assertNull(read.getMethodHash(INTERNAL_NAME, "sides.()I"));
+    }
+
+    @Test
+    public void changesToExcludedMethodsCannotBePatched() throws Exception {
+        MethodIds ids = new MethodIds(InstrumentationOptions.builder()
+                .setFilter(SMALL_METHODS_FILTER)
+                .build());
+        ids.record(compile());
+        File file = new File(dir, MethodIds.METHOD_IDS_TXT);
+        ids.write(file);
+        MethodIds read = MethodIds.read(file);
+
+        assertEquals(ImmutableList.of(INTERNAL_NAME + ".twice (I)I"),
+                read.getUnpatchableChanges(
+                        TestClasses.compileFixture(SOURCE.replace("value * 2", "value * 3")),
+                        InstrumentationFilter.ALL));
+        assertEquals(ImmutableList.of(), read.getUnpatchableChanges(
+                TestClasses.compileFixture(SOURCE.replace("\" \" + count", "count")),
+                InstrumentationFilter.ALL));
+    }
+
+    @Test
+    public void changesToExcludedClassesCannotBePatched() throws Exception {
+        InstrumentationFilter filter = new InstrumentationFilter(ImmutableSet.<String>of(),
+                ImmutableSet.of("fixture"), ImmutableSet.<String>of(), ImmutableSet.<String>of());
+        MethodIds ids = new MethodIds(InstrumentationOptions.builder().setFilter(filter).build());
+        ids.record(compile());
+        File file = new File(dir, MethodIds.METHOD_IDS_TXT);
+        ids.write(file);
+
+        // whether the patched version or the patch leaves the class out.
+        assertEquals(ImmutableList.of(INTERNAL_NAME),
+                MethodIds.read(file).getUnpatchableChanges(compile(), InstrumentationFilter.ALL));
+        assertEquals(ImmutableList.of(INTERNAL_NAME),
+                new MethodIds().getUnpatchableChanges(compile(), filter));
+        assertEquals(ImmutableList.of(),
+                new MethodIds().getUnpatchableChanges(compile(), InstrumentationFilter.ALL));
+    }
+
+    @Test
+    public void hashIgnoresDebugInformation() throws Exception {
+        Map<String, String> withDebug = hashMethods(compile("-g"));
+        Map<String, String> withoutDebug = hashMethods(compile("-g:none"));
+
+        assertEquals(withDebug, withoutDebug);
+    }
+
+    @Test
+    public void hashChangesWithTheCodeOnly() throws Exception {
+        Map<String, String> before = hashMethods(compile());
+        Map<String, String> after = hashMethods(
+                TestClasses.compileFixture(SOURCE.replace("value * 2", "value * 3")));
+
+        assertNotEquals(before.get("twice.(I)I"), after.get("twice.(I)I"));
+        before.remove("twice.(I)I");
+        after.remove("twice.(I)I");
+        assertEquals(before, after);
+    }
+
+    private static byte[] compile(String... options) throws Exception {
+        return TestClasses.compileFixture(SOURCE, options);
+    }
+
+    private static Map<String, String> hashMethods(byte[] classBytes) {
+        Map<String, String> hashes = new HashMap<String, String>();
+        for (MethodNode method : TestClasses.getMethods(classBytes)) {
+            hashes.put(method.name + "." + method.desc, MethodIds.hashMethod(method));
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class MethodProfileTest {
+
+    private static final long THRESHOLD = 1000;
+
+    // a profile line, and whether it makes com/foo/Bar.run(I)V hot.
+    private static final Object[][] LINES = {
+            {"HSPLcom/foo/Bar;->run(I)V", true},
+            {"HLcom/foo/Bar;->run(I)V", true},
+            {"  HSPLcom/foo/Bar;->run(I)V  ", true},
+            {"SPLcom/foo/Bar;->run(I)V", false},
+            {"Lcom/foo/Bar;->run(I)V", false},
+            {"Lcom/foo/Bar;->run(I)V 1000", true},
+            {"Lcom/foo/Bar;->run(I)V 999", false},
+            {"Lcom/foo/Bar;->run(I)V many", false},
+            {"HSPLcom/foo/Bar;->run(J)V", false},
+            {"HSPLcom/foo/Bar;->walk(I)V", false},
+            {"HSPLcom/foo/Baz;->run(I)V", false},
+            {"HSPLcom/foo/Bar;->run", false},
+            {"HSPLcom/foo/Bar;->*(I)V", false},
+            {"HSPLcom/foo/*;->run(I)V", false},
+            {"HLcom/foo/Bar;", false},
+            {"# HSPLcom/foo/Bar;->run(I)V", false},
+            {"", false},
+    };
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void linesMakeTheirMethodsHot() throws Exception {
+        for (Object[] line : LINES) {
+            MethodProfile profile = read((String) line[0]);
+
+            assertEquals("\"" + line[0] + "\"", line[1],
+                    profile.isHot("com/foo/Bar", "run", "(I)V"));
+        }
+    }
+
+    @Test
+    public void cacheKeyOnlyDependsOnTheHotMethods() throws Exception {
+        String key = read("HSPLcom/foo/Bar;->run(I)V", "HSPLcom/foo/Baz;->run()V").getCacheKey();
+
+        assertEquals(key, read("HSPLcom/foo/Bar;->run(I)V", "HSPLcom/foo/Baz;->run()V")
+                .getCacheKey());
+        assertEquals(key, read("# reordered", "HSPLcom/foo/Baz;->run()V",
+                "SPLcom/foo/Cold;->run()V", "Lcom/foo/Bar;->run(I)V 5000").getCacheKey());
+        assertNotEquals(key, read("HSPLcom/foo/Bar;->run(I)V").getCacheKey());
+        assertNotEquals(key, read("HSPLcom/foo/Bar;->run(I)V", "HSPLcom/foo/Baz;->run(I)V")
+                .getCacheKey());
+    }
+
+    private MethodProfile read(String... lines) throws IOException {
+        File file = File.createTempFile("profile", ".txt", dir);
+        Files.write(Joiner.on('\n').join(lines), file, Charsets.UTF_8);
+        return MethodProfile.read(file, THRESHOLD);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static dodola.anole.lib.TestClasses.CLASS_NAME;
+import static dodola.anole.lib.TestClasses.INTERNAL_NAME;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Instruments a class keeping the frames of the methods that can and computing the others, and
+ * checks the written class against the original one.
+ */
+public class PartialFramesWriterTest {
+
+    // constructors and branching methods, whose frames are computed, between methods whose
+    // frames are kept.
+    private static final String SOURCE = ""
+            + "package fixture;\n"
+            + "import java.util.List;\n"
+            + "public class Fixture {\n"
+            + "    private final List<String> names;\n"
+            + "    private long area;\n"
+            + "    public Fixture(List<String> names) { this.names = names; }\n"
+            + "    public int count() {\n"
+            + "        int count = 0;\n"
+            + "        for (String name : names) {\n"
+            + "            if (name.startsWith(\"s\")) count++;\n"
+            + "        }\n"
+            + "        return count;\n"
+            + "    }\n"
+            + "    public Fixture(List<String> names, boolean empty) {\n"
+            + "        this(empty ? null : names);\n"
+            + "    }\n"
+            + "    public long grow(long by, double scale) {\n"
+            + "        try {\n"
+            + "            area = (long) (area * scale) + by;\n"
+            + "        } catch (RuntimeException e) {\n"
+            + "            area = -1;\n"
+            + "        }\n"
+            + "        return area;\n"
+            + "    }\n"
+            + "    public static String kind(int sides) {\n"
+            + "        switch (sides) {\n"
+            + "            case 3: return \"triangle\";\n"
+            + "            case 4: return \"square\";\n"
+            + "            default: return sides > 4 ? \"polygon\" : null;\n"
+            + "        }\n"
+            + "    }\n"
+            + "    private Object first() { return names.isEmpty() ? this : names.get(0); }\n"
+            + "}\n";
+
+    private File dir;
+    private ClassHierarchy classHierarchy;
+    private byte[] classBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        classBytes = TestClasses.compileFixture(SOURCE);
+        dir = Files.createTempDir();
+        classHierarchy = TestClasses.newClassHierarchy();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        classHierarchy.close();
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void methodsKeepTheirOrder() throws Exception {
+        for (boolean intDispatch : new boolean[]{true, false}) {
+            List<String> methods = getMethods(classBytes);
+            List<String> instrumented = getMethods(instrument(intDispatch));
+            // the added methods are written after the original ones.
+            instrumented.retainAll(methods);
+
+            assertEquals("intDispatch=" + intDispatch, methods, instrumented);
+        }
+    }
+
+    @Test
+    public void instrumentedClassPassesTheVerifier() throws Exception {
+        for (boolean intDispatch : new boolean[]{true, false}) {
+            File classesDir = new File(dir, "intDispatch" + intDispatch);
+            TestClasses.writeClasses(ImmutableMap.of(INTERNAL_NAME, instrument(intDispatch)),
+                    classesDir);
+
+            Process process = new ProcessBuilder(
+                    new File(System.getProperty("java.home"), "bin/java").getPath(),
+                    "-Xverify:all",
+                    "-cp", classesDir.getPath() + File.pathSeparator
+                            + System.getProperty("java.class.path"),
+                    Verify.class.getName(),
+                    CLASS_NAME)
+                    .redirectErrorStream(true)
+                    .start();
+            String output = new String(ByteStreams.toByteArray(process.getInputStream()),
+                    "UTF-8");
+
+            assertEquals("intDispatch=" + intDispatch + "\n" + output, 0, process.waitFor());
+        }
+    }
+
+    private byte[] instrument(boolean intDispatch) throws Exception {
+        InstrumentationOptions options =
+                InstrumentationOptions.builder().setIntDispatch(intDispatch).build();
+        return TestClasses.instrument(classBytes,
+                IncrementalSupportVisitor.newVisitorBuilder(options), classHierarchy);
+    }
+
+    private static List<String> getMethods(byte[] classBytes) {
+        List<String> methods = new ArrayList<String>();
+        for (MethodNode method : TestClasses.getMethods(classBytes)) {
+            methods.add(method.name + method.desc);
+        }
+        return methods;
+    }
+
+    /**
+     * Links the classes it is passed the names of, which verifies all their methods.
+     */
+    public static final class Verify {
+
+        public static void main(String[] args) throws Exception {
+            for (String className : args) {
+                Class.forName(className, true, Verify.class.getClassLoader());
+            }
+            System.out.println("verified " + Arrays.toString(args));
+        }
+    }
+}
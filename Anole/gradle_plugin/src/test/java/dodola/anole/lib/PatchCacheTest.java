@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PatchCacheTest {
+
+    private static final String OPTIONS = "filter:int:23.0.1";
+
+    private File dir;
+    private File preVersionDir;
+    private SortedMap<String, HashIndex.Digest> changedEntries;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        preVersionDir = new File(dir, "version1");
+        write(new File(preVersionDir, MethodIds.METHOD_IDS_TXT), "fixture/Fixture 0 run.()I");
+        write(new File(preVersionDir, HashIndex.HASH_TXT), "fixture/Fixture.class:0");
+        changedEntries = new TreeMap<String, HashIndex.Digest>();
+        changedEntries.put("fixture/Fixture.class", digest("v2"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void keyIsStableForTheSameInputs() throws Exception {
+        assertEquals(getKey(), getKey());
+    }
+
+    @Test
+    public void keyChangesWithTheChangedClasses() throws Exception {
+        String key = getKey();
+
+        changedEntries.put("fixture/Fixture.class", digest("v3"));
+        assertNotEquals(key, getKey());
+
+        changedEntries.put("fixture/Fixture.class", digest("v2"));
+        changedEntries.put("fixture/Other.class", digest("v2"));
+        assertNotEquals(key, getKey());
+    }
+
+    @Test
+    public void keyChangesWithTheOptions() throws Exception {
+        assertNotEquals(getKey(), PatchCache.getKey(preVersionDir, changedEntries,
+                OPTIONS.replace(":int", "")));
+    }
+
+    @Test
+    public void keyChangesWithThePatchedVersion() throws Exception {
+        String key = getKey();
+
+        // the patch dispatches on other ids.
+        write(new File(preVersionDir, MethodIds.METHOD_IDS_TXT), "fixture/Fixture 1 run.()I");
+        String otherIds = getKey();
+        assertNotEquals(key, otherIds);
+
+        // the version was indexed in the binary format.
+        write(new File(preVersionDir, HashIndex.HASH_IDX), "index");
+        assertNotEquals(otherIds, getKey());
+    }
+
+    @Test
+    public void putThenRestoreCopiesThePatch() throws Exception {
+        PatchCache cache = new PatchCache(new File(dir, "cache"));
+        File patchJar = new File(dir, "patch.jar");
+        write(patchJar, "dexed patch");
+        String key = getKey();
+
+        File restored = new File(dir, "restored/patch.jar");
+        assertFalse(cache.restore(key, restored));
+        assertFalse(restored.exists());
+
+        cache.put(key, patchJar);
+        // a concurrent build storing the same patch keeps the entry.
+        cache.put(key, patchJar);
+        assertTrue(cache.restore(key, restored));
+        assertArrayEquals(Files.toByteArray(patchJar), Files.toByteArray(restored));
+        assertFalse(new PatchCache(new File(dir, "other")).restore(key, restored));
+    }
+
+    @Test
+    public void keyIsTakenOnce() throws Exception {
+        assertNull(PatchCache.takeKey(dir));
+
+        PatchCache.writeKey(dir, "key");
+        assertEquals("key", PatchCache.takeKey(dir));
+        assertNull(PatchCache.takeKey(dir));
+    }
+
+    private String getKey() throws Exception {
+        return PatchCache.getKey(preVersionDir, changedEntries, OPTIONS);
+    }
+
+    private static HashIndex.Digest digest(String content) {
+        return HashIndex.Digest.of(content.getBytes(Charsets.UTF_8));
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+    }
+}
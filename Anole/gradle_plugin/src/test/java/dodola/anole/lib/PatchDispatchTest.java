@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static dodola.anole.lib.TestClasses.CLASS_NAME;
+import static dodola.anole.lib.TestClasses.INTERNAL_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Instruments a class, builds the override of its next version against the method ids recorded
+ * for it, and checks that the instrumented class behaves like the version it runs.
+ */
+@RunWith(Parameterized.class)
+public class PatchDispatchTest {
+
+    private static final String V1 = ""
+            + "package fixture;\n"
+            + "public class Fixture {\n"
+            + "    private static String prefix = \"v1\";\n"
+            + "    private int count;\n"
+            + "    public Fixture() { count = 1; }\n"
+            + "    public String greet(String name) { count++; return prefix + \":\" + name; }\n"
+            + "    public int add(int a, int b) { return a + b; }\n"
+            + "    public long scale(long value, int factor) { return value * factor; }\n"
+            + "    public boolean isEven(int value) { return value % 2 == 0; }\n"
+            + "    public int sum(int a, int b, int c, int d) { return a + b + c + d; }\n"
+            + "    public static double half(double value) { return value / 2; }\n"
+            + "    public int getCount() { return count; }\n"
+            + "    private String tag(String s) { return \"<\" + s + \">\"; }\n"
+            + "    public String tagged(String s) { return tag(s); }\n"
+            + "}\n";
+
+    // changes the constructor, greet, add, isEven, sum and half.
+    private static final String V2 = ""
+            + "package fixture;\n"
+            + "public class Fixture {\n"
+            + "    private static String prefix = \"v1\";\n"
+            + "    private int count;\n"
+            + "    public Fixture() { count = 10; }\n"
+            + "    public String greet(String name) {\n"
+            + "        count += 2;\n"
+            + "        return tag(prefix + \"2:\" + name);\n"
+            + "    }\n"
+            + "    public int add(int a, int b) { return a * b; }\n"
+            + "    public long scale(long value, int factor) { return value * factor; }\n"
+            + "    public boolean isEven(int value) { return value % 2 != 0; }\n"
+            + "    public int sum(int a, int b, int c, int d) { return a + b + c + d + count; }\n"
+            + "    public static double half(double value) { return value / 4; }\n"
+            + "    public int getCount() { return count; }\n"
+            + "    private String tag(String s) { return \"<\" + s + \">\"; }\n"
+            + "    public String tagged(String s) { return tag(s); }\n"
+            + "}\n";
+
+    @Parameterized.Parameters(name = "intDispatch={0}")
+    public static Collection<Object[]> parameters() {
+        return Arrays.asList(new Object[][]{{true}, {false}});
+    }
+
+    private final boolean intDispatch;
+
+    private File dir;
+    private ClassHierarchy classHierarchy;
+    private byte[] v1;
+    private byte[] v2;
+
+    public PatchDispatchTest(boolean intDispatch) {
+        this.intDispatch = intDispatch;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        v1 = TestClasses.compileFixture(V1);
+        v2 = TestClasses.compileFixture(V2);
+        dir = Files.createTempDir();
+        File classesDir = new File(dir, "classes");
+        Files.createParentDirs(new File(classesDir, INTERNAL_NAME));
+        Files.write(v1, new File(classesDir, INTERNAL_NAME + SdkConstants.DOT_CLASS));
+        classHierarchy = TestClasses.newClassHierarchy(classesDir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        classHierarchy.close();
+        FileUtils.deleteFolder(dir);
+    }
+
+    @Test
+    public void unpatchedRunsTheOriginalCode() throws Exception {
+        Class<?> instrumented = new TestClasses.TestClassLoader()
+                .add(INTERNAL_NAME, instrumentV1())
+                .loadClass(CLASS_NAME);
+
+        assertEquals(run(load(v1)), run(instrumented));
+    }
+
+    @Test
+    public void patchedRunsThePatchedCode() throws Exception {
+        // the ids go through methodids.txt, like from one build to the next.
+        MethodIds ids = new MethodIds(getOptions(InstrumentationFilter.ALL));
+        ids.record(v1);
+        File idsFile = new File(dir, MethodIds.METHOD_IDS_TXT);
+        ids.write(idsFile);
+        MethodIds previousIds = MethodIds.read(idsFile);
+
+        byte[] override = TestClasses.instrument(v2,
+                IncrementalChangeVisitor.newVisitorBuilder(previousIds,
+                        getOptions(InstrumentationFilter.ALL)), classHierarchy);
+        assertNotNull(override);
+        TestClasses.TestClassLoader loader = new TestClasses.TestClassLoader()
+                .add(INTERNAL_NAME, instrumentV1())
+                .add(INTERNAL_NAME + "$override", override);
+        Class<?> instrumented = loader.loadClass(CLASS_NAME);
+        Field change = instrumented.getDeclaredField("$change");
+        change.setAccessible(true);
+        change.set(null, loader.loadClass(CLASS_NAME + "$override").newInstance());
+
+        assertEquals(run(load(v2)), run(instrumented));
+    }
+
+    @Test
+    public void overrideLeavesOutTheExcludedMethods() throws Exception {
+        // leaves add(int, int) without redirection.
+        InstrumentationFilter filter = new InstrumentationFilter(ImmutableSet.<String>of(),
+                ImmutableSet.<String>of(), ImmutableSet.<String>of(), ImmutableSet.<String>of(),
+                null /* hotMethods */, 5 /* minMethodSize */);
+        MethodIds ids = new MethodIds(getOptions(filter));
+        ids.record(v1);
+        File idsFile = new File(dir, MethodIds.METHOD_IDS_TXT);
+        ids.write(idsFile);
+
+        byte[] override = TestClasses.instrument(v2, IncrementalChangeVisitor.newVisitorBuilder(
+                MethodIds.read(idsFile), getOptions(filter)), classHierarchy);
+        List<String> methods = new ArrayList<String>();
+        for (MethodNode method : TestClasses.getMethods(override)) {
+            methods.add(method.name);
+        }
+
+        // nothing reaches the override of add, the patch build warns that it changed.
+        assertFalse(methods.contains("add"));
+        assertTrue(methods.contains("isEven"));
+    }
+
+    private byte[] instrumentV1() throws Exception {
+        byte[] instrumented = TestClasses.instrument(v1,
+                IncrementalSupportVisitor.newVisitorBuilder(
+                        getOptions(InstrumentationFilter.ALL)), classHierarchy);
+        assertNotNull(instrumented);
+        return instrumented;
+    }
+
+    private InstrumentationOptions getOptions(InstrumentationFilter filter) {
+        return InstrumentationOptions.builder()
+                .setIntDispatch(intDispatch)
+                .setFilter(filter)
+                .build();
+    }
+
+    private static Class<?> load(byte[] classBytes) throws Exception {
+        return new TestClasses.TestClassLoader().add(INTERNAL_NAME, classBytes)
+                .loadClass(CLASS_NAME);
+    }
+
+    /**
+     * Calls each method of a new instance of the class, in an order where they see the state the
+     * previous ones left.
+     */
+    private static List<Object> run(Class<?> greeter) throws Exception {
+        Object instance = greeter.newInstance();
+        List<Object> results = new ArrayList<Object>();
+        results.add(invoke(instance, "getCount"));
+        results.add(invoke(instance, "greet", "x"));
+        results.add(invoke(instance, "getCount"));
+        results.add(invoke(instance, "add", 6, 7));
+        results.add(invoke(instance, "scale", 4L, 5));
+        results.add(invoke(instance, "isEven", 3));
+        results.add(invoke(instance, "sum", 1, 2, 3, 4));
+        results.add(greeter.getMethod("half", double.class).invoke(null, 3.0));
+        results.add(invoke(instance, "tagged", "y"));
+        return results;
+    }
+
+    private static Object invoke(Object instance, String name, Object... args) throws Exception {
+        for (Method method : instance.getClass().getMethods()) {
+            if (method.getName().equals(name)
+                    && method.getParameterTypes().length == args.length) {
+                return method.invoke(instance, args);
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.lib;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Files;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compiles, instruments and loads the small classes the tests are written against.
+ */
+final class TestClasses {
+
+    /**
+     * The class the fixture source of a test declares, see {@link #compileFixture}.
+     */
+    static final String CLASS_NAME = "fixture.Fixture";
+
+    static final String INTERNAL_NAME = "fixture/Fixture";
+
+    private TestClasses() {
+    }
+
+    /**
+     * Compiles a source declaring the {@link #CLASS_NAME} fixture class and returns its class
+     * file.
+     *
+     * @param options the additional javac options, like {@code -g:none}.
+     */
+    static byte[] compileFixture(String source, String... options) throws IOException {
+        return compile(CLASS_NAME, source, options).get(INTERNAL_NAME);
+    }
+
+    /**
+     * Compiles a source file for Java 7, like the Android classes the plugin instruments.
+     *
+     * @param className the name of the class the source declares, like {@code fixture.Foo}.
+     * @param options   the additional javac options, like {@code -g:none}.
+     * @return the class files of the source, by class internal name.
+     */
+    static Map<String, byte[]> compile(String className, String source, String... options)
+            throws IOException {
+        File sourceDir = Files.createTempDir();
+        File classesDir = Files.createTempDir();
+        try {
+            File sourceFile = new File(sourceDir, className.replace('.', '/') + ".java");
+            Files.createParentDirs(sourceFile);
+            Files.write(source.getBytes("UTF-8"), sourceFile);
+
+            List<String> args = new ArrayList<String>(Arrays.asList(
+                    "-source", "1.7", "-target", "1.7", "-nowarn",
+                    "-d", classesDir.getPath()));
+            args.addAll(Arrays.asList(options));
+            args.add(sourceFile.getPath());
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            assertEquals("javac " + args, 0,
+                    compiler.run(null, null, null, args.toArray(new String[args.size()])));
+            return readClasses(classesDir);
+        } finally {
+            FileUtils.deleteFolder(sourceDir);
+            FileUtils.deleteFolder(classesDir);
+        }
+    }
+
+    /**
+     * Reads a class file with its code and debug information.
+     */
+    static ClassNode readClass(byte[] classBytes) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(classBytes).accept(classNode, 0);
+        return classNode;
+    }
+
+    /**
+     * Returns the methods of a class file, in the order it declares them.
+     */
+    static List<MethodNode> getMethods(byte[] classBytes) {
+        //noinspection unchecked ASM api.
+        return (List<MethodNode>) readClass(classBytes).methods;
+    }
+
+    /**
+     * Reads the class files of a directory, by class internal name.
+     */
+    static Map<String, byte[]> readClasses(File dir) throws IOException {
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        for (File file : Files.fileTreeTraverser().preOrderTraversal(dir)
+                .filter(Files.isFile())) {
+            String path = FileUtils.relativePath(file, dir).replace(File.separatorChar, '/');
+            if (path.endsWith(SdkConstants.DOT_CLASS)) {
+                classes.put(path.substring(0, path.length() - SdkConstants.DOT_CLASS.length()),
+                        Files.toByteArray(file));
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Writes classes to a directory, by class internal name.
+     */
+    static void writeClasses(Map<String, byte[]> classes, File dir) throws IOException {
+        for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+            File file = new File(dir, entry.getKey() + SdkConstants.DOT_CLASS);
+            Files.createParentDirs(file);
+            Files.write(entry.getValue(), file);
+        }
+    }
+
+    /**
+     * Returns an index of the JVM boot classes, which stand for the android.jar of a build, of
+     * the test class path, and of the passed directories.
+     */
+    static ClassHierarchy newClassHierarchy(File... dirs) throws IOException {
+        List<String> classPath = new ArrayList<String>();
+        Splitter splitter = Splitter.on(File.pathSeparatorChar).omitEmptyStrings();
+        for (String path : Iterables.concat(
+                splitter.split(System.getProperty("sun.boot.class.path", "")),
+                splitter.split(System.getProperty("java.class.path")))) {
+            // the boot class path lists jars some JVMs do not ship.
+            if (new File(path).exists()) {
+                classPath.add(path);
+            }
+        }
+        for (File dir : dirs) {
+            classPath.add(dir.getPath());
+        }
+        return ClassHierarchy.fromClassPath(Joiner.on(File.pathSeparatorChar).join(classPath));
+    }
+
+    /**
+     * Instruments a class in memory, returns null if the visitor has no output for it.
+     */
+    static byte[] instrument(byte[] classBytes, IncrementalVisitor.VisitorBuilder visitorBuilder,
+            ClassHierarchy classHierarchy) throws IOException {
+        return IncrementalVisitor.instrumentClassBytes(classBytes, classBytes.length,
+                visitorBuilder, classHierarchy, null /* cache */);
+    }
+
+    /**
+     * Defines the classes it is given itself, child first, and delegates the others, like the
+     * runtime, to the test class loader.
+     */
+    static final class TestClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+        TestClassLoader() {
+            super(TestClasses.class.getClassLoader());
+        }
+
+        TestClassLoader add(String internalName, byte[] classBytes) {
+            classes.put(internalName.replace('/', '.'), classBytes);
+            return this;
+        }
+
+        TestClassLoader addAll(Map<String, byte[]> classes) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                add(entry.getKey(), entry.getValue());
+            }
+            return this;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            byte[] classBytes = classes.get(name);
+            if (classBytes == null) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                loaded = defineClass(name, classBytes, 0, classBytes.length);
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+}
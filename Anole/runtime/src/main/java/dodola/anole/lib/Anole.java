@@ -5,13 +5,20 @@ package dodola.anole.lib;
 
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import dalvik.system.DexClassLoader;
 import dodola.anole.runtime.PatchesLoader;
@@ -27,24 +34,225 @@ public class Anole {
 
     private static final String LOG_TAG = "!!Anole!!";
 
-    public static void applyPatch(Context context, String dexFile) {
-        try {
-            ClassLoader classLoader = context.getClass().getClassLoader();
+    private static final String PATCHES_LOADER = "dodola.anole.runtime.AppPatchesLoaderImpl";
 
-            String nativeLibraryPath;
-            try {
-                nativeLibraryPath = (String) classLoader.getClass().getMethod("getLdLibraryPath")
-                        .invoke(classLoader);
-            } catch (Throwable t) {
-                nativeLibraryPath = getNativeLibraryFolder(context).getPath();
+    // 补丁的准备工作串行执行,同时只处理一个补丁
+    private static ExecutorService sPatchExecutor;
+
+    /**
+     * 补丁异步应用完成的回调
+     */
+    public interface Callback {
+
+        /**
+         * 在调用applyPatchAsync的线程上回调(该线程没有Looper时在主线程)
+         *
+         * @param applied 补丁是否已经全部生效,失败时不会生效任何一个类
+         * @param timings 各个阶段的耗时
+         * @param error   失败的原因,成功时为null
+         */
+        void onPatchApplied(boolean applied, Timings timings, Throwable error);
+    }
+
+    /**
+     * 异步应用补丁各个阶段的耗时,单位毫秒,未执行的阶段为-1
+     */
+    public static final class Timings {
+        /**
+         * 拷贝补丁到私有目录
+         */
+        public long copyMillis = -1;
+        /**
+         * 创建DexClassLoader,包括dexopt/dex2oat
+         */
+        public long optimizeMillis = -1;
+        /**
+         * 加载并实例化所有$override类,检查它们能否替换原来的类;延迟加载时只解析$change字段
+         */
+        public long prepareMillis = -1;
+        /**
+         * 在调用线程上替换所有的$change
+         */
+        public long applyMillis = -1;
+
+        @Override
+        public String toString() {
+            return "copy=" + copyMillis + "ms optimize=" + optimizeMillis + "ms prepare="
+                    + prepareMillis + "ms apply=" + applyMillis + "ms";
+        }
+    }
+
+    /**
+     * 在后台线程拷贝、优化并预加载补丁,然后只在调用线程上替换$change,不阻塞UI线程
+     *
+     * @param context  上下文
+     * @param dexFile  补丁文件
+     * @param callback 完成回调,可以为null
+     */
+    public static void applyPatchAsync(Context context, final String dexFile,
+                                       Callback callback) {
+        applyPatchAsync(context, dexFile, false, callback);
+    }
+
+    /**
+     * 同{@link #applyPatchAsync(Context, String, Callback)}
+     *
+     * @param lazy 为true时应用补丁不加载任何$override类,每个类第一次被调用时才加载它的$override,
+     *             补丁生效更快,但$override加载失败要到调用时才会发现
+     */
+    public static void applyPatchAsync(Context context, final String dexFile, boolean lazy,
+                                       Callback callback) {
+        stagePatch(context, lazy, callback, new PatchSource() {
+            @Override
+            public String copy(Context context, File dexDir) throws IOException {
+                File outFile = new File(dexDir, new File(dexFile).getName());
+                if (!outFile.getCanonicalPath().equals(new File(dexFile).getCanonicalPath())) {
+                    InputStream in = new FileInputStream(dexFile);
+                    try {
+                        OutputStream out = new FileOutputStream(outFile);
+                        try {
+                            copyFile(in, out);
+                        } finally {
+                            out.close();
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                return outFile.getAbsolutePath();
             }
-            DexClassLoader dexClassLoader = new DexClassLoader(dexFile,
-                    context.getCacheDir().getPath(), nativeLibraryPath,
-                    context.getClass().getClassLoader());
+        });
+    }
+
+    /**
+     * 同{@link #applyPatchAsync(Context, String, Callback)},补丁从Assets里取出,一般用于测试
+     */
+    public static void applyPatchFromAssetsAsync(Context context, final String assetName,
+                                                 Callback callback) {
+        applyPatchFromAssetsAsync(context, assetName, false, callback);
+    }
+
+    /**
+     * 同{@link #applyPatchAsync(Context, String, boolean, Callback)},补丁从Assets里取出
+     */
+    public static void applyPatchFromAssetsAsync(Context context, final String assetName,
+                                                 boolean lazy, Callback callback) {
+        stagePatch(context, lazy, callback, new PatchSource() {
+            @Override
+            public String copy(Context context, File dexDir) throws IOException {
+                return copyAsset(context, assetName, dexDir);
+            }
+        });
+    }
+
+    private interface PatchSource {
+        String copy(Context context, File dexDir) throws IOException;
+    }
+
+    private static void stagePatch(Context context, final boolean lazy, final Callback callback,
+                                   final PatchSource source) {
+        // the patched classes are those of the caller, the application context may be a
+        // framework class.
+        final ClassLoader classLoader = context.getClass().getClassLoader();
+        final Context appContext = context.getApplicationContext() != null
+                ? context.getApplicationContext()
+                : context;
+        Looper looper = Looper.myLooper();
+        final Handler handler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        getPatchExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Timings timings = new Timings();
+                final PatchesLoader loader;
+                try {
+                    long start = SystemClock.elapsedRealtime();
+                    File dexDir = new File(appContext.getFilesDir(), "hotfix");
+                    dexDir.mkdirs();
+                    String dexPath = source.copy(appContext, dexDir);
+                    long copied = SystemClock.elapsedRealtime();
+                    timings.copyMillis = copied - start;
+
+                    ClassLoader dexClassLoader = createClassLoader(appContext, classLoader,
+                            dexPath);
+                    long optimized = SystemClock.elapsedRealtime();
+                    timings.optimizeMillis = optimized - copied;
+
+                    loader = (PatchesLoader) Class.forName(PATCHES_LOADER, true, dexClassLoader)
+                            .newInstance();
+                    loader.setLazy(lazy);
+                    if (!loader.prepare()) {
+                        throw new IllegalStateException("Cannot prepare patch " + dexPath);
+                    }
+                    timings.prepareMillis = SystemClock.elapsedRealtime() - optimized;
+                } catch (final Throwable t) {
+                    Log.e(LOG_TAG, "Cannot stage patch", t);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            notifyApplied(callback, false, timings, t);
+                        }
+                    });
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = SystemClock.elapsedRealtime();
+                        boolean applied = loader.load();
+                        timings.applyMillis = SystemClock.elapsedRealtime() - start;
+                        Log.v(LOG_TAG, "Patch " + (applied ? "applied " : "not applied ")
+                                + timings);
+                        notifyApplied(callback, applied, timings, applied
+                                ? null
+                                : new IllegalStateException("Cannot apply patch"));
+                    }
+                });
+            }
+        });
+    }
+
+    private static void notifyApplied(Callback callback, boolean applied, Timings timings,
+                                      Throwable error) {
+        if (callback != null) {
+            callback.onPatchApplied(applied, timings, error);
+        }
+    }
+
+    private static synchronized ExecutorService getPatchExecutor() {
+        if (sPatchExecutor == null) {
+            sPatchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Anole-patch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sPatchExecutor;
+    }
+
+    private static ClassLoader createClassLoader(Context context, ClassLoader classLoader,
+                                                String dexFile) {
+
+        String nativeLibraryPath;
+        try {
+            nativeLibraryPath = (String) classLoader.getClass().getMethod("getLdLibraryPath")
+                    .invoke(classLoader);
+        } catch (Throwable t) {
+            nativeLibraryPath = getNativeLibraryFolder(context).getPath();
+        }
+        return new DexClassLoader(dexFile,
+                context.getCacheDir().getPath(), nativeLibraryPath, classLoader);
+    }
+
+    public static void applyPatch(Context context, String dexFile) {
+        try {
+            ClassLoader dexClassLoader = createClassLoader(context,
+                    context.getClass().getClassLoader(), dexFile);
 
             // we should transform this process with an interface/impl
-            Class<?> aClass = Class.forName(
-                    "dodola.anole.runtime.AppPatchesLoaderImpl", true, dexClassLoader);
+            Class<?> aClass = Class.forName(PATCHES_LOADER, true, dexClassLoader);
             try {
 
                 PatchesLoader loader = (PatchesLoader) aClass.newInstance();
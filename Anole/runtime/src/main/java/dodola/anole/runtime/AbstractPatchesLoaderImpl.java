@@ -20,38 +20,146 @@ package dodola.anole.runtime;
 
 import java.lang.reflect.Field;
 
+/**
+ * Loads a patch in two phases so that it is applied entirely or not at all:
+ * <ul>
+ * <li>{@link #prepare()} loads and instantiates the override of every patched class and resolves
+ * their $change fields, without changing the running code. It is the slow part and can run on a
+ * background thread.</li>
+ * <li>{@link #load()} then publishes all the overrides in a single pass. If one of them cannot
+ * be published, the classes already published are restored to their previous change.</li>
+ * </ul>
+ * In lazy mode, see {@link #setLazy(boolean)}, the overrides are only loaded when first called:
+ * preparing the patch only resolves the $change fields and publishes a {@link LazyOverride} in
+ * each of them.
+ */
 public abstract class AbstractPatchesLoaderImpl implements PatchesLoader {
 
     public abstract String[] getPatchedClasses();
 
+    // held while publishing $change fields, by the loaders and the lazy overrides replacing
+    // themselves, so that the override of an older patch never replaces a newer one.
+    static final Object PUBLISH_LOCK = new Object();
+
+    private boolean lazy;
+
+    // the prepared patch, $change field of each patched class and its override.
+    private Field[] changeFields;
+    private Object[] overrides;
+
     @Override
-    public boolean load() {
+    public synchronized void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    @Override
+    public synchronized boolean prepare() {
+        String[] patchedClasses = getPatchedClasses();
+        Field[] fields = new Field[patchedClasses.length];
+        Object[] instances = new Object[patchedClasses.length];
         try {
-            for (String className : getPatchedClasses()) {
-                ClassLoader cl = getClass().getClassLoader();
-                Class<?> aClass = cl.loadClass(className + "$override");
-                Object o = aClass.newInstance();
+            ClassLoader cl = getClass().getClassLoader();
+            for (int i = 0; i < patchedClasses.length; i++) {
+                String className = patchedClasses[i];
                 Class<?> originalClass = cl.loadClass(className);
                 Field changeField = originalClass.getDeclaredField("$change");
                 // force the field accessibility as the class might not be "visible"
                 // from this package.
                 changeField.setAccessible(true);
+                Object o;
+                if (lazy) {
+                    o = new LazyOverride(cl, className + "$override", changeField);
+                } else {
+                    o = cl.loadClass(className + "$override").newInstance();
+                }
+                if (!changeField.getType().isInstance(o)) {
+                    throw new ClassCastException(o.getClass().getName() + " cannot be assigned to "
+                            + className + ".$change");
+                }
+                fields[i] = changeField;
+                instances[i] = o;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        changeFields = fields;
+        overrides = instances;
+        return true;
+    }
 
-                // If there was a previous change set, mark it as obsolete:
-                Object previous = changeField.get(null);
-                if (previous != null) {
-                    Field isObsolete = previous.getClass().getDeclaredField("$obsolete");
-                    if (isObsolete != null) {
-                        isObsolete.set(null, true);
+    @Override
+    public synchronized boolean load() {
+        if (changeFields == null && !prepare()) {
+            return false;
+        }
+        Field[] fields = changeFields;
+        Object[] instances = overrides;
+        changeFields = null;
+        overrides = null;
+
+        Object[] previous = new Object[fields.length];
+        synchronized (PUBLISH_LOCK) {
+            int published = 0;
+            try {
+                for (; published < fields.length; published++) {
+                    previous[published] = fields[published].get(null);
+                    fields[published].set(null, instances[published]);
+                }
+            } catch (Exception e) {
+                // restore the classes already published, the patch is not applied at all.
+                for (int i = published - 1; i >= 0; i--) {
+                    try {
+                        fields[i].set(null, previous[i]);
+                    } catch (Exception rollbackException) {
+                        rollbackException.printStackTrace();
                     }
                 }
-                changeField.set(null, o);
+                e.printStackTrace();
+                return false;
+            }
+        }
 
+        // now that the whole patch is applied, mark the previous change sets as obsolete and
+        // forget the members looked up in the classes of their patches, which would keep these
+        // patches loaded.
+        ClassLoader patchLoader = getClass().getClassLoader();
+        ClassLoader removed = null;
+        for (int i = 0; i < previous.length; i++) {
+            if (previous[i] != null && previous[i] != instances[i]) {
+                markObsolete(previous[i]);
+                ClassLoader obsoleteLoader = getClassLoader(previous[i]);
+                if (obsoleteLoader != null && obsoleteLoader != removed
+                        && obsoleteLoader != patchLoader
+                        && obsoleteLoader != fields[i].getDeclaringClass().getClassLoader()) {
+                    AndroidInstantRuntime.removeClassLoader(obsoleteLoader);
+                    removed = obsoleteLoader;
+                }
             }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the class loader of the patch a change set comes from.
+     */
+    private static ClassLoader getClassLoader(Object change) {
+        if (change instanceof LazyOverride) {
+            return ((LazyOverride) change).getClassLoader();
+        }
+        return change.getClass().getClassLoader();
+    }
+
+    static void markObsolete(Object change) {
+        if (change instanceof LazyOverride) {
+            ((LazyOverride) change).markObsolete();
+            return;
+        }
+        try {
+            Field isObsolete = change.getClass().getDeclaredField("$obsolete");
+            isObsolete.set(null, true);
         } catch (Exception e) {
             e.printStackTrace();
-            return false;
         }
-        return true;
     }
 }
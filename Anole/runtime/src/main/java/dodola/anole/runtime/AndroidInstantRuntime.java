@@ -25,7 +25,12 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Generic Instant Run services. must not depend on Android APIs.
@@ -35,6 +40,59 @@ import java.util.NoSuchElementException;
 @SuppressWarnings("unused")
 public class AndroidInstantRuntime {
 
+    /**
+     * The accessible fields, methods and constructors already looked up, by class.
+     * <p>
+     * The members reference their class, so a weak key would not let the class go either: the
+     * entries of the classes a patch adds are removed by {@link #removeClassLoader} once a newer
+     * patch replaces it, so that its class loader can be unloaded. Lookups do not lock, only
+     * adding the members of a new class does.
+     */
+    private static final ConcurrentMap<Class<?>, ClassMembers> MEMBERS =
+            new ConcurrentHashMap<Class<?>, ClassMembers>();
+
+    private static final Overload[] NO_OVERLOADS = new Overload[0];
+
+    private static volatile boolean statsEnabled;
+
+    private static final AtomicLong cacheHits = new AtomicLong();
+
+    private static final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Starts or stops counting the member lookups, which is off by default to keep the lookups
+     * from all threads off the same counters.
+     */
+    public static void setStatsEnabled(boolean enabled) {
+        statsEnabled = enabled;
+    }
+
+    /**
+     * Returns the number of member lookups served from the cache while the stats were enabled.
+     */
+    public static long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Returns the number of member lookups that had to go through reflection while the stats were
+     * enabled.
+     */
+    public static long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Forgets the members looked up in the classes of a class loader, the loader of a patch that
+     * is not used anymore.
+     */
+    static void removeClassLoader(@NonNull ClassLoader classLoader) {
+        for (Iterator<Class<?>> it = MEMBERS.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().getClassLoader() == classLoader) {
+                it.remove();
+            }
+        }
+    }
 
     @Nullable
     public static Object getStaticPrivateField(Class targetClass, String fieldName) {
@@ -77,25 +135,125 @@ public class AndroidInstantRuntime {
 
     @NonNull
     private static Field getField(Class target, String name) {
-        Field declareField = getFieldByName(target, name);
+        ClassMembers members = getMembers(target);
+        Field declareField = members.fields.get(name);
+        if (declareField != null) {
+            countHit();
+            return declareField;
+        }
+        countMiss();
+        declareField = getFieldByName(target, name);
         if (declareField == null) {
             throw new RuntimeException(new NoSuchElementException(name));
         }
         declareField.setAccessible(true);
+        members.fields.put(name, declareField);
         return declareField;
     }
 
+    @Nullable
+    private static Method getMethod(Class<?> target, String name, Class[] parameterTypes) {
+        ClassMembers members = getMembers(target);
+        Method method = (Method) find(members.methods.get(name), parameterTypes);
+        if (method != null) {
+            countHit();
+            return method;
+        }
+        countMiss();
+        method = getMethodByName(target, name, parameterTypes);
+        if (method == null) {
+            return null;
+        }
+        method.setAccessible(true);
+        synchronized (members) {
+            members.methods.put(name,
+                    add(members.methods.get(name), new Overload(parameterTypes, method)));
+        }
+        return method;
+    }
+
+    @NonNull
+    private static Constructor getConstructor(Class<?> target, Class[] parameterTypes)
+            throws NoSuchMethodException {
+        ClassMembers members = getMembers(target);
+        Constructor constructor = (Constructor) find(members.constructors, parameterTypes);
+        if (constructor != null) {
+            countHit();
+            return constructor;
+        }
+        countMiss();
+        constructor = target.getDeclaredConstructor(parameterTypes);
+        constructor.setAccessible(true);
+        synchronized (members) {
+            members.constructors =
+                    add(members.constructors, new Overload(parameterTypes, constructor));
+        }
+        return constructor;
+    }
+
+    @NonNull
+    private static ClassMembers getMembers(Class<?> target) {
+        ClassMembers members = MEMBERS.get(target);
+        if (members == null) {
+            ClassMembers added = new ClassMembers();
+            members = MEMBERS.putIfAbsent(target, added);
+            if (members == null) {
+                members = added;
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Returns the member of the overloads taking the parameter types, or null.
+     */
+    @Nullable
+    private static Object find(@Nullable Overload[] overloads, Class[] parameterTypes) {
+        if (overloads != null) {
+            for (Overload overload : overloads) {
+                if (Arrays.equals(overload.parameterTypes, parameterTypes)) {
+                    return overload.member;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of the overloads with one more, the arrays are never changed once published.
+     */
+    @NonNull
+    private static Overload[] add(@Nullable Overload[] overloads, Overload overload) {
+        if (overloads == null) {
+            overloads = NO_OVERLOADS;
+        }
+        Overload[] added = Arrays.copyOf(overloads, overloads.length + 1);
+        added[overloads.length] = overload;
+        return added;
+    }
+
+    private static void countHit() {
+        if (statsEnabled) {
+            cacheHits.incrementAndGet();
+        }
+    }
+
+    private static void countMiss() {
+        if (statsEnabled) {
+            cacheMisses.incrementAndGet();
+        }
+    }
+
     public static Object invokeProtectedMethod(Object receiver,
                                                Object[] params,
                                                Class[] parameterTypes,
                                                String methodName) throws Throwable {
 
         try {
-            Method toDispatchTo = getMethodByName(receiver.getClass(), methodName, parameterTypes);
+            Method toDispatchTo = getMethod(receiver.getClass(), methodName, parameterTypes);
             if (toDispatchTo == null) {
                 throw new RuntimeException(new NoSuchMethodException(methodName));
             }
-            toDispatchTo.setAccessible(true);
             return toDispatchTo.invoke(receiver, params);
         } catch (InvocationTargetException e) {
             // The called method threw an exception, rethrow
@@ -112,12 +270,11 @@ public class AndroidInstantRuntime {
             Class receiverClass) throws Throwable {
 
         try {
-            Method toDispatchTo = getMethodByName(receiverClass, methodName, parameterTypes);
+            Method toDispatchTo = getMethod(receiverClass, methodName, parameterTypes);
             if (toDispatchTo == null) {
                 throw new RuntimeException(new NoSuchMethodException(
                         methodName + " in class " + receiverClass.getName()));
             }
-            toDispatchTo.setAccessible(true);
             return toDispatchTo.invoke(null /* target */, params);
         } catch (InvocationTargetException e) {
             // The called method threw an exception, rethrow
@@ -131,11 +288,10 @@ public class AndroidInstantRuntime {
             throws Throwable {
         Constructor declaredConstructor;
         try {
-            declaredConstructor = targetClass.getDeclaredConstructor(paramTypes);
+            declaredConstructor = getConstructor(targetClass, paramTypes);
         } catch (NoSuchMethodException e) {
             throw new RuntimeException(e);
         }
-        declaredConstructor.setAccessible(true);
         try {
             return targetClass.cast(declaredConstructor.newInstance(params));
         } catch (InvocationTargetException e) {
@@ -176,11 +332,33 @@ public class AndroidInstantRuntime {
             } catch (NoSuchMethodException e) {
                 // ignored.
             }
-
+            currentClass = currentClass.getSuperclass();
         }
         return null;
     }
 
+    private static final class ClassMembers {
+        final ConcurrentMap<String, Field> fields = new ConcurrentHashMap<String, Field>();
+        // the overloads by name, only replaced while holding the lock of this object.
+        final ConcurrentMap<String, Overload[]> methods =
+                new ConcurrentHashMap<String, Overload[]>();
+        volatile Overload[] constructors = NO_OVERLOADS;
+    }
+
+    /**
+     * A method or constructor, with its parameter types kept to match them without the copy
+     * {@link Method#getParameterTypes()} returns.
+     */
+    private static final class Overload {
+        final Class[] parameterTypes;
+        final Object member;
+
+        Overload(Class[] parameterTypes, Object member) {
+            this.parameterTypes = parameterTypes;
+            this.member = member;
+        }
+    }
+
     public static void trace(String s) {
     }
 
@@ -18,4 +18,58 @@ package dodola.anole.runtime;
 
 public interface IncrementalChange {
     Object access$dispatch(String id, Object... args);
+
+    /**
+     * Same as {@link #access$dispatch(String, Object...)} for classes instrumented with integer
+     * method ids, the id being the index of the method in its class, as recorded by the build.
+     */
+    Object access$dispatch(int id, Object... args);
+
+    /**
+     * Returns whether this class replaces the method with the given integer id, the methods
+     * whose code did not change keep running their original version.
+     */
+    boolean access$patched(int id);
+
+    /**
+     * Allocation free versions of {@link #access$dispatch(int, Object...)} for the methods of up
+     * to three arguments, the receiver of instance methods included, which keeps the number of
+     * entry points every override implements down. Primitive arguments are passed widened to
+     * long, float and double as their raw bits.
+     */
+    Object access$dispatch(int id);
+    Object access$dispatch(int id, long a0);
+    Object access$dispatch(int id, Object a0);
+    Object access$dispatch(int id, long a0, long a1);
+    Object access$dispatch(int id, long a0, Object a1);
+    Object access$dispatch(int id, Object a0, long a1);
+    Object access$dispatch(int id, Object a0, Object a1);
+    Object access$dispatch(int id, long a0, long a1, long a2);
+    Object access$dispatch(int id, long a0, long a1, Object a2);
+    Object access$dispatch(int id, long a0, Object a1, long a2);
+    Object access$dispatch(int id, long a0, Object a1, Object a2);
+    Object access$dispatch(int id, Object a0, long a1, long a2);
+    Object access$dispatch(int id, Object a0, long a1, Object a2);
+    Object access$dispatch(int id, Object a0, Object a1, long a2);
+    Object access$dispatch(int id, Object a0, Object a1, Object a2);
+
+    /**
+     * Same as the allocation free {@code access$dispatch} for the methods returning a primitive
+     * value, which is returned widened to long like the arguments.
+     */
+    long access$dispatchLong(int id);
+    long access$dispatchLong(int id, long a0);
+    long access$dispatchLong(int id, Object a0);
+    long access$dispatchLong(int id, long a0, long a1);
+    long access$dispatchLong(int id, long a0, Object a1);
+    long access$dispatchLong(int id, Object a0, long a1);
+    long access$dispatchLong(int id, Object a0, Object a1);
+    long access$dispatchLong(int id, long a0, long a1, long a2);
+    long access$dispatchLong(int id, long a0, long a1, Object a2);
+    long access$dispatchLong(int id, long a0, Object a1, long a2);
+    long access$dispatchLong(int id, long a0, Object a1, Object a2);
+    long access$dispatchLong(int id, Object a0, long a1, long a2);
+    long access$dispatchLong(int id, Object a0, long a1, Object a2);
+    long access$dispatchLong(int id, Object a0, Object a1, long a2);
+    long access$dispatchLong(int id, Object a0, Object a1, Object a2);
 }
\ No newline at end of file
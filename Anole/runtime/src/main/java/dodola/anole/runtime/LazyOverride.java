@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.runtime;
+
+import java.lang.reflect.Field;
+
+/**
+ * Stands for the override of a patched class until it is first called, so that applying a patch
+ * loads none of its override classes.
+ * <p>
+ * The first call loads and instantiates the override, then replaces this stub in the $change
+ * field of the patched class, unless a later patch replaced it already: the following calls go
+ * straight to the override. If the override cannot be loaded, the $change field is cleared and
+ * the methods of the class that check whether they are patched run their original code, the
+ * others fail.
+ */
+final class LazyOverride implements IncrementalChange {
+
+    private final ClassLoader classLoader;
+    private final String overrideName;
+    private final Field changeField;
+
+    // the loaded override, null until the first call or if it cannot be loaded.
+    private volatile IncrementalChange override;
+    private boolean failed;
+    private boolean obsolete;
+
+    /**
+     * @param changeField the accessible $change field of the patched class.
+     */
+    LazyOverride(ClassLoader classLoader, String overrideName, Field changeField) {
+        this.classLoader = classLoader;
+        this.overrideName = overrideName;
+        this.changeField = changeField;
+    }
+
+    private IncrementalChange resolve() {
+        IncrementalChange loaded = override;
+        if (loaded != null) {
+            return loaded;
+        }
+        synchronized (this) {
+            if (override != null || failed) {
+                return override;
+            }
+            Object replacement;
+            try {
+                Object instance = classLoader.loadClass(overrideName).newInstance();
+                if (!changeField.getType().isInstance(instance)) {
+                    throw new ClassCastException(overrideName + " cannot be assigned to "
+                            + changeField.getDeclaringClass().getName() + ".$change");
+                }
+                loaded = (IncrementalChange) instance;
+                replacement = loaded;
+            } catch (Exception e) {
+                e.printStackTrace();
+                failed = true;
+                replacement = null;
+            }
+            try {
+                synchronized (AbstractPatchesLoaderImpl.PUBLISH_LOCK) {
+                    if (changeField.get(null) == this) {
+                        changeField.set(null, replacement);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                // the field was made accessible by the loader, keep going through the stub.
+                e.printStackTrace();
+            }
+            if (loaded != null && obsolete) {
+                AbstractPatchesLoaderImpl.markObsolete(loaded);
+            }
+            override = loaded;
+            return loaded;
+        }
+    }
+
+    private IncrementalChange getOverride() {
+        IncrementalChange loaded = resolve();
+        if (loaded == null) {
+            throw new IllegalStateException("Cannot load " + overrideName);
+        }
+        return loaded;
+    }
+
+    /**
+     * Returns the class loader of the patch the override comes from.
+     */
+    ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Marks the override obsolete, now or when it is loaded, once a later patch replaced it.
+     */
+    synchronized void markObsolete() {
+        obsolete = true;
+        if (override != null) {
+            AbstractPatchesLoaderImpl.markObsolete(override);
+        }
+    }
+
+    @Override
+    public Object access$dispatch(String id, Object... args) {
+        return getOverride().access$dispatch(id, args);
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object... args) {
+        return getOverride().access$dispatch(id, args);
+    }
+
+    @Override
+    public boolean access$patched(int id) {
+        IncrementalChange loaded = resolve();
+        return loaded != null && loaded.access$patched(id);
+    }
+
+    @Override
+    public Object access$dispatch(int id) {
+        return getOverride().access$dispatch(id);
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0) {
+        return getOverride().access$dispatch(id, a0);
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0) {
+        return getOverride().access$dispatch(id, a0);
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, long a1) {
+        return getOverride().access$dispatch(id, a0, a1);
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, Object a1) {
+        return getOverride().access$dispatch(id, a0, a1);
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, long a1) {
+        return getOverride().access$dispatch(id, a0, a1);
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, Object a1) {
+        return getOverride().access$dispatch(id, a0, a1);
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, long a1, long a2) {
+        return getOverride().access$dispatch(id, a0, a1, a2);
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, long a1, Object a2) {
+        return getOverride().access$dispatch(id, a0, a1, a2);
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, Object a1, long a2) {
+        return getOverride().access$dispatch(id, a0, a1, a2);
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, Object a1, Object a2) {
+        return getOverride().access$dispatch(id, a0, a1, a2);
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, long a1, long a2) {
+        return getOverride().access$dispatch(id, a0, a1, a2);
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, long a1, Object a2) {
+        return getOverride().access$dispatch(id, a0, a1, a2);
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, Object a1, long a2) {
+        return getOverride().access$dispatch(id, a0, a1, a2);
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, Object a1, Object a2) {
+        return getOverride().access$dispatch(id, a0, a1, a2);
+    }
+
+    @Override
+    public long access$dispatchLong(int id) {
+        return getOverride().access$dispatchLong(id);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0) {
+        return getOverride().access$dispatchLong(id, a0);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0) {
+        return getOverride().access$dispatchLong(id, a0);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, long a1) {
+        return getOverride().access$dispatchLong(id, a0, a1);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, Object a1) {
+        return getOverride().access$dispatchLong(id, a0, a1);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, long a1) {
+        return getOverride().access$dispatchLong(id, a0, a1);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, Object a1) {
+        return getOverride().access$dispatchLong(id, a0, a1);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, long a1, long a2) {
+        return getOverride().access$dispatchLong(id, a0, a1, a2);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, long a1, Object a2) {
+        return getOverride().access$dispatchLong(id, a0, a1, a2);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, Object a1, long a2) {
+        return getOverride().access$dispatchLong(id, a0, a1, a2);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, Object a1, Object a2) {
+        return getOverride().access$dispatchLong(id, a0, a1, a2);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, long a1, long a2) {
+        return getOverride().access$dispatchLong(id, a0, a1, a2);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, long a1, Object a2) {
+        return getOverride().access$dispatchLong(id, a0, a1, a2);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, Object a1, long a2) {
+        return getOverride().access$dispatchLong(id, a0, a1, a2);
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, Object a1, Object a2) {
+        return getOverride().access$dispatchLong(id, a0, a1, a2);
+    }
+}
@@ -18,5 +18,24 @@ package dodola.anole.runtime;
 
 public interface PatchesLoader {
 
+    /**
+     * Whether the override of each patched class is loaded when the class is first called
+     * rather than when the patch is prepared, to be called before {@link #prepare()}. Applying
+     * the patch is then cheaper, but an override that cannot be loaded is only found when called.
+     */
+    void setLazy(boolean lazy);
+
+    /**
+     * Loads the patch without applying it, may be called on any thread before {@link #load()}.
+     *
+     * @return false if the patch cannot be applied.
+     */
+    boolean prepare();
+
+    /**
+     * Applies the patch, entirely or not at all, preparing it first if needed.
+     *
+     * @return false if the patch was not applied.
+     */
     boolean load();
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.runtime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AndroidInstantRuntimeTest {
+
+    // the classes looked up, each test loads them again so that nothing is cached yet.
+    static class Target {
+        private static String name = "target";
+        private int secret = 7;
+
+        private Target() {
+        }
+
+        private Target(int secret) {
+            this.secret = secret;
+        }
+
+        private int twice(int value) {
+            return value * 2;
+        }
+
+        private String twice(String value) {
+            return value + value;
+        }
+    }
+
+    static class Patched {
+        static volatile IncrementalChange $change;
+
+        static class override extends TestChange {
+        }
+    }
+
+    // the override of a patch the test replaces, its loader defines TestChange again too so that
+    // both are in the same package.
+    static class PreviousOverride extends TestChange {
+        static boolean $obsolete;
+    }
+
+    private static final class Loader extends AbstractPatchesLoaderImpl {
+        @Override
+        public String[] getPatchedClasses() {
+            return new String[]{Patched.class.getName()};
+        }
+    }
+
+    /**
+     * Defines the classes it is given again instead of delegating them, like the class loader of
+     * a patch.
+     */
+    private static final class IsolatedLoader extends ClassLoader {
+        private final List<String> classNames;
+
+        IsolatedLoader(Class<?>... classes) {
+            super(AndroidInstantRuntimeTest.class.getClassLoader());
+            String[] names = new String[classes.length];
+            for (int i = 0; i < classes.length; i++) {
+                names[i] = classes[i].getName();
+            }
+            classNames = Arrays.asList(names);
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            if (!classNames.contains(name)) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                byte[] bytes = readClass(name);
+                loaded = defineClass(name, bytes, 0, bytes.length);
+            }
+            return loaded;
+        }
+
+        private byte[] readClass(String name) throws ClassNotFoundException {
+            InputStream inputStream = getParent().getResourceAsStream(
+                    name.replace('.', '/') + ".class");
+            if (inputStream == null) {
+                throw new ClassNotFoundException(name);
+            }
+            try {
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[4096];
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        bytes.write(buffer, 0, read);
+                    }
+                    return bytes.toByteArray();
+                } finally {
+                    inputStream.close();
+                }
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+    private long hits;
+    private long misses;
+
+    @Before
+    public void setUp() {
+        Patched.$change = null;
+        AndroidInstantRuntime.setStatsEnabled(true);
+        hits = AndroidInstantRuntime.getCacheHitCount();
+        misses = AndroidInstantRuntime.getCacheMissCount();
+    }
+
+    @After
+    public void tearDown() {
+        AndroidInstantRuntime.setStatsEnabled(false);
+    }
+
+    @Test
+    public void fieldsAreLookedUpOnce() throws Throwable {
+        Class<?> target = new IsolatedLoader(Target.class).loadClass(Target.class.getName());
+        Object instance = AndroidInstantRuntime.newForClass(new Object[0], new Class[0], target);
+
+        assertEquals(7, AndroidInstantRuntime.getPrivateField(instance, target, "secret"));
+        AndroidInstantRuntime.setPrivateField(instance, 8, target, "secret");
+        assertEquals(8, AndroidInstantRuntime.getPrivateField(instance, target, "secret"));
+        assertEquals("target", AndroidInstantRuntime.getStaticPrivateField(target, "name"));
+
+        // the constructor, secret and name.
+        assertStats(2, 3);
+    }
+
+    @Test
+    public void overloadsAreMatchedByParameterTypes() throws Throwable {
+        Class<?> target = new IsolatedLoader(Target.class).loadClass(Target.class.getName());
+        Object instance = AndroidInstantRuntime.newForClass(
+                new Object[]{3}, new Class[]{int.class}, target);
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals(6, AndroidInstantRuntime.invokeProtectedMethod(instance,
+                    new Object[]{3}, new Class[]{int.class}, "twice"));
+            assertEquals("aa", AndroidInstantRuntime.invokeProtectedMethod(instance,
+                    new Object[]{"a"}, new Class[]{String.class}, "twice"));
+        }
+        assertEquals(3, AndroidInstantRuntime.getPrivateField(instance, target, "secret"));
+        AndroidInstantRuntime.newForClass(new Object[0], new Class[0], target);
+
+        // the two constructors, the two overloads and secret.
+        assertStats(2, 5);
+    }
+
+    @Test
+    public void replacedPatchForgetsTheMembersOfItsClasses() throws Exception {
+        IsolatedLoader patchLoader = new IsolatedLoader(
+                Target.class, PreviousOverride.class, TestChange.class);
+        Class<?> patchClass = patchLoader.loadClass(Target.class.getName());
+        Class<?> appClass = new IsolatedLoader(Target.class).loadClass(Target.class.getName());
+        AndroidInstantRuntime.getStaticPrivateField(patchClass, "name");
+        AndroidInstantRuntime.getStaticPrivateField(appClass, "name");
+        Constructor<?> previous = patchLoader.loadClass(PreviousOverride.class.getName())
+                .getDeclaredConstructor();
+        previous.setAccessible(true);
+        Patched.$change = (IncrementalChange) previous.newInstance();
+
+        assertTrue(new Loader().load());
+
+        AndroidInstantRuntime.getStaticPrivateField(patchClass, "name");
+        AndroidInstantRuntime.getStaticPrivateField(appClass, "name");
+        assertStats(1, 3);
+    }
+
+    @Test
+    public void replacedLazyPatchForgetsTheMembersOfItsClasses() throws Exception {
+        IsolatedLoader patchLoader = new IsolatedLoader(Target.class, PreviousOverride.class);
+        Class<?> patchClass = patchLoader.loadClass(Target.class.getName());
+        AndroidInstantRuntime.getStaticPrivateField(patchClass, "name");
+        Patched.$change = new LazyOverride(patchLoader, PreviousOverride.class.getName(),
+                Patched.class.getDeclaredField("$change"));
+
+        assertTrue(new Loader().load());
+
+        AndroidInstantRuntime.getStaticPrivateField(patchClass, "name");
+        assertStats(0, 2);
+    }
+
+    private void assertStats(long expectedHits, long expectedMisses) {
+        assertEquals("hits", expectedHits, AndroidInstantRuntime.getCacheHitCount() - hits);
+        assertEquals("misses", expectedMisses,
+                AndroidInstantRuntime.getCacheMissCount() - misses);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.runtime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LazyOverrideTest {
+
+    static class Patched {
+        static volatile IncrementalChange $change;
+
+        static class override extends TestChange {
+            static boolean $obsolete;
+            static int instances;
+
+            override() {
+                instances++;
+            }
+        }
+    }
+
+    private Field changeField;
+
+    @Before
+    public void setUp() throws Exception {
+        Patched.$change = null;
+        Patched.override.$obsolete = false;
+        Patched.override.instances = 0;
+        changeField = Patched.class.getDeclaredField("$change");
+        changeField.setAccessible(true);
+    }
+
+    private LazyOverride publish(String overrideName) {
+        LazyOverride lazy = new LazyOverride(getClass().getClassLoader(), overrideName,
+                changeField);
+        Patched.$change = lazy;
+        return lazy;
+    }
+
+    @Test
+    public void firstCallLoadsTheOverrideInPlaceOfTheStub() {
+        LazyOverride lazy = publish(Patched.override.class.getName());
+        assertEquals(0, Patched.override.instances);
+
+        Object override = lazy.access$dispatch(0);
+
+        assertTrue(override instanceof Patched.override);
+        assertSame(override, Patched.$change);
+        assertSame(override, lazy.access$dispatch(0));
+        assertEquals(1, Patched.override.instances);
+    }
+
+    @Test
+    public void failingLoadClearsTheChangeField() {
+        LazyOverride lazy = publish(Patched.class.getName() + "$missing");
+
+        assertFalse(lazy.access$patched(0));
+        assertNull(Patched.$change);
+        try {
+            lazy.access$dispatch(0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void firstCallKeepsANewerChange() {
+        LazyOverride lazy = publish(Patched.override.class.getName());
+        IncrementalChange newer = new TestChange();
+        Patched.$change = newer;
+
+        assertTrue(lazy.access$dispatch(0) instanceof Patched.override);
+
+        assertSame(newer, Patched.$change);
+    }
+
+    @Test
+    public void overrideMarkedObsoleteBeforeItLoadsIsMarkedOnceLoaded() {
+        LazyOverride lazy = publish(Patched.override.class.getName());
+
+        AbstractPatchesLoaderImpl.markObsolete(lazy);
+        assertFalse(Patched.override.$obsolete);
+        assertEquals(0, Patched.override.instances);
+
+        assertTrue(lazy.access$patched(0));
+        assertTrue(Patched.override.$obsolete);
+    }
+
+    @Test
+    public void loadedOverrideIsMarkedObsolete() {
+        LazyOverride lazy = publish(Patched.override.class.getName());
+        assertTrue(lazy.access$patched(0));
+
+        lazy.markObsolete();
+
+        assertTrue(Patched.override.$obsolete);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.runtime;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PatchesLoaderTest {
+
+    // the patched classes, their overrides are named like the ones the build generates.
+    static class First {
+        static volatile IncrementalChange $change;
+
+        static class override extends TestChange {
+            static int instances;
+
+            override() {
+                instances++;
+            }
+        }
+    }
+
+    static class Second {
+        static volatile IncrementalChange $change;
+
+        static class override extends TestChange {
+        }
+    }
+
+    // publishing a patch of this class fails, its $change field cannot be set.
+    static class Frozen {
+        static final IncrementalChange $change = null;
+
+        static class override extends TestChange {
+        }
+    }
+
+    // preparing a patch of this class fails, it has no override.
+    static class Unpatched {
+        static volatile IncrementalChange $change;
+    }
+
+    // the override of an earlier patch.
+    static class Previous extends TestChange {
+        static boolean $obsolete;
+    }
+
+    private static final class Loader extends AbstractPatchesLoaderImpl {
+        private final String[] patchedClasses;
+
+        Loader(Class<?>... classes) {
+            patchedClasses = new String[classes.length];
+            for (int i = 0; i < classes.length; i++) {
+                patchedClasses[i] = classes[i].getName();
+            }
+        }
+
+        @Override
+        public String[] getPatchedClasses() {
+            return patchedClasses;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        First.$change = null;
+        First.override.instances = 0;
+        Second.$change = null;
+        Previous.$obsolete = false;
+    }
+
+    @Test
+    public void loadPublishesEveryOverride() {
+        assertTrue(new Loader(First.class, Second.class).load());
+
+        assertTrue(First.$change instanceof First.override);
+        assertTrue(Second.$change instanceof Second.override);
+    }
+
+    @Test
+    public void prepareLeavesTheRunningCodeAlone() {
+        Loader loader = new Loader(First.class, Second.class);
+
+        assertTrue(loader.prepare());
+        assertNull(First.$change);
+        assertEquals(1, First.override.instances);
+
+        assertTrue(loader.load());
+        assertTrue(First.$change instanceof First.override);
+        assertEquals(1, First.override.instances);
+    }
+
+    @Test
+    public void failingPrepareAppliesNothing() {
+        Loader loader = new Loader(First.class, Unpatched.class);
+
+        assertFalse(loader.prepare());
+        assertFalse(loader.load());
+        assertNull(First.$change);
+    }
+
+    @Test
+    public void failingLoadRollsBackTheClassesAlreadyPublished() {
+        Previous previous = new Previous();
+        First.$change = previous;
+
+        assertFalse(new Loader(First.class, Frozen.class).load());
+
+        assertSame(previous, First.$change);
+        assertFalse(Previous.$obsolete);
+    }
+
+    @Test
+    public void loadMarksThePreviousOverridesObsolete() {
+        First.$change = new Previous();
+
+        assertTrue(new Loader(First.class).load());
+
+        assertTrue(Previous.$obsolete);
+    }
+
+    @Test
+    public void lazyLoadDefersLoadingTheOverrides() {
+        Loader loader = new Loader(First.class, Second.class);
+        loader.setLazy(true);
+
+        assertTrue(loader.load());
+        assertTrue(First.$change instanceof LazyOverride);
+        assertEquals(0, First.override.instances);
+
+        assertTrue(First.$change.access$patched(0));
+        assertTrue(First.$change instanceof First.override);
+        assertEquals(1, First.override.instances);
+        assertTrue(Second.$change instanceof LazyOverride);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 Baidu, Inc. All Rights Reserved.
+ */
+
+package dodola.anole.runtime;
+
+/**
+ * An override that patches every method, the tests only check which override runs: the methods
+ * without arguments return the override itself, the others are not called.
+ */
+class TestChange implements IncrementalChange {
+
+    @Override
+    public Object access$dispatch(String id, Object... args) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object... args) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean access$patched(int id) {
+        return true;
+    }
+
+    @Override
+    public Object access$dispatch(int id) {
+        return this;
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, long a1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, Object a1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, long a1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, Object a1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, long a1, long a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, long a1, Object a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, Object a1, long a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, long a0, Object a1, Object a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, long a1, long a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, long a1, Object a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, Object a1, long a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object access$dispatch(int id, Object a0, Object a1, Object a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, long a1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, Object a1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, long a1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, Object a1) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, long a1, long a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, long a1, Object a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, Object a1, long a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, long a0, Object a1, Object a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, long a1, long a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, long a1, Object a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, Object a1, long a2) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long access$dispatchLong(int id, Object a0, Object a1, Object a2) {
+        throw new UnsupportedOperationException();
+    }
+}